@@ -5,6 +5,7 @@ import android.content.SharedPreferences;
 
 import com.dnstt.client.models.CustomDnsList;
 import com.dnstt.client.models.DnsConfig;
+import com.dnstt.client.models.ResolverAddress;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
@@ -21,6 +22,9 @@ public class DnsConfigManager {
     private static final String KEY_CUSTOM_LISTS = "custom_lists";
     private static final String KEY_SELECTED_SOURCE = "selected_source";
     private static final String KEY_SELECTED_LIST_ID = "selected_list_id";
+    // Replaced by ResolverReputationStore; read once to migrate
+    private static final String KEY_LEGACY_LAST_SUCCESSFUL = "last_successful_dns";
+    private static final String KEY_LEGACY_DEPRIORITIZED = "deprioritized_dns";
 
     public static final String SOURCE_GLOBAL = "global";
     public static final String SOURCE_CUSTOM = "custom";
@@ -28,63 +32,35 @@ public class DnsConfigManager {
     private final Context context;
     private final SharedPreferences prefs;
     private final Gson gson;
+    private final ResolverReputationStore reputation;
     private List<CustomDnsList> customLists;
 
     public DnsConfigManager(Context context) {
         this.context = context.getApplicationContext();
         this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         this.gson = new Gson();
+        this.reputation = ResolverReputationStore.get(context);
         loadCustomLists();
+        migrateLegacyHistory();
     }
 
     /**
      * Get global DNS configurations
-     * Loads all DNS servers from dns_servers.txt asset file
+     * Built from the bundled servers in {@link ResolverCatalog}, in catalog order,
+     * with IDs derived from the catalog index
      */
     public List<DnsConfig> getGlobalDnsConfigs() {
-        List<DnsConfig> configs = new ArrayList<>();
-
-        try {
-            java.io.InputStream is = context.getAssets().open("dns_servers.txt");
-            java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(is));
-            String line;
-            int index = 1;
-
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                // Skip empty lines and comments
-                if (!line.isEmpty() && !line.startsWith("#")) {
-                    // Create DnsConfig from IP address
-                    String address = line.contains(":") ? line : line + ":53";
-                    configs.add(new DnsConfig(
-                            UUID.randomUUID().toString(),
-                            "DNS Server " + index,
-                            address,
-                            "Public DNS server",
-                            true
-                    ));
-                    index++;
-                }
-            }
-            reader.close();
-        } catch (java.io.IOException e) {
-            // Fallback to popular DNS servers if file can't be read
-            configs.add(new DnsConfig(
-                    UUID.randomUUID().toString(),
-                    "Cloudflare DNS",
-                    "1.1.1.1:53",
-                    "Fast and privacy-focused DNS",
-                    true
-            ));
+        ResolverCatalog catalog = ResolverCatalog.get(context);
+        List<DnsConfig> configs = new ArrayList<>(catalog.size());
+        for (int i = 0; i < catalog.size(); i++) {
             configs.add(new DnsConfig(
-                    UUID.randomUUID().toString(),
-                    "Google DNS",
-                    "8.8.8.8:53",
-                    "Reliable Google DNS",
+                    "global-" + i,
+                    "DNS Server " + (i + 1),
+                    catalog.get(i).toString(),
+                    "Public DNS server",
                     true
             ));
         }
-
         return configs;
     }
 
@@ -240,33 +216,41 @@ public class DnsConfigManager {
     }
 
     /**
-     * Get DNS servers for auto DNS based on selected source
+     * Get DNS servers for auto DNS based on selected source, parsed once here
+     * so the scanner never re-reads address strings. Invalid entries are skipped.
+     * The global list is a read-only view.
      */
-    public String getDnsServersForAutoSearch() {
-        StringBuilder sb = new StringBuilder();
-
+    public List<ResolverAddress> getResolversForAutoSearch() {
         if (SOURCE_GLOBAL.equals(getSelectedSource())) {
-            // Use existing DnsServerManager for global servers
-            DnsServerManager manager = new DnsServerManager(context);
-            return manager.getAllServersAsString();
-        } else {
-            // Use selected custom list
-            String listId = getSelectedListId();
-            if (listId != null) {
-                CustomDnsList list = getCustomList(listId);
-                if (list != null) {
-                    for (DnsConfig config : list.getDnsConfigs()) {
-                        String address = config.getAddress();
-                        // Extract IP without port
-                        if (address.contains(":")) {
-                            address = address.substring(0, address.indexOf(":"));
-                        }
-                        sb.append(address).append("\n");
+            // Read-only view of the shared catalog; nothing is copied or re-parsed
+            return ResolverCatalog.get(context).defaultView();
+        }
+
+        // Use selected custom list
+        List<ResolverAddress> resolvers = new ArrayList<>();
+        String listId = getSelectedListId();
+        if (listId != null) {
+            CustomDnsList list = getCustomList(listId);
+            if (list != null) {
+                for (DnsConfig config : list.getDnsConfigs()) {
+                    ResolverAddress address = ResolverAddress.parse(config.getAddress());
+                    if (address != null) {
+                        resolvers.add(address);
                     }
                 }
             }
         }
+        return resolvers;
+    }
 
+    /**
+     * Get DNS servers for auto DNS based on selected source, one host:port per line
+     */
+    public String getDnsServersForAutoSearch() {
+        StringBuilder sb = new StringBuilder();
+        for (ResolverAddress address : getResolversForAutoSearch()) {
+            sb.append(address).append("\n");
+        }
         return sb.toString();
     }
 
@@ -289,152 +273,59 @@ public class DnsConfigManager {
     }
 
     /**
-     * Save last successful DNS server for prioritization
+     * Record that a tunnel came up through address, so auto search tries it
+     * early next time
      */
-    public void saveLastSuccessfulDns(String address) {
-        prefs.edit().putString("last_successful_dns", address).apply();
-    }
-
-    /**
-     * Get last successful DNS server
-     */
-    public String getLastSuccessfulDns() {
-        return prefs.getString("last_successful_dns", null);
+    public void recordSuccessfulDns(ResolverAddress address) {
+        if (address != null) {
+            reputation.recordTunnelSuccess(address);
+        }
     }
 
     /**
-     * Get list of deprioritized DNS servers (those that failed)
+     * Record that a tunnel through address failed or dropped, so auto search
+     * tries it later until it recovers
      */
-    public java.util.Set<String> getDeprioritizedDns() {
-        String deprioritized = prefs.getString("deprioritized_dns", "");
-        java.util.Set<String> set = new java.util.HashSet<>();
-        if (!deprioritized.isEmpty()) {
-            for (String dns : deprioritized.split(",")) {
-                if (!dns.trim().isEmpty()) {
-                    set.add(dns.trim());
-                }
-            }
+    public void recordFailedDns(ResolverAddress address) {
+        if (address != null) {
+            reputation.recordTunnelFailure(address);
         }
-        return set;
     }
 
     /**
-     * Add a DNS to the deprioritized list (move to end)
+     * Forget resolver history (reset to default order)
      */
-    public void moveDnsToEnd(String address) {
-        if (address == null || address.isEmpty()) {
-            return;
-        }
-
-        java.util.Set<String> deprioritized = getDeprioritizedDns();
-        deprioritized.add(address);
-
-        // Save back to preferences
-        StringBuilder sb = new StringBuilder();
-        for (String dns : deprioritized) {
-            if (sb.length() > 0) sb.append(",");
-            sb.append(dns);
-        }
-        prefs.edit().putString("deprioritized_dns", sb.toString()).apply();
-
-        // For custom lists, actually reorder the list
-        if (SOURCE_CUSTOM.equals(getSelectedSource())) {
-            String listId = getSelectedListId();
-            if (listId != null) {
-                CustomDnsList list = getCustomList(listId);
-                if (list != null) {
-                    List<DnsConfig> configs = list.getDnsConfigs();
-                    DnsConfig toMove = null;
-
-                    // Find the DNS config to move
-                    for (DnsConfig config : configs) {
-                        String configAddress = config.getAddress();
-                        // Extract IP without port for comparison
-                        if (configAddress.contains(":")) {
-                            configAddress = configAddress.substring(0, configAddress.indexOf(":"));
-                        }
-                        if (configAddress.equals(address)) {
-                            toMove = config;
-                            break;
-                        }
-                    }
-
-                    // Move to end if found
-                    if (toMove != null) {
-                        configs.remove(toMove);
-                        configs.add(toMove);
-                        list.setDnsConfigs(configs);
-                        updateCustomList(list);
-                    }
-                }
-            }
-        }
+    public void clearResolverHistory() {
+        reputation.clear();
     }
 
     /**
-     * Clear deprioritized DNS list (reset to default order)
+     * Get DNS servers ordered by their history, optionally excluding an address.
+     * Resolvers that have carried tunnels come first, ones that keep failing last;
+     * see {@link ResolverReputationStore#order}.
      */
-    public void clearDeprioritizedDns() {
-        prefs.edit().remove("deprioritized_dns").apply();
+    public List<ResolverAddress> getResolversForAutoSearchWithPriority(String excludeAddress) {
+        ResolverAddress excluded = ResolverAddress.parse(excludeAddress);
+        List<ResolverAddress> allServers = getResolversForAutoSearch();
+        if (excluded != null && allServers.contains(excluded)) {
+            allServers = new ArrayList<>(allServers);
+            allServers.remove(excluded);
+        }
+        return reputation.order(allServers);
     }
 
     /**
-     * Get DNS servers with last successful one first, optionally excluding an address
-     * Deprioritized servers are moved to the end
+     * Move the old last_successful_dns and deprioritized_dns keys into the
+     * reputation store, once
      */
-    public String getDnsServersForAutoSearchWithPriority(String excludeAddress) {
-        String lastSuccessful = getLastSuccessfulDns();
-        java.util.Set<String> deprioritized = getDeprioritizedDns();
-        StringBuilder sb = new StringBuilder();
-        List<String> deprioritizedServers = new ArrayList<>();
-
-        // Get all DNS servers from current source
-        String allServers = getDnsServersForAutoSearch();
-
-        // Build a set of servers in the current source for quick lookup
-        java.util.Set<String> sourceServers = new java.util.HashSet<>();
-        if (allServers != null && !allServers.isEmpty()) {
-            for (String server : allServers.split("\n")) {
-                server = server.trim();
-                if (!server.isEmpty()) {
-                    sourceServers.add(server);
-                }
-            }
-        }
-
-        // Add last successful DNS first ONLY if it exists in the current source
-        if (lastSuccessful != null && !lastSuccessful.isEmpty() &&
-            sourceServers.contains(lastSuccessful) &&
-            !deprioritized.contains(lastSuccessful) &&
-            (excludeAddress == null || !lastSuccessful.equals(excludeAddress))) {
-            sb.append(lastSuccessful).append("\n");
-        }
-
-        // Separate normal and deprioritized servers
-        if (allServers != null && !allServers.isEmpty()) {
-            String[] servers = allServers.split("\n");
-            for (String server : servers) {
-                server = server.trim();
-                if (!server.isEmpty() &&
-                    (lastSuccessful == null || !server.equals(lastSuccessful)) &&
-                    (excludeAddress == null || !server.equals(excludeAddress))) {
-
-                    if (deprioritized.contains(server)) {
-                        // Add to deprioritized list (will be added at the end)
-                        deprioritizedServers.add(server);
-                    } else {
-                        // Add to normal priority
-                        sb.append(server).append("\n");
-                    }
-                }
-            }
+    private void migrateLegacyHistory() {
+        if (!prefs.contains(KEY_LEGACY_LAST_SUCCESSFUL) && !prefs.contains(KEY_LEGACY_DEPRIORITIZED)) {
+            return;
         }
-
-        // Add deprioritized servers at the end
-        for (String server : deprioritizedServers) {
-            sb.append(server).append("\n");
+        recordSuccessfulDns(ResolverAddress.parse(prefs.getString(KEY_LEGACY_LAST_SUCCESSFUL, null)));
+        for (String dns : prefs.getString(KEY_LEGACY_DEPRIORITIZED, "").split(",")) {
+            recordFailedDns(ResolverAddress.parse(dns.trim()));
         }
-
-        return sb.toString();
+        prefs.edit().remove(KEY_LEGACY_LAST_SUCCESSFUL).remove(KEY_LEGACY_DEPRIORITIZED).apply();
     }
 }
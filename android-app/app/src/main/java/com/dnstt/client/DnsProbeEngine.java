@@ -0,0 +1,675 @@
+package com.dnstt.client;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded NIO engine for DNS resolver probes.
+ *
+ * A small pool of non-blocking DatagramChannels and one Selector keep
+ * thousands of queries in flight from the calling thread. Responses are
+ * matched to probes by DNS transaction ID, source address and the socket the
+ * query left from, and timeouts are expired with a hashed timer wheel, so the
+ * cost of a probe is a slot in an array rather than a thread blocked inside a
+ * resolver library.
+ *
+ * Probes are spread round-robin over the pool, and each socket is bound to a
+ * random port and replaced after a few hundred queries or a couple of
+ * seconds. A scan is then many short flows rather than one long-lived
+ * 4-tuple, which some networks block after a few seconds (see TODO), and no
+ * socket is opened per query.
+ *
+ * Sends can optionally be paced by a packets-per-second token bucket and
+ * capped per network prefix (/24 for IPv4, /48 for IPv6), so a scan does not
+ * overrun the phone's socket buffers or the carrier NAT, or hammer one
+ * provider's block of resolvers.
+ *
+ * A probe marked tcp is sent over its own non-blocking TCP connection instead,
+ * registered with the same Selector, with the two-octet length prefix of DNS
+ * over TCP. Its round trip includes the connection handshake.
+ */
+class DnsProbeEngine {
+    private static final String TAG = "DnsProbeEngine";
+
+    // Transaction IDs are 16 bits, so at most this many probes can be pending.
+    private static final int ID_SPACE = 1 << 16;
+    static final int MAX_IN_FLIGHT = 8192;
+
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    private static final int SEND_BUFFER_SIZE = 512;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WHEEL_SLOTS = 512;
+
+    // UDP sockets sending at any one time
+    private static final int SOCKET_POOL_SIZE = 8;
+    // A socket is replaced after this many queries, or once it is this old
+    private static final int SOCKET_ROTATE_SENDS = 256;
+    private static final long SOCKET_ROTATE_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // Source ports are picked from the usual ephemeral range
+    private static final int MIN_SOURCE_PORT = 32768;
+    private static final int MAX_SOURCE_PORT = 60999;
+    private static final int BIND_ATTEMPTS = 4;
+
+    /**
+     * A single query to a single resolver. Owned by the engine while in flight.
+     */
+    static class Probe {
+        final InetSocketAddress target;
+        final Object tag;
+        // Network prefix of target for the per-prefix cap, or -1 if unresolved
+        final long prefix;
+
+        // Per-probe value chosen by the handler, e.g. a cache-busting nonce
+        long nonce;
+        // Earliest send time for probes queued with sendLater
+        long notBeforeNanos;
+
+        // Send over TCP instead of UDP
+        boolean tcp;
+        // Timeout for this probe, or 0 for the engine's
+        long timeoutNanos;
+
+        int txid = -1;
+        long sentAtNanos;
+        long deadlineNanos;
+        boolean done;
+
+        // Connection and length-prefixed message buffer of a TCP probe in flight
+        SocketChannel channel;
+        ByteBuffer tcpBuffer;
+        // Pool socket a UDP probe was sent from; only its replies count
+        PooledSocket socket;
+
+        Probe(InetSocketAddress target, Object tag) {
+            this.target = target;
+            this.tag = tag;
+            this.prefix = prefixOf(target);
+        }
+    }
+
+    /**
+     * Builds queries and receives outcomes. All methods are called on the
+     * thread running {@link #run}. Buffers are owned by the engine and are
+     * only valid for the duration of the call.
+     */
+    interface Handler {
+        /** Write the query for this probe, with the given transaction ID, into out and flip it. */
+        void writeQuery(Probe probe, int txid, ByteBuffer out);
+
+        void onResponse(Probe probe, ByteBuffer response, long rttNanos);
+
+        void onTimeout(Probe probe);
+
+        void onError(Probe probe, String error);
+    }
+
+    private final int maxInFlight;
+    private final long timeoutNanos;
+    private final Handler handler;
+
+    private final Probe[] pending = new Probe[ID_SPACE];
+    private final TimerWheel wheel;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+    private final ArrayDeque<Probe> deferred = new ArrayDeque<>();
+
+    // Pacing; both limits are off (0) unless setPacing is called
+    private double tokensPerNano = 0;
+    private double maxTokens = 0;
+    private double tokens = 0;
+    private long lastRefillNanos;
+    private int maxPerPrefix = 0;
+    private final HashMap<Long, int[]> prefixInFlight = new HashMap<>();
+    // Probes waiting for a probe to the same prefix to complete
+    private final HashMap<Long, ArrayDeque<Probe>> prefixWaiting = new HashMap<>();
+    private final ArrayDeque<Probe> unblocked = new ArrayDeque<>();
+    private int nextId = ThreadLocalRandom.current().nextInt(ID_SPACE);
+    private int inFlight = 0;
+
+    private final PooledSocket[] sockets = new PooledSocket[SOCKET_POOL_SIZE];
+    private int nextSocket = 0;
+    // Replaced sockets, kept open for replies to the probes they carried
+    private final ArrayDeque<PooledSocket> retired = new ArrayDeque<>();
+
+    private volatile boolean stopped = false;
+    private volatile Selector selector;
+
+    DnsProbeEngine(int maxInFlight, int timeoutMs, Handler handler) {
+        this.maxInFlight = Math.max(1, Math.min(maxInFlight, MAX_IN_FLIGHT));
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.handler = handler;
+        this.wheel = new TimerWheel(TICK_NANOS, WHEEL_SLOTS, System.nanoTime());
+    }
+
+    /**
+     * Limit the send rate and the number of probes in flight to any one
+     * prefix. Zero disables either limit. Call before {@link #run}.
+     */
+    void setPacing(int packetsPerSecond, int maxInFlightPerPrefix) {
+        if (packetsPerSecond > 0) {
+            tokensPerNano = packetsPerSecond / 1e9;
+            // Allow two ticks' worth of burst so the rate is reachable between selects
+            maxTokens = Math.max(1, tokensPerNano * TICK_NANOS * 2);
+        } else {
+            tokensPerNano = 0;
+            maxTokens = 0;
+        }
+        tokens = maxTokens;
+        maxPerPrefix = Math.max(0, maxInFlightPerPrefix);
+    }
+
+    /**
+     * Send every probe from work and block until each one has completed,
+     * timed out or failed, or until {@link #stop} is called. Unless stopped,
+     * the engine can run again once this returns, with fresh sockets.
+     */
+    void run(Iterator<Probe> work) throws IOException {
+        try (Selector sel = Selector.open()) {
+            selector = sel;
+            try {
+                for (int i = 0; i < sockets.length; i++) {
+                    sockets[i] = openSocket(System.nanoTime());
+                }
+                runLoop(work, sel);
+            } finally {
+                for (PooledSocket socket : sockets) {
+                    if (socket != null) {
+                        closeQuietly(socket.channel);
+                    }
+                }
+                for (PooledSocket socket : retired) {
+                    closeQuietly(socket.channel);
+                }
+                retired.clear();
+                // Abandoned TCP probes still hold connections
+                for (SelectionKey registered : sel.keys()) {
+                    if (registered.attachment() instanceof Probe) {
+                        closeQuietly(((Probe) registered.attachment()).channel);
+                    }
+                }
+            }
+        } finally {
+            selector = null;
+        }
+    }
+
+    private void runLoop(Iterator<Probe> work, Selector sel) throws IOException {
+        Probe unsent = null;
+        lastRefillNanos = System.nanoTime();
+        while (!stopped) {
+            // Fill the window
+            long now = System.nanoTime();
+            refillTokens(now);
+            while (inFlight < maxInFlight && !stopped && (tokensPerNano == 0 || tokens >= 1)) {
+                Probe probe = unsent != null ? unsent : nextProbe(work, now);
+                unsent = null;
+                if (probe == null) break;
+                if (!admit(probe)) {
+                    // Parked until a probe to the same prefix completes
+                    continue;
+                }
+                if (!send(probe)) {
+                    // Socket buffer is full - wait until the channel is writable
+                    unsent = probe;
+                    break;
+                }
+            }
+
+            if (inFlight == 0 && unsent == null && deferred.isEmpty() && unblocked.isEmpty()
+                    && !work.hasNext()) {
+                break;
+            }
+
+            sel.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(TICK_NANOS)));
+            for (SelectionKey selected : sel.selectedKeys()) {
+                if (stopped || !selected.isValid()) continue;
+                if (selected.attachment() instanceof Probe) {
+                    serviceTcp(selected, (Probe) selected.attachment());
+                    continue;
+                }
+                PooledSocket socket = (PooledSocket) selected.attachment();
+                if (selected.isWritable()) {
+                    selected.interestOps(SelectionKey.OP_READ);
+                }
+                if (selected.isReadable()) {
+                    receiveAll(socket);
+                }
+            }
+            sel.selectedKeys().clear();
+
+            now = System.nanoTime();
+            wheel.advance(now, this::expire);
+            rotateSockets(now);
+        }
+    }
+
+    /**
+     * Stop the engine. Probes still in flight are abandoned without callbacks.
+     * May be called from a handler callback to end the run early.
+     */
+    void stop() {
+        stopped = true;
+        Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
+    /**
+     * Queue a follow-up probe from a handler callback, to be sent no earlier
+     * than delayNanos from now. Deferred probes go out in the order they were
+     * queued and ahead of new work.
+     */
+    void sendLater(Probe probe, long delayNanos) {
+        probe.notBeforeNanos = System.nanoTime() + delayNanos;
+        deferred.add(probe);
+    }
+
+    private Probe nextProbe(Iterator<Probe> work, long now) {
+        if (!unblocked.isEmpty()) {
+            return unblocked.poll();
+        }
+        Probe next = deferred.peek();
+        if (next != null && next.notBeforeNanos <= now) {
+            return deferred.poll();
+        }
+        return work.hasNext() ? work.next() : null;
+    }
+
+    private void refillTokens(long now) {
+        if (tokensPerNano == 0) return;
+        tokens = Math.min(maxTokens, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Whether probe may be sent under the per-prefix cap. If not, it is
+     * parked and handed back by {@link #nextProbe} once its prefix has room.
+     */
+    private boolean admit(Probe probe) {
+        if (maxPerPrefix == 0 || probe.prefix < 0) return true;
+        int[] count = prefixInFlight.get(probe.prefix);
+        if (count == null || count[0] < maxPerPrefix) return true;
+        ArrayDeque<Probe> waiting = prefixWaiting.get(probe.prefix);
+        if (waiting == null) {
+            waiting = new ArrayDeque<>();
+            prefixWaiting.put(probe.prefix, waiting);
+        }
+        waiting.add(probe);
+        return false;
+    }
+
+    private boolean send(Probe probe) {
+        int txid = allocateId();
+        handler.writeQuery(probe, txid, sendBuffer);
+
+        long now = System.nanoTime();
+        PooledSocket socket = null;
+        try {
+            if (probe.tcp) {
+                connectTcp(probe);
+            } else {
+                socket = sockets[nextSocket];
+                nextSocket = (nextSocket + 1) % sockets.length;
+                if (socket.channel.send(sendBuffer, probe.target) == 0) {
+                    // Try the next socket once this one is writable again
+                    socket.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return false;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unreachable network, unresolved address and similar per-target failures
+            String error = e.getMessage();
+            handler.onError(probe, error != null ? error : e.getClass().getSimpleName());
+            return true;
+        }
+
+        if (tokensPerNano != 0) {
+            tokens -= 1;
+        }
+        if (maxPerPrefix != 0 && probe.prefix >= 0) {
+            int[] count = prefixInFlight.get(probe.prefix);
+            if (count == null) {
+                count = new int[1];
+                prefixInFlight.put(probe.prefix, count);
+            }
+            count[0]++;
+        }
+
+        probe.txid = txid;
+        probe.sentAtNanos = now;
+        probe.deadlineNanos = now + (probe.timeoutNanos > 0 ? probe.timeoutNanos : timeoutNanos);
+        probe.socket = socket;
+        if (socket != null) {
+            socket.sends++;
+            socket.lastDeadlineNanos = Math.max(socket.lastDeadlineNanos, probe.deadlineNanos);
+        }
+        pending[txid] = probe;
+        inFlight++;
+        wheel.schedule(probe);
+        return true;
+    }
+
+    /**
+     * Open a non-blocking connection for a TCP probe and queue the query in
+     * sendBuffer behind its length prefix.
+     */
+    private void connectTcp(Probe probe) throws IOException {
+        probe.tcpBuffer = ByteBuffer.allocate(2 + RECEIVE_BUFFER_SIZE);
+        probe.tcpBuffer.putShort((short) sendBuffer.remaining());
+        probe.tcpBuffer.put(sendBuffer);
+        probe.tcpBuffer.flip();
+        SocketChannel socket = SocketChannel.open();
+        try {
+            socket.configureBlocking(false);
+            int ops = socket.connect(probe.target) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+            socket.register(selector, ops, probe);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        probe.channel = socket;
+    }
+
+    /**
+     * Advance a TCP probe: finish connecting, write the query, then read the
+     * length prefix and the reply. The reply is handed over like a datagram.
+     */
+    private void serviceTcp(SelectionKey key, Probe probe) {
+        if (probe.done || !key.isValid()) return;
+        SocketChannel socket = probe.channel;
+        ByteBuffer buf = probe.tcpBuffer;
+        try {
+            if (key.isConnectable()) {
+                // Not connected yet: stay registered for OP_CONNECT
+                if (socket.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                socket.write(buf);
+                if (!buf.hasRemaining()) {
+                    // Reuse the buffer for the reply, length prefix first
+                    buf.clear();
+                    buf.limit(2);
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            if (!key.isReadable()) return;
+            if (socket.read(buf) < 0) {
+                failTcp(probe, "connection closed");
+                return;
+            }
+            if (buf.hasRemaining()) return;
+            if (buf.limit() == 2) {
+                int length = buf.getShort(0) & 0xffff;
+                if (length > buf.capacity() - 2) {
+                    failTcp(probe, "reply too long");
+                    return;
+                }
+                buf.limit(2 + length);
+                if (length > 0) return;
+            }
+        } catch (IOException e) {
+            String error = e.getMessage();
+            failTcp(probe, error != null ? error : e.getClass().getSimpleName());
+            return;
+        }
+
+        long now = System.nanoTime();
+        release(probe);
+        buf.position(2);
+        if (buf.remaining() >= DnsWireCodec.HEADER_LENGTH && (buf.getShort(2) & 0xffff) == probe.txid) {
+            // Offsets in the reply are relative to its start
+            handler.onResponse(probe, buf.slice(), now - probe.sentAtNanos);
+        } else {
+            handler.onError(probe, "mismatched reply");
+        }
+    }
+
+    private void failTcp(Probe probe, String error) {
+        release(probe);
+        handler.onError(probe, error);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * Open a non-blocking UDP socket on a random source port, registered
+     * for reads. Falls back to a port of the system's choosing if the
+     * random ones are taken.
+     */
+    private PooledSocket openSocket(long now) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            boolean bound = false;
+            for (int i = 0; i < BIND_ATTEMPTS && !bound; i++) {
+                int port = ThreadLocalRandom.current().nextInt(MIN_SOURCE_PORT, MAX_SOURCE_PORT + 1);
+                try {
+                    channel.bind(new InetSocketAddress(port));
+                    bound = true;
+                } catch (IOException e) {
+                    // Port in use - try another
+                }
+            }
+            if (!bound) {
+                channel.bind(null);
+            }
+            PooledSocket socket = new PooledSocket(channel, now);
+            socket.key = channel.register(selector, SelectionKey.OP_READ, socket);
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Replace pool sockets that have carried enough queries or been open
+     * long enough, and close replaced ones once their probes have expired.
+     */
+    private void rotateSockets(long now) {
+        for (int i = 0; i < sockets.length; i++) {
+            PooledSocket socket = sockets[i];
+            if (socket.sends < SOCKET_ROTATE_SENDS
+                    && (socket.sends == 0 || now - socket.openedAtNanos < SOCKET_ROTATE_NANOS)) {
+                continue;
+            }
+            try {
+                sockets[i] = openSocket(now);
+            } catch (IOException e) {
+                // Keep sending on the old socket rather than shrink the pool
+                Log.w(TAG, "socket rotation failed: " + e.getMessage());
+                socket.sends = 0;
+                socket.openedAtNanos = now;
+                continue;
+            }
+            // Stop waiting for writability; a blocked probe moves to the next socket
+            socket.key.interestOps(SelectionKey.OP_READ);
+            retired.add(socket);
+        }
+        // Retired roughly in deadline order; at worst one waits behind an older one
+        while (!retired.isEmpty() && retired.peek().lastDeadlineNanos + TICK_NANOS < now) {
+            closeQuietly(retired.poll().channel);
+        }
+    }
+
+    private void receiveAll(PooledSocket socket) {
+        DatagramChannel channel = socket.channel;
+        while (!stopped) {
+            receiveBuffer.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                Log.w(TAG, "receive failed: " + e.getMessage());
+                return;
+            }
+            if (from == null) return;
+
+            long now = System.nanoTime();
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < DnsWireCodec.HEADER_LENGTH) continue;
+
+            int txid = receiveBuffer.getShort(0) & 0xffff;
+            Probe probe = pending[txid];
+            if (probe == null || probe.socket != socket || !probe.target.equals(from)) {
+                // Late answer to an expired probe, or a spoofed/mismatched source
+                continue;
+            }
+
+            release(probe);
+            handler.onResponse(probe, receiveBuffer, now - probe.sentAtNanos);
+        }
+    }
+
+    private void expire(Probe probe) {
+        if (stopped) return;
+        release(probe);
+        handler.onTimeout(probe);
+    }
+
+    private void release(Probe probe) {
+        probe.done = true;
+        pending[probe.txid] = null;
+        inFlight--;
+        if (probe.channel != null) {
+            closeQuietly(probe.channel);
+            probe.channel = null;
+        }
+        if (maxPerPrefix != 0 && probe.prefix >= 0) {
+            int[] count = prefixInFlight.get(probe.prefix);
+            if (count != null && --count[0] <= 0) {
+                prefixInFlight.remove(probe.prefix);
+            }
+            ArrayDeque<Probe> waiting = prefixWaiting.get(probe.prefix);
+            if (waiting != null) {
+                unblocked.add(waiting.poll());
+                if (waiting.isEmpty()) {
+                    prefixWaiting.remove(probe.prefix);
+                }
+            }
+        }
+    }
+
+    private int allocateId() {
+        while (pending[nextId] != null) {
+            nextId = (nextId + 1) & (ID_SPACE - 1);
+        }
+        int id = nextId;
+        nextId = (nextId + 1) & (ID_SPACE - 1);
+        return id;
+    }
+
+    /**
+     * /24 of an IPv4 target or /48 of an IPv6 one as a map key, or -1 if
+     * the address is unresolved.
+     */
+    static long prefixOf(InetSocketAddress target) {
+        InetAddress address = target.getAddress();
+        if (address == null) return -1;
+        byte[] bytes = address.getAddress();
+        int length = bytes.length == 4 ? 3 : 6;
+        long key = 0;
+        for (int i = 0; i < length; i++) {
+            key = (key << 8) | (bytes[i] & 0xff);
+        }
+        // Keep IPv6 prefixes apart from IPv4 ones
+        return bytes.length == 4 ? key : key | (1L << 48);
+    }
+
+    /**
+     * One UDP socket of the pool and what it has carried.
+     */
+    private static final class PooledSocket {
+        final DatagramChannel channel;
+        SelectionKey key;
+        long openedAtNanos;
+        int sends;
+        // Latest deadline of a probe sent from this socket
+        long lastDeadlineNanos;
+
+        PooledSocket(DatagramChannel channel, long openedAtNanos) {
+            this.channel = channel;
+            this.openedAtNanos = openedAtNanos;
+        }
+    }
+
+    /**
+     * Hashed timer wheel. Probes are bucketed by deadline tick; completed
+     * probes are dropped lazily when their bucket comes around.
+     */
+    static class TimerWheel {
+        interface Expiry {
+            void expire(Probe probe);
+        }
+
+        private final long tickNanos;
+        private final ArrayDeque<Probe>[] slots;
+        private final int mask;
+        private long currentTick;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        TimerWheel(long tickNanos, int slotCount, long nowNanos) {
+            this.tickNanos = tickNanos;
+            this.slots = new ArrayDeque[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                slots[i] = new ArrayDeque<>();
+            }
+            this.mask = slotCount - 1;
+            this.currentTick = Math.floorDiv(nowNanos, tickNanos);
+        }
+
+        void schedule(Probe probe) {
+            // Round up, so the deadline has passed by the time its slot is visited
+            long tick = Math.max(Math.floorDiv(probe.deadlineNanos + tickNanos - 1, tickNanos), currentTick + 1);
+            slots[(int) (tick & mask)].add(probe);
+        }
+
+        void advance(long nowNanos, Expiry expiry) {
+            long targetTick = Math.floorDiv(nowNanos, tickNanos);
+            // Visiting every slot once is enough however far behind we are
+            long steps = Math.min(targetTick - currentTick, slots.length);
+            for (long i = 0; i < steps; i++) {
+                currentTick++;
+                ArrayDeque<Probe> slot = slots[(int) (currentTick & mask)];
+                for (int n = slot.size(); n > 0; n--) {
+                    Probe probe = slot.poll();
+                    if (probe.done) continue;
+                    if (probe.deadlineNanos <= nowNanos) {
+                        expiry.expire(probe);
+                    } else {
+                        // Deadline is a later turn of the wheel
+                        slot.add(probe);
+                    }
+                }
+            }
+            currentTick = Math.max(currentTick, targetTick);
+        }
+    }
+}
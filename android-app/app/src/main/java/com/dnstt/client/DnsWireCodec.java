@@ -0,0 +1,538 @@
+package com.dnstt.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal DNS wire codec for resolver probes.
+ *
+ * Queries are written straight into a caller-owned ByteBuffer and replies are
+ * parsed in place into a reusable {@link Response}, reading only the header,
+ * the question echo and the answer section. Nothing here allocates per probe,
+ * so a scan of thousands of resolvers creates no garbage of its own.
+ */
+final class DnsWireCodec {
+    static final int HEADER_LENGTH = 12;
+
+    static final int TYPE_A = 1;
+    static final int TYPE_TXT = 16;
+    static final int TYPE_OPT = 41;
+    static final int CLASS_IN = 1;
+
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_FORMERR = 1;
+    static final int RCODE_SERVFAIL = 2;
+    static final int RCODE_NXDOMAIN = 3;
+    static final int RCODE_NOTIMP = 4;
+    static final int RCODE_REFUSED = 5;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_AA = 0x0400;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+
+    // Nonce labels are '0' followed by 16 hex digits. '0' is outside the
+    // base32 alphabet, so dnstt-server answers them with an immediate NXDOMAIN
+    // instead of treating them as a tunnel poll.
+    static final int NONCE_LABEL_LENGTH = 17;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    // Tunnel polls are laid out like dnstt-client's empty polls: an 8-byte
+    // ClientID, a padding prefix byte (224 + n) and n random bytes, base32
+    // encoded in lower case into a single label
+    private static final int POLL_PADDING = 8;
+    private static final int POLL_PAYLOAD_LENGTH = 8 + 1 + POLL_PADDING;
+    static final int POLL_LABEL_LENGTH = (POLL_PAYLOAD_LENGTH * 8 + 4) / 5;
+    private static final byte[] BASE32 = "abcdefghijklmnopqrstuvwxyz234567".getBytes();
+    // dnstt-server rejects tunnel queries that advertise less than this
+    static final int TUNNEL_EDNS_PAYLOAD_SIZE = 4096;
+
+    // Size probe labels are '1', four decimal digits giving the TXT payload
+    // length wanted and 16 hex digits of nonce. dnstt-server answers them
+    // with exactly that many bytes of TXT data, or with no answer and TC = 1
+    // if the reply would exceed the server's -mtu or the UDP payload size the
+    // resolver advertised. Four digits bound the payload a label can ask for.
+    static final int SIZE_PROBE_LABEL_LENGTH = 21;
+    static final int MAX_SIZE_PROBE_PAYLOAD = 9999;
+
+    // Name probes start with a label of '8' and 16 hex digits of nonce,
+    // followed by filler labels of base32 symbols derived from the nonce.
+    // dnstt-server answers with the wire format of every label it received
+    // before the domain, so any rewrite along the way shows up in the echo.
+    static final int NAME_PROBE_LABEL_LENGTH = 17;
+    static final int MAX_NAME_LENGTH = 255;
+    static final int MAX_LABEL_LENGTH = 63;
+
+    private static final String[] RCODE_NAMES = {
+        "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"
+    };
+
+    private DnsWireCodec() {}
+
+    /**
+     * Fields of a parsed reply. Reused across probes; valid until the next parse.
+     */
+    static final class Response {
+        int id;
+        int flags;
+        int questionCount;
+        int answerCount;
+        int authorityCount;
+        int additionalCount;
+        // Absolute offsets of the first question's name and its end, or -1
+        int questionOffset;
+        int questionEnd;
+        int questionType;
+        // Type of the first answer RR, or -1 if there is none
+        int firstAnswerType;
+        // Absolute offset and length of the first answer's RDATA, or -1
+        int firstAnswerDataOffset;
+        int firstAnswerDataLength;
+        // Smallest TTL across the answer section, or -1 if there are no answers
+        long minAnswerTtl;
+
+        boolean isResponse() {
+            return (flags & FLAG_QR) != 0;
+        }
+
+        boolean isAuthoritative() {
+            return (flags & FLAG_AA) != 0;
+        }
+
+        boolean isTruncated() {
+            return (flags & FLAG_TC) != 0;
+        }
+
+        int rcode() {
+            return flags & 0x000f;
+        }
+    }
+
+    /**
+     * Encode a dotted name (without trailing dot) into wire format.
+     */
+    static byte[] encodeName(String name) {
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        byte[] out = new byte[name.length() + 2];
+        int pos = 0;
+        int labelStart = 0;
+        while (labelStart <= name.length()) {
+            int dot = name.indexOf('.', labelStart);
+            if (dot < 0) dot = name.length();
+            int len = dot - labelStart;
+            if (len == 0 || len > 63) {
+                throw new IllegalArgumentException("invalid label in " + name);
+            }
+            out[pos++] = (byte) len;
+            for (int i = labelStart; i < dot; i++) {
+                out[pos++] = (byte) name.charAt(i);
+            }
+            labelStart = dot + 1;
+        }
+        out[pos] = 0;
+        if (out.length > 255) {
+            throw new IllegalArgumentException("name too long: " + name);
+        }
+        return out;
+    }
+
+    /**
+     * Write a recursive query for qname/qtype into out and flip it for sending.
+     *
+     * @param ednsPayloadSize UDP payload size to advertise in an OPT RR, or 0 for none
+     */
+    static void writeQuery(ByteBuffer out, int txid, byte[] qname, int qtype, int ednsPayloadSize) {
+        writeHeader(out, txid, ednsPayloadSize);
+        out.put(qname);
+        writeQuestionTail(out, qtype, ednsPayloadSize);
+    }
+
+    /**
+     * Write a query for a fresh nonce label under domain, so that no resolver
+     * can answer it from cache.
+     */
+    static void writeNonceQuery(ByteBuffer out, int txid, long nonce, byte[] domain, int qtype, int ednsPayloadSize) {
+        writeHeader(out, txid, ednsPayloadSize);
+        out.put((byte) NONCE_LABEL_LENGTH);
+        out.put((byte) '0');
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            out.put(HEX[(int) (nonce >>> shift) & 0xf]);
+        }
+        out.put(domain);
+        writeQuestionTail(out, qtype, ednsPayloadSize);
+    }
+
+    /**
+     * Write a TXT query shaped like a dnstt-client poll carrying no packets,
+     * for a fresh ClientID, so that dnstt-server answers it with a (possibly
+     * empty) downstream payload.
+     */
+    static void writePollQuery(ByteBuffer out, int txid, long clientId, long padding, byte[] domain) {
+        writeHeader(out, txid, TUNNEL_EDNS_PAYLOAD_SIZE);
+        out.put((byte) POLL_LABEL_LENGTH);
+        for (int i = 0; i < POLL_LABEL_LENGTH; i++) {
+            out.put(BASE32[pollSymbol(clientId, padding, i)]);
+        }
+        out.put(domain);
+        writeQuestionTail(out, TYPE_TXT, TUNNEL_EDNS_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Write a TXT size probe under domain asking dnstt-server for a reply
+     * carrying payloadSize bytes of TXT data.
+     */
+    static void writeSizeProbeQuery(ByteBuffer out, int txid, long nonce, int payloadSize, byte[] domain) {
+        if (payloadSize < 0 || payloadSize > MAX_SIZE_PROBE_PAYLOAD) {
+            throw new IllegalArgumentException("size probe payload out of range: " + payloadSize);
+        }
+        writeHeader(out, txid, TUNNEL_EDNS_PAYLOAD_SIZE);
+        out.put((byte) SIZE_PROBE_LABEL_LENGTH);
+        out.put((byte) '1');
+        for (int div = 1000; div > 0; div /= 10) {
+            out.put((byte) ('0' + (payloadSize / div) % 10));
+        }
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            out.put(HEX[(int) (nonce >>> shift) & 0xf]);
+        }
+        out.put(domain);
+        writeQuestionTail(out, TYPE_TXT, TUNNEL_EDNS_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Lay out the labels of a name probe in front of a domain of domainLength
+     * wire octets, so the whole name is at most nameLength octets with filler
+     * labels of at most labelLength. Writes the labels into prefix (at least
+     * MAX_NAME_LENGTH bytes) and returns their length; the probe's name is
+     * then that many octets plus domainLength.
+     */
+    static int nameProbePrefix(byte[] prefix, long nonce, int nameLength, int labelLength, int domainLength) {
+        int pos = 0;
+        prefix[pos++] = (byte) NAME_PROBE_LABEL_LENGTH;
+        prefix[pos++] = (byte) '8';
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            prefix[pos++] = HEX[(int) (nonce >>> shift) & 0xf];
+        }
+        int room = Math.min(nameLength, MAX_NAME_LENGTH) - domainLength - pos;
+        long state = nonce;
+        while (room >= 2) {
+            int length = Math.min(labelLength, room - 1);
+            prefix[pos++] = (byte) length;
+            for (int i = 0; i < length; i++) {
+                state = state * 6364136223846793005L + 1442695040888963407L;
+                prefix[pos++] = BASE32[(int) (state >>> 59)];
+            }
+            room -= length + 1;
+        }
+        return pos;
+    }
+
+    /**
+     * Write a TXT name probe made of the first prefixLength bytes of prefix
+     * (see {@link #nameProbePrefix}) followed by domain.
+     */
+    static void writeNameProbeQuery(ByteBuffer out, int txid, byte[] prefix, int prefixLength, byte[] domain) {
+        writeHeader(out, txid, TUNNEL_EDNS_PAYLOAD_SIZE);
+        out.put(prefix, 0, prefixLength);
+        out.put(domain);
+        writeQuestionTail(out, TYPE_TXT, TUNNEL_EDNS_PAYLOAD_SIZE);
+    }
+
+    private static void writeHeader(ByteBuffer out, int txid, int ednsPayloadSize) {
+        out.clear();
+        out.putShort((short) txid);
+        out.putShort((short) FLAG_RD);
+        out.putShort((short) 1);                          // QDCOUNT
+        out.putShort((short) 0);                          // ANCOUNT
+        out.putShort((short) 0);                          // NSCOUNT
+        out.putShort((short) (ednsPayloadSize > 0 ? 1 : 0)); // ARCOUNT
+    }
+
+    private static void writeQuestionTail(ByteBuffer out, int qtype, int ednsPayloadSize) {
+        out.putShort((short) qtype);
+        out.putShort((short) CLASS_IN);
+        if (ednsPayloadSize > 0) {
+            out.put((byte) 0);                            // root name
+            out.putShort((short) TYPE_OPT);
+            out.putShort((short) ednsPayloadSize);        // requester's UDP payload size
+            out.putInt(0);                                // extended RCODE and flags
+            out.putShort((short) 0);                      // no options
+        }
+        out.flip();
+    }
+
+    /**
+     * Parse the reply in buf (position to limit) into out.
+     *
+     * @return false if the message is too short or structurally invalid
+     */
+    static boolean parse(ByteBuffer buf, Response out) {
+        int base = buf.position();
+        int end = buf.limit();
+        if (end - base < HEADER_LENGTH) return false;
+
+        out.id = buf.getShort(base) & 0xffff;
+        out.flags = buf.getShort(base + 2) & 0xffff;
+        out.questionCount = buf.getShort(base + 4) & 0xffff;
+        out.answerCount = buf.getShort(base + 6) & 0xffff;
+        out.authorityCount = buf.getShort(base + 8) & 0xffff;
+        out.additionalCount = buf.getShort(base + 10) & 0xffff;
+        out.questionOffset = -1;
+        out.questionEnd = -1;
+        out.questionType = -1;
+        out.firstAnswerType = -1;
+        out.firstAnswerDataOffset = -1;
+        out.firstAnswerDataLength = -1;
+        out.minAnswerTtl = -1;
+
+        int pos = base + HEADER_LENGTH;
+        for (int q = 0; q < out.questionCount; q++) {
+            int nameEnd = skipName(buf, pos, end);
+            if (nameEnd < 0 || nameEnd + 4 > end) return false;
+            if (q == 0) {
+                out.questionOffset = pos;
+                out.questionEnd = nameEnd;
+                out.questionType = buf.getShort(nameEnd) & 0xffff;
+            }
+            pos = nameEnd + 4;
+        }
+
+        for (int a = 0; a < out.answerCount; a++) {
+            int nameEnd = skipName(buf, pos, end);
+            if (nameEnd < 0 || nameEnd + 10 > end) return false;
+            int type = buf.getShort(nameEnd) & 0xffff;
+            long ttl = buf.getInt(nameEnd + 4) & 0xffffffffL;
+            int rdLength = buf.getShort(nameEnd + 8) & 0xffff;
+            if (nameEnd + 10 + rdLength > end) return false;
+            if (a == 0) {
+                out.firstAnswerType = type;
+                out.firstAnswerDataOffset = nameEnd + 10;
+                out.firstAnswerDataLength = rdLength;
+            }
+            if (out.minAnswerTtl < 0 || ttl < out.minAnswerTtl) {
+                out.minAnswerTtl = ttl;
+            }
+            pos = nameEnd + 10 + rdLength;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the parsed reply echoes the question qname/qtype.
+     */
+    static boolean questionEquals(ByteBuffer buf, Response resp, byte[] qname, int qtype) {
+        return resp.questionOffset >= 0 && resp.questionType == qtype
+                && nameEquals(buf, resp.questionOffset, resp.questionEnd, qname);
+    }
+
+    /**
+     * Whether the parsed reply echoes a question written by {@link #writeNonceQuery}.
+     */
+    static boolean nonceQuestionEquals(ByteBuffer buf, Response resp, long nonce, byte[] domain, int qtype) {
+        int pos = resp.questionOffset;
+        if (pos < 0 || resp.questionType != qtype
+                || resp.questionEnd - pos != 1 + NONCE_LABEL_LENGTH + domain.length
+                || buf.get(pos) != NONCE_LABEL_LENGTH || buf.get(pos + 1) != '0') {
+            return false;
+        }
+        pos += 2;
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            if (toLower(buf.get(pos++)) != HEX[(int) (nonce >>> shift) & 0xf]) return false;
+        }
+        return nameEquals(buf, pos, resp.questionEnd, domain);
+    }
+
+    /**
+     * Whether the parsed reply echoes a question written by {@link #writePollQuery}.
+     */
+    static boolean pollQuestionEquals(ByteBuffer buf, Response resp, long clientId, long padding, byte[] domain) {
+        int pos = resp.questionOffset;
+        if (pos < 0 || resp.questionType != TYPE_TXT
+                || resp.questionEnd - pos != 1 + POLL_LABEL_LENGTH + domain.length
+                || buf.get(pos) != POLL_LABEL_LENGTH) {
+            return false;
+        }
+        pos++;
+        for (int i = 0; i < POLL_LABEL_LENGTH; i++) {
+            if (toLower(buf.get(pos++)) != BASE32[pollSymbol(clientId, padding, i)]) return false;
+        }
+        return nameEquals(buf, pos, resp.questionEnd, domain);
+    }
+
+    /**
+     * Length of dnstt-server's untruncated reply to a size probe for
+     * payloadSize bytes under a domain of domainLength wire octets: header,
+     * question, one TXT answer with a compressed name, and an OPT RR.
+     */
+    static int sizeProbeReplyLength(int payloadSize, int domainLength) {
+        int strings = Math.max(1, (payloadSize + 254) / 255);
+        if (payloadSize > 0 && payloadSize % 255 == 0) {
+            strings++; // EncodeRDataTXT always ends with a short string
+        }
+        int question = 1 + SIZE_PROBE_LABEL_LENGTH + domainLength + 4;
+        return HEADER_LENGTH + question + 2 + 10 + payloadSize + strings + 11;
+    }
+
+    /**
+     * Whether the message in buf has the TC bit set, read from the header
+     * alone so that it works on replies too short to parse.
+     */
+    static boolean isTruncated(ByteBuffer buf) {
+        return buf.remaining() >= HEADER_LENGTH && (buf.getShort(buf.position() + 2) & FLAG_TC) != 0;
+    }
+
+    /**
+     * Whether the parsed reply echoes a question written by {@link #writeSizeProbeQuery}.
+     */
+    static boolean sizeProbeQuestionEquals(ByteBuffer buf, Response resp, long nonce, int payloadSize, byte[] domain) {
+        int pos = resp.questionOffset;
+        if (pos < 0 || resp.questionType != TYPE_TXT
+                || resp.questionEnd - pos != 1 + SIZE_PROBE_LABEL_LENGTH + domain.length
+                || buf.get(pos) != SIZE_PROBE_LABEL_LENGTH || buf.get(pos + 1) != '1') {
+            return false;
+        }
+        pos += 2;
+        for (int div = 1000; div > 0; div /= 10) {
+            if (buf.get(pos++) != '0' + (payloadSize / div) % 10) return false;
+        }
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            if (toLower(buf.get(pos++)) != HEX[(int) (nonce >>> shift) & 0xf]) return false;
+        }
+        return nameEquals(buf, pos, resp.questionEnd, domain);
+    }
+
+    /**
+     * Whether the parsed reply echoes a question written by
+     * {@link #writeNameProbeQuery} and its first answer is a TXT record
+     * holding exactly the same labels, meaning the name reached
+     * dnstt-server unchanged apart from ASCII case.
+     */
+    static boolean nameProbeEchoed(ByteBuffer buf, Response resp, byte[] prefix, int prefixLength, byte[] domain) {
+        int pos = resp.questionOffset;
+        if (pos < 0 || resp.questionType != TYPE_TXT
+                || resp.questionEnd - pos != prefixLength + domain.length
+                || !nameEquals(buf, pos + prefixLength, resp.questionEnd, domain)) {
+            return false;
+        }
+        for (int i = 0; i < prefixLength; i++) {
+            if (toLower(buf.get(pos + i)) != toLower(prefix[i])) return false;
+        }
+        if (resp.firstAnswerType != TYPE_TXT || resp.firstAnswerDataLength < 0) return false;
+        pos = resp.firstAnswerDataOffset;
+        int end = pos + resp.firstAnswerDataLength;
+        int matched = 0;
+        while (pos < end) {
+            int stringEnd = pos + 1 + (buf.get(pos) & 0xff);
+            if (stringEnd > end) return false;
+            for (pos++; pos < stringEnd; pos++) {
+                if (matched == prefixLength || toLower(buf.get(pos)) != toLower(prefix[matched++])) return false;
+            }
+        }
+        return matched == prefixLength;
+    }
+
+    /**
+     * Total length of the character-strings in the first answer if it is a
+     * well-formed TXT record, or -1 otherwise.
+     */
+    static int txtPayloadLength(ByteBuffer buf, Response resp) {
+        if (resp.firstAnswerType != TYPE_TXT || resp.firstAnswerDataLength < 0) return -1;
+        int pos = resp.firstAnswerDataOffset;
+        int end = pos + resp.firstAnswerDataLength;
+        int total = 0;
+        while (pos < end) {
+            int stringLength = buf.get(pos) & 0xff;
+            pos += 1 + stringLength;
+            if (pos > end) return -1;
+            total += stringLength;
+        }
+        return total;
+    }
+
+    /**
+     * Whether the first answer is a TXT record whose strings concatenate to a
+     * well-formed dnstt downstream payload: zero or more packets, each with a
+     * 16-bit big-endian length prefix, filling the data exactly.
+     */
+    static boolean isTunnelPayload(ByteBuffer buf, Response resp) {
+        if (resp.firstAnswerType != TYPE_TXT || resp.firstAnswerDataLength <= 0) return false;
+        int pos = resp.firstAnswerDataOffset;
+        int end = pos + resp.firstAnswerDataLength;
+        int headerBytes = 0;   // length prefix bytes read for the current packet
+        int packetLength = 0;
+        int remaining = 0;     // bytes of the current packet still to skip
+        while (pos < end) {
+            int stringLength = buf.get(pos++) & 0xff;
+            int stringEnd = pos + stringLength;
+            if (stringEnd > end) return false;
+            while (pos < stringEnd) {
+                if (remaining > 0) {
+                    int take = Math.min(remaining, stringEnd - pos);
+                    remaining -= take;
+                    pos += take;
+                } else {
+                    packetLength = (packetLength << 8) | (buf.get(pos++) & 0xff);
+                    if (++headerBytes == 2) {
+                        remaining = packetLength;
+                        headerBytes = 0;
+                        packetLength = 0;
+                    }
+                }
+            }
+        }
+        return headerBytes == 0 && remaining == 0;
+    }
+
+    static String rcodeName(int rcode) {
+        return rcode >= 0 && rcode < RCODE_NAMES.length ? RCODE_NAMES[rcode] : "RCODE" + rcode;
+    }
+
+    /**
+     * Index into the base32 alphabet of symbol i of a poll label.
+     */
+    private static int pollSymbol(long clientId, long padding, int i) {
+        int bit = i * 5;
+        int hi = pollByte(clientId, padding, bit >> 3);
+        int lo = (bit >> 3) + 1 < POLL_PAYLOAD_LENGTH ? pollByte(clientId, padding, (bit >> 3) + 1) : 0;
+        return (((hi << 8) | lo) >> (11 - (bit & 7))) & 0x1f;
+    }
+
+    private static int pollByte(long clientId, long padding, int index) {
+        if (index < 8) return (int) (clientId >>> (56 - index * 8)) & 0xff;
+        if (index == 8) return 224 + POLL_PADDING;
+        return (int) (padding >>> (56 - (index - 9) * 8)) & 0xff;
+    }
+
+    /**
+     * Return the offset just past the name starting at pos, or -1 if malformed.
+     */
+    private static int skipName(ByteBuffer buf, int pos, int end) {
+        while (pos < end) {
+            int len = buf.get(pos) & 0xff;
+            if (len == 0) return pos + 1;
+            if ((len & 0xc0) == 0xc0) {
+                // Compression pointer ends the name
+                return pos + 2 <= end ? pos + 2 : -1;
+            }
+            if ((len & 0xc0) != 0) return -1;
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * Compare an uncompressed name in buf with expected, ignoring ASCII case
+     * (resolvers may echo 0x20-randomised case).
+     */
+    private static boolean nameEquals(ByteBuffer buf, int start, int nameEnd, byte[] expected) {
+        if (nameEnd - start != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (toLower(buf.get(start + i)) != toLower(expected[i])) return false;
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+}
@@ -36,6 +36,9 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
     public static final String EXTRA_DOMAIN = "domain";
     public static final String EXTRA_PUBKEY = "pubkey";
     public static final String EXTRA_TUNNELS = "tunnels";
+    public static final String EXTRA_MAX_NAME_LENGTH = "max_name_length";
+    public static final String EXTRA_MAX_LABEL_LENGTH = "max_label_length";
+    public static final String EXTRA_MAX_QPS = "max_qps";
 
     private ParcelFileDescriptor vpnInterface;
     private Client dnsttClient;
@@ -80,19 +83,29 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
             String domain = intent.getStringExtra(EXTRA_DOMAIN);
             String pubkey = intent.getStringExtra(EXTRA_PUBKEY);
             int tunnels = intent.getIntExtra(EXTRA_TUNNELS, 8);
+            int maxNameLength = intent.getIntExtra(EXTRA_MAX_NAME_LENGTH, 0);
+            int maxLabelLength = intent.getIntExtra(EXTRA_MAX_LABEL_LENGTH, 0);
+            int maxQps = intent.getIntExtra(EXTRA_MAX_QPS, 0);
 
             log("Starting VPN with:");
             log("  Transport: " + transportType + " via " + transportAddr);
             log("  Domain: " + domain);
             log("  Tunnels: " + tunnels);
+            if (maxNameLength > 0) {
+                log("  Query names: " + maxNameLength + " bytes, labels " + maxLabelLength);
+            }
+            if (maxQps > 0) {
+                log("  Query pacing: " + maxQps + "/s");
+            }
 
-            startVpn(transportType, transportAddr, domain, pubkey, tunnels);
+            startVpn(transportType, transportAddr, domain, pubkey, tunnels, maxNameLength, maxLabelLength, maxQps);
         }
 
         return START_STICKY;
     }
 
-    private void startVpn(String transportType, String transportAddr, String domain, String pubkey, int tunnels) {
+    private void startVpn(String transportType, String transportAddr, String domain, String pubkey, int tunnels,
+                          int maxNameLength, int maxLabelLength, int maxQps) {
         // Start foreground service with proper type for Android 14+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
             startForeground(NOTIFICATION_ID, createNotification("Connecting..."),
@@ -113,7 +126,10 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
         config.setPubkeyHex(pubkey);
         config.setListenAddr("127.0.0.1:1080");
         config.setTunnels(tunnels);
-        config.setMTU(1232);
+        // Name limits and query rate measured for this resolver in Phase 1; 0 keeps the defaults
+        config.setMaxNameLength(maxNameLength);
+        config.setMaxLabelLength(maxLabelLength);
+        config.setMaxQPS(maxQps);
         config.setUTLSFingerprint("none"); // Use standard TLS - uTLS causes errors on Android
         config.setUseZstd(true); // Enable zstd compression (server has it on by default)
         log("Zstd compression: enabled");
@@ -0,0 +1,359 @@
+package com.dnstt.client;
+
+import com.dnstt.client.models.ResolverAddress;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Blocking probes of DNS over HTTPS and DNS over TLS resolvers.
+ *
+ * Each probe first sets up the connection the tunnel would use, then sends
+ * all of its samples at once over that connection, so the round trips show
+ * the steady state of a long-lived tunnel rather than handshake cost. DoH
+ * samples are multiplexed as concurrent streams of one HTTP/2 connection
+ * from a pool shared by every scan, so endpoints on the same host reuse it.
+ * DoT samples are pipelined back to back on one TLS connection and matched
+ * to replies by transaction ID, since resolvers may answer out of order.
+ */
+final class EncryptedDnsProber {
+    private static final MediaType DNS_MESSAGE = MediaType.get("application/dns-message");
+    private static final int DOT_PORT = 853;
+    private static final int MAX_QUERY_SIZE = 512;
+    private static final int MAX_REPLY_SIZE = 65535;
+
+    // Shared by every scan; per-scan clients derived with newBuilder() keep
+    // the same pool and dispatcher
+    private static final OkHttpClient HTTP_CLIENT;
+
+    static {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(256);
+        // Let every sample of a probe be in flight on one connection at once
+        dispatcher.setMaxRequestsPerHost(16);
+        HTTP_CLIENT = new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(16, 5, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .retryOnConnectionFailure(false)
+                .build();
+    }
+
+    /**
+     * Builds queries for a probe. Called on the probing thread.
+     */
+    interface QueryWriter {
+        /**
+         * Write a query with the given transaction ID into out and flip it.
+         *
+         * @return The nonce the query was built from
+         */
+        long writeQuery(int txid, ByteBuffer out);
+    }
+
+    /**
+     * Outcome of one sample.
+     */
+    static final class Reply {
+        long nonce;
+        // The DNS message, or null if the sample failed
+        ByteBuffer message;
+        long rttNanos;
+        String error;
+        boolean timedOut;
+    }
+
+    private final FastDnsTester.EncryptedTransport transport;
+    private final OkHttpClient httpClient;
+    private final int timeoutMs;
+
+    EncryptedDnsProber(FastDnsTester.EncryptedTransport transport, int timeoutMs) {
+        this.transport = transport;
+        this.timeoutMs = timeoutMs;
+        this.httpClient = transport == FastDnsTester.EncryptedTransport.DOH
+                ? HTTP_CLIENT.newBuilder()
+                    .connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .callTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .build()
+                : null;
+    }
+
+    /**
+     * Send samples queries to endpoint, a DoH URL or a DoT host[:port].
+     * Blocks until every sample has an outcome, the timeout passes or
+     * handle is cancelled, which closes the probe's connection at once.
+     */
+    Reply[] probe(String endpoint, int samples, FastDnsTester.ScanHandle handle, QueryWriter writer) {
+        Reply[] replies = new Reply[samples];
+        ByteBuffer query = ByteBuffer.allocate(MAX_QUERY_SIZE);
+        for (int i = 0; i < samples; i++) {
+            replies[i] = new Reply();
+        }
+        if (transport == FastDnsTester.EncryptedTransport.DOH) {
+            probeDoh(endpoint, replies, handle, writer, query);
+        } else {
+            probeDot(endpoint, replies, handle, writer, query);
+        }
+        return replies;
+    }
+
+    private void probeDoh(String endpoint, Reply[] replies, FastDnsTester.ScanHandle handle, QueryWriter writer,
+                          ByteBuffer query) {
+        HttpUrl url = HttpUrl.parse(endpoint);
+        if (url == null) {
+            failAll(replies, "invalid URL", false);
+            return;
+        }
+        // Open the HTTP/2 connection with one query of our own, so the
+        // samples below share it instead of racing to open their own
+        Reply warmUp = new Reply();
+        long warmUpStart = System.nanoTime();
+        Call warmUpCall = httpClient.newCall(dohRequest(url, writer, query, warmUp));
+        Runnable cancelWarmUp = warmUpCall::cancel;
+        handle.onCancel(cancelWarmUp);
+        try (Response response = warmUpCall.execute()) {
+            readDohResponse(response, warmUp, warmUpStart);
+        } catch (IOException e) {
+            fail(warmUp, e);
+        } finally {
+            handle.removeOnCancel(cancelWarmUp);
+        }
+        if (warmUp.message == null) {
+            failAll(replies, warmUp.error, warmUp.timedOut);
+            return;
+        }
+
+        CountDownLatch done = new CountDownLatch(replies.length);
+        Call[] calls = new Call[replies.length];
+        // A cancelled call fails at once, which counts down the latch
+        Runnable cancelCalls = () -> {
+            for (Call call : calls) {
+                if (call != null) {
+                    call.cancel();
+                }
+            }
+        };
+        for (int i = 0; i < replies.length; i++) {
+            calls[i] = httpClient.newCall(dohRequest(url, writer, query, replies[i]));
+        }
+        handle.onCancel(cancelCalls);
+        for (int i = 0; i < replies.length; i++) {
+            Reply reply = replies[i];
+            long start = System.nanoTime();
+            calls[i].enqueue(new okhttp3.Callback() {
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (Response r = response) {
+                        readDohResponse(r, reply, start);
+                    } catch (IOException e) {
+                        fail(reply, e);
+                    }
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    fail(reply, e);
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            // callTimeout bounds every call; the margin covers dispatch
+            done.await(timeoutMs + 1000L, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            handle.removeOnCancel(cancelCalls);
+        }
+        for (Reply reply : replies) {
+            complete(reply, null, 0, "timed out", true);
+        }
+    }
+
+    /**
+     * POST the next query as application/dns-message (RFC 8484), with
+     * transaction ID 0 as the RFC recommends; every query carries a nonce.
+     */
+    private static Request dohRequest(HttpUrl url, QueryWriter writer, ByteBuffer query, Reply reply) {
+        reply.nonce = writer.writeQuery(0, query);
+        byte[] body = new byte[query.remaining()];
+        query.get(body);
+        return new Request.Builder()
+                .url(url)
+                .header("Accept", "application/dns-message")
+                .post(RequestBody.create(body, DNS_MESSAGE))
+                .build();
+    }
+
+    private static void readDohResponse(Response response, Reply reply, long startNanos) throws IOException {
+        ResponseBody body = response.body();
+        if (!response.isSuccessful() || body == null) {
+            complete(reply, null, 0, "HTTP " + response.code(), false);
+            return;
+        }
+        byte[] message = body.bytes();
+        complete(reply, ByteBuffer.wrap(message), System.nanoTime() - startNanos, null, false);
+    }
+
+    private void probeDot(String endpoint, Reply[] replies, FastDnsTester.ScanHandle handle, QueryWriter writer,
+                          ByteBuffer query) {
+        String host = endpoint;
+        int port = DOT_PORT;
+        ResolverAddress literal = ResolverAddress.parse(endpoint, DOT_PORT);
+        int colon = endpoint.lastIndexOf(':');
+        if (literal != null) {
+            host = literal.getHost();
+            port = literal.getPort();
+        } else if (colon > 0 && endpoint.indexOf(':') == colon) {
+            host = endpoint.substring(0, colon);
+            try {
+                port = Integer.parseInt(endpoint.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                failAll(replies, "invalid port", false);
+                return;
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Socket raw = new Socket();
+        // Closing the raw socket fails a blocked connect, handshake or read
+        Runnable close = () -> {
+            try {
+                raw.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        };
+        handle.onCancel(close);
+        try {
+            raw.connect(new InetSocketAddress(host, port), timeoutMs);
+            raw.setSoTimeout(timeoutMs);
+            raw.setTcpNoDelay(true);
+            try (SSLSocket socket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                    .createSocket(raw, host, port, true)) {
+                // Check the certificate names the endpoint, as the tunnel's TLS client does
+                SSLParameters parameters = socket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                socket.setSSLParameters(parameters);
+                socket.startHandshake();
+                pipelineDot(socket, replies, writer, query, deadline);
+            }
+        } catch (SocketTimeoutException e) {
+            failAll(replies, "timed out", true);
+        } catch (IOException | RuntimeException e) {
+            failAll(replies, errorMessage(e), false);
+        } finally {
+            handle.removeOnCancel(close);
+            close.run();
+        }
+    }
+
+    /**
+     * Write every sample in one go, each behind its two-octet length prefix
+     * (RFC 7858), then read replies in whatever order they come back.
+     */
+    private static void pipelineDot(SSLSocket socket, Reply[] replies, QueryWriter writer, ByteBuffer query,
+                                    long deadlineNanos) throws IOException {
+        ByteBuffer batch = ByteBuffer.allocate(replies.length * (2 + MAX_QUERY_SIZE));
+        for (int i = 0; i < replies.length; i++) {
+            replies[i].nonce = writer.writeQuery(i, query);
+            batch.putShort((short) query.remaining());
+            batch.put(query);
+        }
+        OutputStream out = socket.getOutputStream();
+        long sentAt = System.nanoTime();
+        out.write(batch.array(), 0, batch.position());
+        out.flush();
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        int pending = replies.length;
+        try {
+            while (pending > 0) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMs <= 0) {
+                    break;
+                }
+                socket.setSoTimeout((int) remainingMs);
+                int length = in.readUnsignedShort();
+                byte[] message = new byte[Math.min(length, MAX_REPLY_SIZE)];
+                in.readFully(message);
+                long rtt = System.nanoTime() - sentAt;
+                int txid = message.length >= 2 ? ((message[0] & 0xff) << 8) | (message[1] & 0xff) : -1;
+                if (txid < 0 || txid >= replies.length || replies[txid].message != null) {
+                    continue;
+                }
+                replies[txid].message = ByteBuffer.wrap(message);
+                replies[txid].rttNanos = rtt;
+                pending--;
+            }
+        } catch (SocketTimeoutException e) {
+            // Unanswered samples time out below
+        }
+        for (Reply reply : replies) {
+            if (reply.message == null) {
+                reply.error = "timed out";
+                reply.timedOut = true;
+            }
+        }
+    }
+
+    private static void fail(Reply reply, IOException e) {
+        // OkHttp reports an expired call timeout as an InterruptedIOException
+        boolean timedOut = e instanceof InterruptedIOException;
+        complete(reply, null, 0, timedOut ? "timed out" : errorMessage(e), timedOut);
+    }
+
+    /**
+     * Record the first outcome of a DoH sample. Calls that finish after the
+     * probe has given up on them are ignored.
+     */
+    private static void complete(Reply reply, ByteBuffer message, long rttNanos, String error, boolean timedOut) {
+        synchronized (reply) {
+            if (reply.message != null || reply.error != null) {
+                return;
+            }
+            reply.message = message;
+            reply.rttNanos = rttNanos;
+            reply.error = error;
+            reply.timedOut = timedOut;
+        }
+    }
+
+    private static void failAll(Reply[] replies, String error, boolean timedOut) {
+        for (Reply reply : replies) {
+            reply.error = error;
+            reply.timedOut = timedOut;
+        }
+    }
+
+    private static String errorMessage(Exception e) {
+        String message = e.getMessage();
+        return message != null ? message : e.getClass().getSimpleName();
+    }
+}
@@ -2,199 +2,1653 @@ package com.dnstt.client;
 
 import android.util.Log;
 
-import org.xbill.DNS.*;
+import com.dnstt.client.models.ResolverAddress;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.time.Duration;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Fast native Java DNS resolver tester using dnsjava library.
+ * Fast native Java DNS resolver tester.
  * Much more efficient than going through gomobile for thousands of DNS queries.
+ * Queries are multiplexed over a small rotating pool of UDP sockets by
+ * {@link DnsProbeEngine} and encoded/decoded in place by {@link DnsWireCodec}. DNS over HTTPS and DNS
+ * over TLS endpoints are probed over reused connections by
+ * {@link EncryptedDnsProber}.
  */
 public class FastDnsTester {
     private static final String TAG = "FastDnsTester";
 
+    // TTL dnstt-server puts on its answers; anything lower was served from a cache
+    private static final long AUTHORITATIVE_TTL = 60;
+    // No resolver can reach a remote authoritative server and back this fast
+    private static final long CACHE_LATENCY_FLOOR_MS = 3;
+    // Resolvers that lose more probes than this rarely hold a tunnel up
+    private static final double MAX_GOOD_LOSS_RATE = 0.5;
+    // Lower bound for the adaptive cut-off, so a burst of nearby resolvers
+    // cannot squeeze out everything beyond the local network
+    private static final long MIN_ADAPTIVE_TIMEOUT_MS = 300;
+    // The cut-off never drops below this fraction of the configured timeout
+    private static final double MIN_ADAPTIVE_TIMEOUT_FRACTION = 0.5;
+    // dnstt-server's default -mtu; replies up to this size must arrive whole
+    private static final int TUNNEL_RESPONSE_SIZE = 1232;
+    // Size probes ask for TXT payloads in steps of this many bytes, from 0 up
+    // to SIZE_PROBE_STEPS - 1 steps. dnstt-server never answers a probe with
+    // more than its -mtu, so the largest step only needs to overshoot that
+    private static final int SIZE_PROBE_STEP = 64;
+    private static final int SIZE_PROBE_STEPS = TUNNEL_RESPONSE_SIZE / SIZE_PROBE_STEP + 1;
+    // Name probe searches stop once the bounds are this close, in octets
+    private static final int NAME_PROBE_RESOLUTION = 4;
+    // Label length tried when full-length labels do not get through
+    private static final int SHORT_LABEL_LENGTH = 32;
+    // Query rates tried by the burst probe, each held for about a second
+    private static final int[] BURST_RATES = {25, 50, 100, 200, 400};
+    // A burst step losing more than this fraction of its queries is over the limit
+    private static final double MAX_BURST_LOSS_RATE = 0.1;
+    // Burst replies later than this count as lost, so a step ends at most
+    // this long after its last query
+    private static final int BURST_TIMEOUT_MS = 1000;
+
     public interface Callback {
         void onProgress(int tested, int total, String currentResolver);
         void onPhaseComplete(int passedCount, int totalTested, List<ResolverResult> results);
     }
 
+    /**
+     * How each resolver is probed.
+     */
+    public enum ProbeMode {
+        // A nonce name under the tunnel domain. Any answer counts, which shows
+        // the resolver works but not that it reaches dnstt-server
+        NONCE,
+        // A query shaped like a dnstt poll. Only a well-formed downstream
+        // payload from dnstt-server counts. The server may hold a poll open,
+        // so latency comes from a nonce query sent once the poll is answered
+        TUNNEL
+    }
+
+    /**
+     * Encrypted transports {@link #testEncryptedResolvers} can probe.
+     */
+    public enum EncryptedTransport {
+        DOH, // DNS over HTTPS; endpoints are URLs
+        DOT  // DNS over TLS; endpoints are host or host:port, 853 by default
+    }
+
+    /**
+     * What the last probe to a resolver saw.
+     */
+    public enum ProbeOutcome {
+        REACHES_SERVER, // Well-formed dnstt downstream payload
+        ANSWERED,       // NOERROR or NXDOMAIN to a nonce probe
+        SERVFAIL,       // Resolver could not get an answer from our server
+        NXDOMAIN,       // Tunnel query did not reach dnstt-server intact
+        FORMERR,        // Resolver forwarded an EDNS payload size dnstt-server rejects
+        REFUSED,
+        BAD_ANSWER,     // NOERROR, but not a dnstt downstream payload
+        TRUNCATED,
+        HIJACKED,       // Answered a control name that cannot exist
+        OTHER_RCODE,
+        MALFORMED,
+        TIMEOUT,
+        ERROR
+    }
+
     public static class ResolverResult implements Comparable<ResolverResult> {
+        // UDP resolver the result is for, or null for DoH and DoT endpoints
+        public final ResolverAddress address;
+        // For display and logs; use address to identify a UDP resolver
         public final String resolver;
+        // Median round trip when more than one sample was taken
         public final long latencyMs;
         public final boolean success;
         public final String error;
+        // The answer looked like it came from the resolver's cache rather than
+        // a round trip to our server, so latencyMs understates the tunnel path
+        public final boolean cached;
+        public final int samples;
+        public final long p90LatencyMs;
+        // Mean difference between consecutive round trips
+        public final long jitterMs;
+        // Fraction of samples that got no usable answer
+        public final double lossRate;
+        // Ranking key combining latency, spread and loss; lower is better
+        public final double score;
+        public final ProbeOutcome outcome;
+        // Forged a NOERROR for a control name that cannot exist; never worth a tunnel test
+        public final boolean hijacked;
+        // Largest reply in bytes that came back intact through this resolver,
+        // or 0 if not measured; see passesFullSizeReplies
+        public final int maxResponseSize;
+        // Longest query name (wire octets) and label that reached our server
+        // unchanged, or 0 if not measured; these bound upstream bytes per query
+        public final int maxQueryNameLength;
+        public final int maxQueryLabelLength;
+        // Highest query rate the burst probe sustained without loss, or 0 if
+        // not measured or no limit was found; the tunnel paces just under it
+        public final int maxQps;
+        // Set the TC bit on a reply no larger than dnstt-server sends, so
+        // every full downstream packet would be cut short over UDP
+        public final boolean truncates;
+        // Round trip of the same probe over TCP port 53, including the
+        // handshake, or -1 if TCP was not checked or got no answer
+        public final long tcpLatencyMs;
 
         public ResolverResult(String resolver, long latencyMs, boolean success, String error) {
+            this(resolver, latencyMs, success, error, false);
+        }
+
+        public ResolverResult(String resolver, long latencyMs, boolean success, String error, boolean cached) {
+            this(ResolverAddress.parse(resolver), resolver, latencyMs, success, error, cached, 1, latencyMs, 0,
+                    success ? 0 : 1, success ? ProbeOutcome.ANSWERED : ProbeOutcome.ERROR);
+        }
+
+        public ResolverResult(ResolverAddress address, String resolver, long latencyMs, boolean success,
+                              String error, boolean cached, int samples, long p90LatencyMs, long jitterMs,
+                              double lossRate, ProbeOutcome outcome) {
+            this(address, resolver, latencyMs, success, error, cached, samples, p90LatencyMs, jitterMs, lossRate,
+                    outcome, 0, 0, 0, 0, false, -1);
+        }
+
+        public ResolverResult(ResolverAddress address, String resolver, long latencyMs, boolean success,
+                              String error, boolean cached, int samples, long p90LatencyMs, long jitterMs,
+                              double lossRate, ProbeOutcome outcome, int maxResponseSize,
+                              int maxQueryNameLength, int maxQueryLabelLength, int maxQps,
+                              boolean truncates, long tcpLatencyMs) {
+            this.address = address;
             this.resolver = resolver;
             this.latencyMs = latencyMs;
             this.success = success;
             this.error = error;
+            this.cached = cached;
+            this.samples = samples;
+            this.p90LatencyMs = p90LatencyMs;
+            this.jitterMs = jitterMs;
+            this.lossRate = lossRate;
+            this.score = score(latencyMs, p90LatencyMs, jitterMs, lossRate);
+            this.outcome = outcome;
+            this.hijacked = outcome == ProbeOutcome.HIJACKED;
+            this.maxResponseSize = maxResponseSize;
+            this.maxQueryNameLength = maxQueryNameLength;
+            this.maxQueryLabelLength = maxQueryLabelLength;
+            this.maxQps = maxQps;
+            this.truncates = truncates;
+            this.tcpLatencyMs = tcpLatencyMs;
+        }
+
+        /**
+         * Copy of this result carrying a burst probe measurement.
+         */
+        public ResolverResult withMaxQps(int maxQps) {
+            return new ResolverResult(address, resolver, latencyMs, success, error, cached, samples, p90LatencyMs,
+                    jitterMs, lossRate, outcome, maxResponseSize, maxQueryNameLength, maxQueryLabelLength, maxQps,
+                    truncates, tcpLatencyMs);
+        }
+
+        /**
+         * Copy of this result carrying the measurements of
+         * {@link #measureResolvers}.
+         */
+        ResolverResult withMeasurements(int maxResponseSize, int maxQueryNameLength, int maxQueryLabelLength,
+                                        boolean truncates, long tcpLatencyMs) {
+            return new ResolverResult(address, resolver, latencyMs, success, error, cached, samples, p90LatencyMs,
+                    jitterMs, lossRate, outcome, maxResponseSize, maxQueryNameLength, maxQueryLabelLength, maxQps,
+                    truncates, tcpLatencyMs);
+        }
+
+        /**
+         * Whether this resolver answered from our server within maxLatencyMs
+         * and, when sampled more than once, delivered most of its probes.
+         */
+        public boolean isGood(long maxLatencyMs) {
+            return success && !cached && !truncates && latencyMs <= maxLatencyMs && lossRate <= MAX_GOOD_LOSS_RATE;
+        }
+
+        /**
+         * Whether the tunnel should use DNS over TCP to this resolver: it
+         * truncates full-size replies over UDP but answers over TCP.
+         */
+        public boolean prefersTcp() {
+            return truncates && tcpLatencyMs >= 0;
+        }
+
+        /**
+         * Whether replies within one size probe step of dnstt-server's
+         * default -mtu came back intact, or the size was not measured.
+         */
+        public boolean passesFullSizeReplies() {
+            return maxResponseSize == 0 || maxResponseSize >= TUNNEL_RESPONSE_SIZE - SIZE_PROBE_STEP;
+        }
+
+        /**
+         * Whether full-size dnstt queries (255-octet names, 63-octet labels)
+         * get through, or the limits were not measured.
+         */
+        public boolean passesFullSizeQueries() {
+            return maxQueryNameLength == 0
+                    || (maxQueryNameLength >= DnsWireCodec.MAX_NAME_LENGTH
+                        && maxQueryLabelLength >= DnsWireCodec.MAX_LABEL_LENGTH);
+        }
+
+        /**
+         * Expected cost of a tunnel round trip: the median plus half the tail
+         * and the jitter, inflated by the square of the delivery rate because
+         * every lost query costs dnstt a retransmission. With one sample this
+         * is just the latency.
+         */
+        static double score(long medianMs, long p90Ms, long jitterMs, double lossRate) {
+            double delivered = Math.max(0.05, 1.0 - lossRate);
+            return (medianMs + (p90Ms - medianMs) / 2.0 + jitterMs) / (delivered * delivered);
         }
 
         @Override
         public int compareTo(ResolverResult other) {
-            // Sort by success first, then by latency
+            // Sort by success first, then real round trips before cache hits,
+            // then resolvers that pass full-size replies and queries, then by score
             if (this.success != other.success) {
                 return this.success ? -1 : 1;
             }
-            return Long.compare(this.latencyMs, other.latencyMs);
+            if (this.cached != other.cached) {
+                return this.cached ? 1 : -1;
+            }
+            // Truncated replies cut downstream throughput for every packet
+            if (this.truncates != other.truncates) {
+                return this.truncates ? 1 : -1;
+            }
+            // Paths that drop large datagrams lose downstream packets outright
+            if (this.passesFullSizeReplies() != other.passesFullSizeReplies()) {
+                return this.passesFullSizeReplies() ? -1 : 1;
+            }
+            // Short query names cut upstream throughput for every packet
+            if (this.passesFullSizeQueries() != other.passesFullSizeQueries()) {
+                return this.passesFullSizeQueries() ? -1 : 1;
+            }
+            return Double.compare(this.score, other.score);
+        }
+    }
+
+    /**
+     * Scan tuning. The defaults send one probe per resolver.
+     */
+    public static class ScanOptions {
+        int samples = 1;
+        int sampleIntervalMs = 200;
+        double timeoutMultiple = 0;
+        int minTimeoutSamples = 50;
+        int packetsPerSecond = 0;
+        int maxInFlightPerPrefix = 0;
+        ProbeMode probeMode = ProbeMode.NONCE;
+        boolean hijackCheck = false;
+        boolean measureResponseSize = false;
+        boolean measureQueryNames = false;
+        boolean tcpCheck = false;
+
+        /** Number of spaced probes per resolver (1-10). */
+        public ScanOptions setSamples(int samples) {
+            this.samples = Math.max(1, Math.min(samples, 10));
+            return this;
+        }
+
+        /** Gap between a sample completing and the next one being sent. */
+        public ScanOptions setSampleIntervalMs(int sampleIntervalMs) {
+            this.sampleIntervalMs = Math.max(0, sampleIntervalMs);
+            return this;
+        }
+
+        /**
+         * Once minSamples answers have come back, time out new sample probes
+         * after multiple x the p95 latency seen so far (never longer than the
+         * configured timeout, nor shorter than half of it). A multiple of 0
+         * keeps the fixed timeout.
+         */
+        public ScanOptions setAdaptiveTimeout(double multiple, int minSamples) {
+            this.timeoutMultiple = Math.max(0, multiple);
+            this.minTimeoutSamples = Math.max(1, minSamples);
+            return this;
+        }
+
+        /** Global send rate limit; 0 sends as fast as the window allows. */
+        public ScanOptions setPacketsPerSecond(int packetsPerSecond) {
+            this.packetsPerSecond = Math.max(0, packetsPerSecond);
+            return this;
+        }
+
+        /**
+         * TUNNEL sends dnstt-shaped polls, so only resolvers that really reach
+         * dnstt-server pass. Note that dnstt-server may hold an empty poll for
+         * up to a second when no other query arrives to release it.
+         */
+        public ScanOptions setProbeMode(ProbeMode probeMode) {
+            this.probeMode = probeMode;
+            return this;
+        }
+
+        /**
+         * Also send each resolver an A query for a nonce name under the tunnel
+         * domain, which dnstt-server always answers with NXDOMAIN. Resolvers
+         * that return NOERROR for it are reported as HIJACKED and fail.
+         */
+        public ScanOptions setHijackCheck(boolean hijackCheck) {
+            this.hijackCheck = hijackCheck;
+            return this;
+        }
+
+        /**
+         * In {@link #measureResolvers}, binary-search the largest reply each
+         * resolver delivers intact using size probes, which dnstt-server
+         * answers with TXT data of the requested length. Costs about six
+         * sequential queries per resolver. Servers without size probe
+         * support answer NXDOMAIN and the search stops at once.
+         */
+        public ScanOptions setMeasureResponseSize(boolean measureResponseSize) {
+            this.measureResponseSize = measureResponseSize;
+            return this;
+        }
+
+        /**
+         * In {@link #measureResolvers}, find the longest query name and
+         * label layout each resolver forwards to dnstt-server unchanged, using name
+         * probes whose labels the server echoes back. Tries a full 255-octet
+         * name first, so resolvers without limits cost one extra query.
+         */
+        public ScanOptions setMeasureQueryNames(boolean measureQueryNames) {
+            this.measureQueryNames = measureQueryNames;
+            return this;
+        }
+
+        /**
+         * In {@link #measureResolvers}, send a sample probe over TCP port 53
+         * and record whether and how fast it answers. Resolvers that
+         * truncate full-size replies can then be used over TCP instead.
+         */
+        public ScanOptions setTcpCheck(boolean tcpCheck) {
+            this.tcpCheck = tcpCheck;
+            return this;
+        }
+
+        /** Probes in flight to any one /24 (IPv4) or /48 (IPv6); 0 for no cap. */
+        public ScanOptions setMaxInFlightPerPrefix(int maxInFlightPerPrefix) {
+            this.maxInFlightPerPrefix = Math.max(0, maxInFlightPerPrefix);
+            return this;
+        }
+    }
+
+    /**
+     * Receives each result as soon as its probe completes. Called on the
+     * scanning thread; return false to stop the scan.
+     */
+    public interface ResultListener {
+        boolean onResult(ResolverResult result);
+    }
+
+    /**
+     * Consumes results inside the scan loop; returning false stops the scan.
+     */
+    private interface ResultSink {
+        boolean accept(ResolverResult result);
+    }
+
+    /**
+     * Cancels a scan from another thread. Pass a new handle to a scan method
+     * and keep it: {@link #cancel()} stops the scan's probes and closes its
+     * sockets and connections straight away, and once it returns no new callback
+     * or listener call of that scan starts; one already running may finish. The
+     * scan method then returns the results it had so far. A handle covers one
+     * scan and cannot be reused.
+     */
+    public static final class ScanHandle {
+        // Stop the engine, close sockets, cancel calls; run once on cancel
+        private final List<Runnable> cancellers = new ArrayList<>();
+        // Written under the lock, read without it so callbacks run unlocked
+        private volatile boolean cancelled;
+
+        /**
+         * Stop the scan. Safe to call from any thread, more than once, and
+         * from the scan's own callbacks. Never waits for a callback running
+         * on another thread, so the UI thread can call it while a callback
+         * posts to it.
+         */
+        public void cancel() {
+            List<Runnable> pending;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                pending = new ArrayList<>(cancellers);
+                cancellers.clear();
+            }
+            for (Runnable canceller : pending) {
+                canceller.run();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Run canceller when the scan is cancelled, or now if it already is.
+         */
+        void onCancel(Runnable canceller) {
+            synchronized (this) {
+                if (!cancelled) {
+                    cancellers.add(canceller);
+                    return;
+                }
+            }
+            canceller.run();
+        }
+
+        /**
+         * Forget a canceller whose resource has already been released.
+         */
+        synchronized void removeOnCancel(Runnable canceller) {
+            cancellers.remove(canceller);
+        }
+
+        /**
+         * Callback that forwards calls only while the scan is not cancelled.
+         * The callback runs without the handle's lock held.
+         */
+        Callback guard(Callback callback) {
+            if (callback == null) {
+                return null;
+            }
+            return new Callback() {
+                @Override
+                public void onProgress(int tested, int total, String currentResolver) {
+                    if (!cancelled) {
+                        callback.onProgress(tested, total, currentResolver);
+                    }
+                }
+
+                @Override
+                public void onPhaseComplete(int passedCount, int totalTested, List<ResolverResult> results) {
+                    if (!cancelled) {
+                        callback.onPhaseComplete(passedCount, totalTested, results);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Listener that forwards results only while the scan is not
+         * cancelled, and stops the scan once it is, including when cancel
+         * comes in while the listener runs.
+         */
+        ResultListener guard(ResultListener listener) {
+            return result -> !cancelled && (listener == null || listener.onResult(result)) && !cancelled;
         }
     }
 
     /**
      * Test DNS resolvers in parallel using native Java.
-     * This is MUCH faster than going through gomobile.
+     * All probes share the pool of non-blocking sockets that {@link DnsProbeEngine}
+     * drives on the calling thread, so thousands can be in flight at once.
      *
-     * @param resolvers List of resolver addresses (IP or IP:port)
+     * @param resolvers Resolver addresses, parsed once when the list was loaded
      * @param domain The DNSTT domain to test (e.g., "t3.example.com")
      * @param timeoutMs Timeout for each DNS query in milliseconds
-     * @param concurrency Number of parallel workers
+     * @param concurrency Maximum number of queries in flight
      * @param callback Progress callback
+     * @param handle Cancels the test from another thread, or null
      * @return List of results sorted by latency (fastest first)
      */
     public static List<ResolverResult> testResolvers(
-            List<String> resolvers,
+            List<ResolverAddress> resolvers,
             String domain,
             int timeoutMs,
             int concurrency,
-            Callback callback) {
+            Callback callback,
+            ScanHandle handle) {
 
         if (resolvers == null || resolvers.isEmpty()) {
             return Collections.emptyList();
         }
+        if (handle == null) {
+            handle = new ScanHandle();
+        }
+        callback = handle.guard(callback);
+        ResultListener guard = handle.guard((ResultListener) null);
 
         int total = resolvers.size();
-        Log.d(TAG, "Testing " + total + " resolvers with " + concurrency + " workers, timeout=" + timeoutMs + "ms");
+        List<ResolverResult> results = new ArrayList<>(total);
+        int[] passed = {0};
 
-        // Results queue (thread-safe)
-        ConcurrentLinkedQueue<ResolverResult> results = new ConcurrentLinkedQueue<>();
-        AtomicInteger tested = new AtomicInteger(0);
-        AtomicInteger passed = new AtomicInteger(0);
+        scan(resolvers, null, domain, timeoutMs, concurrency, new ScanOptions(), 0, callback, handle, result -> {
+            results.add(result);
+            if (result.success) {
+                passed[0]++;
+            }
+            return guard.onResult(result);
+        });
 
-        // Work queue
-        ConcurrentLinkedQueue<String> workQueue = new ConcurrentLinkedQueue<>(resolvers);
+        // Convert to sorted list
+        List<ResolverResult> sortedResults = new ArrayList<>(results);
+        Collections.sort(sortedResults);
 
-        // Create thread pool
-        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
-        CountDownLatch latch = new CountDownLatch(concurrency);
+        Log.d(TAG, "DNS test complete: " + passed[0] + "/" + total + " passed");
 
-        // Start workers
-        for (int i = 0; i < concurrency; i++) {
-            executor.submit(() -> {
-                try {
-                    while (true) {
-                        String resolver = workQueue.poll();
-                        if (resolver == null) break;
+        if (callback != null) {
+            callback.onPhaseComplete(passed[0], total, sortedResults);
+        }
 
-                        ResolverResult result = testSingleResolver(resolver, domain, timeoutMs);
-                        results.add(result);
+        return sortedResults;
+    }
 
-                        int done = tested.incrementAndGet();
-                        if (result.success) {
-                            passed.incrementAndGet();
-                        }
+    /**
+     * Streaming variant of {@link #testResolvers}. Every result is handed to
+     * listener as it arrives, only the best topK successes are retained, and
+     * the scan stops as soon as topK resolvers that answered from our server
+     * within maxLatencyMs have been seen. With a large list the scan then ends
+     * when enough good resolvers have turned up rather than when the slowest
+     * probe times out.
+     *
+     * @param topK Number of successful resolvers to keep, and to wait for
+     * @param maxLatencyMs Latency ceiling for the early stop, or <= 0 to scan everything
+     * @param options Sampling and pacing settings
+     * @param listener Receives every result and may stop the scan, or null
+     * @param callback Progress callback; onPhaseComplete gets the retained results
+     * @param handle Cancels the scan from another thread, or null
+     * @return Up to topK successful results, best first
+     */
+    public static List<ResolverResult> scanResolvers(
+            List<ResolverAddress> resolvers,
+            String domain,
+            int timeoutMs,
+            int concurrency,
+            int topK,
+            long maxLatencyMs,
+            ScanOptions options,
+            ResultListener listener,
+            Callback callback,
+            ScanHandle handle) {
 
-                        // Report progress (throttled in callback)
-                        if (callback != null) {
-                            callback.onProgress(done, total, resolver);
-                        }
+        if (resolvers == null || resolvers.isEmpty() || topK <= 0) {
+            return Collections.emptyList();
+        }
+        if (handle == null) {
+            handle = new ScanHandle();
+        }
+        callback = handle.guard(callback);
+        ResultListener guarded = handle.guard(listener);
+
+        // Max-heap on rank: the worst retained result is at the head
+        PriorityQueue<ResolverResult> best = new PriorityQueue<>(topK + 1, Collections.reverseOrder());
+        int[] counts = {0, 0, 0}; // tested, passed, good
+
+        scan(resolvers, null, domain, timeoutMs, concurrency, options, 0, callback, handle, result -> {
+            counts[0]++;
+            if (result.success) {
+                counts[1]++;
+                best.add(result);
+                if (best.size() > topK) {
+                    best.poll();
+                }
+                if (maxLatencyMs > 0 && result.isGood(maxLatencyMs)) {
+                    counts[2]++;
+                }
+            }
+            if (!guarded.onResult(result)) {
+                return false;
+            }
+            return maxLatencyMs <= 0 || counts[2] < topK;
+        });
+
+        List<ResolverResult> sortedResults = new ArrayList<>(best);
+        Collections.sort(sortedResults);
+
+        Log.d(TAG, "DNS scan complete: " + counts[1] + "/" + counts[0] + " passed"
+                + (counts[0] < resolvers.size() ? ", stopped early with " + counts[2] + " good" : ""));
+
+        if (callback != null) {
+            callback.onPhaseComplete(counts[1], counts[0], sortedResults);
+        }
+
+        return sortedResults;
+    }
+
+    /**
+     * Phase 1.5: run the measurements options turns on (reply size, query
+     * names, TCP) on resolvers a scan has already found, such as the one a
+     * search settled on, before a tunnel goes through them. Scans report
+     * resolvers without these, so a good one reaches tunnel verification
+     * as soon as its samples are in. Each resolver's measurements run one
+     * after the other, the resolvers in parallel, all within budgetMs; a
+     * measurement cut short by the budget is left unmeasured.
+     *
+     * @param shortlist Results of a scan; DoH, DoT, failed and cached ones are returned as they are
+     * @param budgetMs Time allowed for all of the measurements
+     * @param handle Cancels the measurements from another thread, or null
+     * @return The shortlist in the same order, with measurements filled in
+     */
+    public static List<ResolverResult> measureResolvers(
+            List<ResolverResult> shortlist,
+            String domain,
+            int timeoutMs,
+            int concurrency,
+            ScanOptions options,
+            long budgetMs,
+            ScanHandle handle) {
+
+        if (shortlist == null || shortlist.isEmpty()
+                || !(options.measureResponseSize || options.measureQueryNames || options.tcpCheck)) {
+            return shortlist;
+        }
+        ScanHandle scanHandle = handle != null ? handle : new ScanHandle();
+        List<ResolverResult> eligible = new ArrayList<>(shortlist.size());
+        for (ResolverResult result : shortlist) {
+            if (result.address != null && result.success && !result.cached) {
+                eligible.add(result);
+            }
+        }
+        Map<ResolverAddress, ResolverResult> measured = new HashMap<>();
+        if (!eligible.isEmpty()) {
+            scan(null, eligible, domain, timeoutMs, concurrency, options, TimeUnit.MILLISECONDS.toNanos(budgetMs),
+                    null, scanHandle, result -> {
+                        measured.put(result.address, result);
+                        return !scanHandle.isCancelled();
+                    });
+        }
+
+        List<ResolverResult> results = new ArrayList<>(shortlist.size());
+        for (ResolverResult result : shortlist) {
+            ResolverResult m = result.address != null ? measured.get(result.address) : null;
+            results.add(m != null ? m : result);
+        }
+        return results;
+    }
+
+    /**
+     * Probe every resolver, or with a shortlist instead, run only the
+     * measurements on those already probed, and hand each result to sink
+     * until it asks to stop or handle is cancelled.
+     *
+     * @param budgetNanos Time allowed for the measurements, or 0 for no limit
+     */
+    private static void scan(
+            List<ResolverAddress> resolvers,
+            List<ResolverResult> shortlist,
+            String domain,
+            int timeoutMs,
+            int concurrency,
+            ScanOptions options,
+            long budgetNanos,
+            Callback callback,
+            ScanHandle handle,
+            ResultSink sink) {
+
+        int total = shortlist != null ? shortlist.size() : resolvers.size();
+        Log.d(TAG, (shortlist != null ? "Measuring " : "Testing ") + total + " resolvers with " + concurrency
+                + " in flight, timeout=" + timeoutMs + "ms, samples=" + options.samples
+                + ", pps=" + options.packetsPerSecond + ", mode=" + options.probeMode);
+
+        // Build TXT query for DNSTT domain (this is what DNSTT uses). Each probe
+        // asks for a fresh nonce label or ClientID so the resolver must reach our server.
+        boolean tunnelMode = options.probeMode == ProbeMode.TUNNEL;
+        byte[] domainName;
+        try {
+            domainName = DnsWireCodec.encodeName(domain);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid domain: " + domain);
+            return;
+        }
+        DnsWireCodec.Response parsed = new DnsWireCodec.Response();
+        DnsProbeEngine[] engine = new DnsProbeEngine[1];
+        int[] tested = {0};
+        long sampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(options.sampleIntervalMs);
+        LatencySketch sketch = new LatencySketch();
+        // Adaptive cut-off for sample probes, or 0 until enough have answered
+        long[] sampleTimeoutNanos = {0};
+        byte[] namePrefix = new byte[DnsWireCodec.MAX_NAME_LENGTH];
+        // The sample queries' single label is the name layout already known to pass
+        int sampleLabelLength = tunnelMode ? DnsWireCodec.POLL_LABEL_LENGTH : DnsWireCodec.NONCE_LABEL_LENGTH;
+        int sampleNameLength = 1 + sampleLabelLength + domainName.length;
+        long startNanos = System.nanoTime();
+
+        class ScanHandler implements DnsProbeEngine.Handler {
+            @Override
+            public void writeQuery(DnsProbeEngine.Probe probe, int txid, ByteBuffer out) {
+                probe.nonce = ThreadLocalRandom.current().nextLong();
+                SampleSet set = (SampleSet) probe.tag;
+                if (probe == set.control) {
+                    DnsWireCodec.writeNonceQuery(out, txid, probe.nonce, domainName, DnsWireCodec.TYPE_A, 0);
+                } else if (probe == set.timingProbe) {
+                    DnsWireCodec.writeNonceQuery(out, txid, probe.nonce, domainName, DnsWireCodec.TYPE_TXT, 0);
+                } else if (probe == set.sizeProbe) {
+                    DnsWireCodec.writeSizeProbeQuery(out, txid, probe.nonce, set.sizeProbePayload(), domainName);
+                } else if (probe == set.nameProbe) {
+                    int length = DnsWireCodec.nameProbePrefix(namePrefix, probe.nonce, set.nameTry,
+                            set.nameLabelLength, domainName.length);
+                    DnsWireCodec.writeNameProbeQuery(out, txid, namePrefix, length, domainName);
+                } else if (tunnelMode) {
+                    DnsWireCodec.writePollQuery(out, txid, probe.nonce, pollPadding(probe.nonce), domainName);
+                } else {
+                    DnsWireCodec.writeNonceQuery(out, txid, probe.nonce, domainName, DnsWireCodec.TYPE_TXT, 0);
+                }
+            }
+
+            @Override
+            public void onResponse(DnsProbeEngine.Probe probe, ByteBuffer response, long rttNanos) {
+                long latency = TimeUnit.NANOSECONDS.toMillis(rttNanos);
+                SampleSet set = (SampleSet) probe.tag;
+                if (probe == set.control) {
+                    // Our server has no records at all for a nonce name
+                    set.hijacked = DnsWireCodec.parse(response, parsed) && parsed.isResponse()
+                            && DnsWireCodec.nonceQuestionEquals(response, parsed, probe.nonce, domainName, DnsWireCodec.TYPE_A)
+                            && parsed.rcode() == DnsWireCodec.RCODE_NOERROR;
+                    set.controlDone = true;
+                    finishIfComplete(set);
+                    return;
+                }
+                if (probe == set.sizeProbe) {
+                    onSizeProbeResponse(probe, set, response);
+                    return;
+                }
+                if (probe == set.timingProbe) {
+                    // Our server answers a nonce name at once, so this is the
+                    // path's round trip; a reply from anywhere else keeps the poll's
+                    boolean echoed = DnsWireCodec.parse(response, parsed) && parsed.isResponse()
+                            && DnsWireCodec.nonceQuestionEquals(response, parsed, probe.nonce, domainName,
+                                    DnsWireCodec.TYPE_TXT);
+                    finishTiming(probe, set, echoed ? latency : set.pollLatencyMs);
+                    return;
+                }
+                if (probe == set.tcpProbe) {
+                    ProbeOutcome outcome = classifyReply(response, parsed, tunnelMode, probe.nonce, domainName);
+                    if (outcome == ProbeOutcome.REACHES_SERVER
+                            || (!tunnelMode && (outcome == ProbeOutcome.ANSWERED || outcome == ProbeOutcome.SERVFAIL))) {
+                        set.tcpLatencyMs = latency;
+                    }
+                    set.tcpProbe = null;
+                    followUp(set, probe.target);
+                    return;
+                }
+                if (probe == set.nameProbe) {
+                    int length = DnsWireCodec.nameProbePrefix(namePrefix, probe.nonce, set.nameTry,
+                            set.nameLabelLength, domainName.length);
+                    nextNameProbe(set, DnsWireCodec.parse(response, parsed) && parsed.isResponse()
+                            && parsed.rcode() == DnsWireCodec.RCODE_NOERROR && !parsed.isTruncated()
+                            && DnsWireCodec.nameProbeEchoed(response, parsed, namePrefix, length, domainName));
+                    return;
+                }
+                ProbeOutcome outcome = classifyReply(response, parsed, tunnelMode, probe.nonce, domainName);
+                // In nonce mode even NXDOMAIN and SERVFAIL are fine - they mean DNS works
+                if (outcome == ProbeOutcome.REACHES_SERVER) {
+                    // dnstt-server holds an empty poll for up to a second
+                    // waiting for data, so its round trip is mostly idle time;
+                    // time a nonce query to the same resolver instead
+                    set.pollLatencyMs = latency;
+                    set.pollCached = looksCached(parsed, latency);
+                    if (!set.pollCached) {
+                        // The cut-off applies to polls, so it learns from them
+                        adaptTimeout(latency);
+                    }
+                    set.timingProbe = new DnsProbeEngine.Probe(probe.target, set);
+                    engine[0].sendLater(set.timingProbe, 0);
+                    return;
+                }
+                if (!tunnelMode && (outcome == ProbeOutcome.ANSWERED || outcome == ProbeOutcome.SERVFAIL)) {
+                    boolean cached = looksCached(parsed, latency);
+                    set.addSuccess(latency, cached, outcome);
+                    if (!cached) {
+                        adaptTimeout(latency);
+                    }
+                } else {
+                    set.truncates |= outcome == ProbeOutcome.TRUNCATED;
+                    set.addFailure(latency, describe(outcome, parsed), outcome);
+                }
+                next(probe, set);
+            }
+
+            /**
+             * Record a poll that reached our server with the round trip its
+             * timing probe measured, then go on to the next sample.
+             */
+            private void finishTiming(DnsProbeEngine.Probe probe, SampleSet set, long latency) {
+                set.timingProbe = null;
+                set.addSuccess(latency, set.pollCached, ProbeOutcome.REACHES_SERVER);
+                next(probe, set);
+            }
+
+            /**
+             * Narrow the size search: an intact reply raises the lower bound,
+             * a truncated or mangled one lowers the upper bound, and any error
+             * rcode means the server does not answer size probes at all.
+             */
+            private void onSizeProbeResponse(DnsProbeEngine.Probe probe, SampleSet set, ByteBuffer response) {
+                int payload = set.sizeProbePayload();
+                int length = response.remaining();
+                if (DnsWireCodec.isTruncated(response)) {
+                    // Checked before parsing, since a reply cut short mid-record
+                    // still says what happened to it
+                    if (DnsWireCodec.sizeProbeReplyLength(payload, domainName.length) <= TUNNEL_RESPONSE_SIZE) {
+                        set.truncates = true;
+                    }
+                    nextSizeProbe(set, false);
+                } else if (!DnsWireCodec.parse(response, parsed) || !parsed.isResponse()
+                        || !DnsWireCodec.sizeProbeQuestionEquals(response, parsed, probe.nonce, payload, domainName)) {
+                    nextSizeProbe(set, false);
+                } else if (parsed.rcode() != DnsWireCodec.RCODE_NOERROR) {
+                    set.sizeHigh = set.sizeLow;
+                    nextSizeProbe(set, false);
+                } else if (DnsWireCodec.txtPayloadLength(response, parsed) == payload) {
+                    set.maxResponseSize = Math.max(set.maxResponseSize, length);
+                    nextSizeProbe(set, true);
+                } else {
+                    nextSizeProbe(set, false);
+                }
+            }
+
+            private void nextSizeProbe(SampleSet set, boolean intact) {
+                if (intact) {
+                    set.sizeLow = set.sizeMid();
+                } else {
+                    set.sizeHigh = Math.min(set.sizeHigh, set.sizeMid());
+                }
+                if (set.sizeHigh - set.sizeLow > 1) {
+                    set.sizeProbe = new DnsProbeEngine.Probe(set.sizeProbe.target, set);
+                    sendFollowUp(set, set.sizeProbe);
+                    return;
+                }
+                InetSocketAddress target = set.sizeProbe.target;
+                set.sizeProbe = null;
+                followUp(set, target);
+            }
+
+            /**
+             * Narrow the name search for the current label length. Full-length
+             * labels are tried first; if they are held back, short labels get
+             * a search of their own and the layout carrying more bytes wins.
+             */
+            private void nextNameProbe(SampleSet set, boolean intact) {
+                int tried = DnsWireCodec.nameProbePrefix(namePrefix, 0, set.nameTry, set.nameLabelLength,
+                        domainName.length) + domainName.length;
+                if (intact) {
+                    set.nameLow = tried;
+                    set.recordNameLayout(tried, set.nameLabelLength, domainName.length);
+                } else {
+                    set.nameHigh = Math.min(set.nameHigh, tried);
+                }
+                if (set.nameHigh - set.nameLow > NAME_PROBE_RESOLUTION) {
+                    set.nameTry = (set.nameLow + set.nameHigh) >>> 1;
+                } else if (set.nameLabelLength == DnsWireCodec.MAX_LABEL_LENGTH
+                        && set.maxQueryNameLength < DnsWireCodec.MAX_NAME_LENGTH) {
+                    set.startNameSearch(SHORT_LABEL_LENGTH, sampleNameLength);
+                } else {
+                    InetSocketAddress target = set.nameProbe.target;
+                    set.nameProbe = null;
+                    followUp(set, target);
+                    return;
+                }
+                set.nameProbe = new DnsProbeEngine.Probe(set.nameProbe.target, set);
+                sendFollowUp(set, set.nameProbe);
+            }
+
+            /**
+             * Run the next measurement a shortlisted resolver has not had,
+             * or report it once none is left.
+             */
+            private void followUp(SampleSet set, InetSocketAddress target) {
+                DnsProbeEngine.Probe probe = startFollowUp(set, target);
+                if (probe == null) {
+                    finishIfComplete(set);
+                    return;
+                }
+                sendFollowUp(set, probe);
+            }
+
+            /**
+             * First probe of the next measurement options asks for that set
+             * has not had, or null if none is left. Not yet sent.
+             */
+            DnsProbeEngine.Probe startFollowUp(SampleSet set, InetSocketAddress target) {
+                if (options.measureResponseSize && !set.sizeSearched) {
+                    set.sizeSearched = true;
+                    set.sizeLow = 0;
+                    set.sizeHigh = SIZE_PROBE_STEPS;
+                    set.sizeProbe = new DnsProbeEngine.Probe(target, set);
+                    return set.sizeProbe;
+                }
+                if (options.measureQueryNames && !set.nameSearched) {
+                    set.nameSearched = true;
+                    // The floor, reported even if every longer name fails
+                    set.recordNameLayout(sampleNameLength, sampleLabelLength, domainName.length);
+                    set.startNameSearch(DnsWireCodec.MAX_LABEL_LENGTH, sampleNameLength);
+                    set.nameProbe = new DnsProbeEngine.Probe(target, set);
+                    return set.nameProbe;
+                }
+                if (options.tcpCheck && !set.tcpChecked) {
+                    set.tcpChecked = true;
+                    set.tcpProbe = new DnsProbeEngine.Probe(target, set);
+                    set.tcpProbe.tcp = true;
+                    return set.tcpProbe;
+                }
+                return null;
+            }
+
+            /**
+             * Queue a measurement probe after the sample interval. Once the
+             * budget is spent the resolver is reported with what it has.
+             */
+            private void sendFollowUp(SampleSet set, DnsProbeEngine.Probe probe) {
+                if (fitBudget(probe, sampleIntervalNanos)) {
+                    engine[0].sendLater(probe, sampleIntervalNanos);
+                    return;
+                }
+                set.abandonMeasurements();
+                finishIfComplete(set);
+            }
+
+            /**
+             * Cut probe's timeout to what is left of the budget once it goes
+             * out delayNanos from now; false if nothing is left.
+             */
+            boolean fitBudget(DnsProbeEngine.Probe probe, long delayNanos) {
+                if (budgetNanos <= 0) {
+                    return true;
+                }
+                long left = budgetNanos - (System.nanoTime() - startNanos) - delayNanos;
+                probe.timeoutNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(timeoutMs), left);
+                return left > 0;
+            }
+
+            @Override
+            public void onTimeout(DnsProbeEngine.Probe probe) {
+                SampleSet set = (SampleSet) probe.tag;
+                if (probe == set.control) {
+                    set.controlDone = true;
+                    finishIfComplete(set);
+                    return;
+                }
+                if (probe == set.sizeProbe) {
+                    // Large replies that the path fragments or drops never arrive
+                    nextSizeProbe(set, false);
+                    return;
+                }
+                if (probe == set.timingProbe) {
+                    // The poll got through; the poll's time is all there is
+                    finishTiming(probe, set, set.pollLatencyMs);
+                    return;
+                }
+                if (probe == set.nameProbe) {
+                    nextNameProbe(set, false);
+                    return;
+                }
+                if (probe == set.tcpProbe) {
+                    set.tcpProbe = null;
+                    followUp(set, probe.target);
+                    return;
+                }
+                long waitedMs = TimeUnit.NANOSECONDS.toMillis(probe.deadlineNanos - probe.sentAtNanos);
+                if (set.answered > 0) {
+                    // A live resolver slower than the cut-off; leaving it out
+                    // would pull the estimate down with every round
+                    adaptTimeout(waitedMs);
+                }
+                set.addFailure(waitedMs, "timed out", ProbeOutcome.TIMEOUT);
+                next(probe, set);
+            }
+
+            @Override
+            public void onError(DnsProbeEngine.Probe probe, String error) {
+                SampleSet set = (SampleSet) probe.tag;
+                if (probe == set.control) {
+                    set.controlDone = true;
+                    finishIfComplete(set);
+                    return;
+                }
+                if (probe == set.sizeProbe) {
+                    nextSizeProbe(set, false);
+                    return;
+                }
+                if (probe == set.timingProbe) {
+                    finishTiming(probe, set, set.pollLatencyMs);
+                    return;
+                }
+                if (probe == set.nameProbe) {
+                    nextNameProbe(set, false);
+                    return;
+                }
+                if (probe == set.tcpProbe) {
+                    set.tcpProbe = null;
+                    followUp(set, probe.target);
+                    return;
+                }
+                set.addFailure(0, truncateError(error), ProbeOutcome.ERROR);
+                next(probe, set);
+            }
+
+            /**
+             * Track sample round trips and tighten the timeout for later
+             * samples to a multiple of their p95, so the dead tail of the list
+             * does not set the pace of the scan. Timeouts of resolvers that
+             * have answered count at the cut-off they hit. The control probe
+             * is slower by nature and keeps the full timeout.
+             */
+            private void adaptTimeout(long latency) {
+                if (options.timeoutMultiple <= 0) return;
+                sketch.add(latency);
+                if (sketch.count() < options.minTimeoutSamples) return;
+                long floorMs = Math.max(MIN_ADAPTIVE_TIMEOUT_MS, (long) (timeoutMs * MIN_ADAPTIVE_TIMEOUT_FRACTION));
+                long cutoffMs = (long) (sketch.quantile(0.95) * options.timeoutMultiple);
+                cutoffMs = Math.max(floorMs, Math.min(timeoutMs, cutoffMs));
+                if (sketch.count() == options.minTimeoutSamples) {
+                    Log.d(TAG, "Adaptive timeout: " + cutoffMs + "ms after " + sketch.count() + " answers");
+                }
+                sampleTimeoutNanos[0] = TimeUnit.MILLISECONDS.toNanos(cutoffMs);
+            }
+
+            private void next(DnsProbeEngine.Probe probe, SampleSet set) {
+                if (set.taken < set.rtts.length) {
+                    DnsProbeEngine.Probe sample = new DnsProbeEngine.Probe(probe.target, set);
+                    sample.timeoutNanos = sampleTimeoutNanos[0];
+                    engine[0].sendLater(sample, sampleIntervalNanos);
+                    return;
+                }
+                finishIfComplete(set);
+            }
+
+            private void finishIfComplete(SampleSet set) {
+                if (set.taken < set.rtts.length || (set.control != null && !set.controlDone)
+                        || set.timingProbe != null || set.sizeProbe != null || set.nameProbe != null || set.tcpProbe != null) {
+                    return;
+                }
+                ResolverResult result = set.toResult();
+                tested[0]++;
+                if (!sink.accept(result)) {
+                    engine[0].stop();
+                }
+                // Report progress (throttled in callback)
+                if (callback != null) {
+                    callback.onProgress(tested[0], total, result.resolver);
+                }
+            }
+        }
+
+        ScanHandler handler = new ScanHandler();
+        engine[0] = new DnsProbeEngine(concurrency, timeoutMs, handler);
+        engine[0].setPacing(options.packetsPerSecond, options.maxInFlightPerPrefix);
+        // The engine closes its sockets as soon as run() sees the stop
+        Runnable stopEngine = engine[0]::stop;
+        handle.onCancel(stopEngine);
+        Iterator<ResolverAddress> pendingResolvers = resolvers != null
+                ? resolvers.iterator() : Collections.emptyIterator();
+        Iterator<ResolverResult> pendingMeasurements = shortlist != null
+                ? shortlist.iterator() : Collections.emptyIterator();
+        try {
+            engine[0].run(new Iterator<DnsProbeEngine.Probe>() {
+                // First sample of the resolver whose control probe was just handed out
+                private DnsProbeEngine.Probe pendingSample;
+
+                @Override
+                public boolean hasNext() {
+                    return pendingSample != null || pendingResolvers.hasNext() || pendingMeasurements.hasNext();
+                }
+
+                @Override
+                public DnsProbeEngine.Probe next() {
+                    if (pendingSample != null) {
+                        DnsProbeEngine.Probe sample = pendingSample;
+                        pendingSample = null;
+                        return sample;
                     }
-                } finally {
-                    latch.countDown();
+                    if (pendingMeasurements.hasNext()) {
+                        // Straight to the first measurement; the samples are in
+                        SampleSet set = new SampleSet(pendingMeasurements.next());
+                        DnsProbeEngine.Probe first = handler.startFollowUp(set, set.address.toSocketAddress());
+                        handler.fitBudget(first, 0);
+                        return first;
+                    }
+                    ResolverAddress resolver = pendingResolvers.next();
+                    InetSocketAddress target = resolver.toSocketAddress();
+                    SampleSet set = new SampleSet(resolver, resolver.toString(), options.samples);
+                    DnsProbeEngine.Probe sample = new DnsProbeEngine.Probe(target, set);
+                    sample.timeoutNanos = sampleTimeoutNanos[0];
+                    if (!options.hijackCheck) {
+                        return sample;
+                    }
+                    set.control = new DnsProbeEngine.Probe(target, set);
+                    pendingSample = sample;
+                    return set.control;
                 }
             });
+        } catch (IOException e) {
+            Log.w(TAG, "DNS test aborted: " + e.getMessage());
+        } finally {
+            handle.removeOnCancel(stopEngine);
+        }
+        if (handle.isCancelled()) {
+            Log.d(TAG, "DNS test cancelled after " + tested[0] + "/" + total);
+        }
+    }
+
+    /**
+     * Phase 1.5: ramp the query rate against each shortlisted resolver and
+     * record where it starts dropping or refusing queries, within budgetMs
+     * for the whole list. Run it before a tunnel goes through them, so
+     * tunnel traffic neither skews the reading nor adds to the bursts.
+     *
+     * @return The shortlist in the same order, with maxQps set where found
+     */
+    public static List<ResolverResult> measureSustainableQps(
+            List<ResolverResult> shortlist, String domain, int timeoutMs, long budgetMs, ScanHandle handle) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        List<ResolverResult> measured = new ArrayList<>(shortlist.size());
+        for (ResolverResult result : shortlist) {
+            long leftMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            int qps = result.address != null && leftMs > 0
+                    ? measureSustainableQps(result.address, domain, timeoutMs, leftMs, handle) : -1;
+            measured.add(qps >= 0 ? result.withMaxQps(qps) : result);
         }
+        return measured;
+    }
 
-        // Wait for all workers to complete
+    /**
+     * Send about a second of nonce queries at each of {@link #BURST_RATES}
+     * in turn until a step loses more than {@link #MAX_BURST_LOSS_RATE} of
+     * them. Public resolvers throttle heavy sources by dropping or refusing
+     * queries, so an error rcode counts as lost. Nonce queries are answered
+     * by dnstt-server straight away and open no tunnel session. A step is
+     * only started if it can finish within budgetMs, so the whole probe
+     * takes no longer than that.
+     *
+     * @param handle Cancels the probe from another thread, or null
+     * @return The last rate that held up, 0 if every rate did (no limit
+     *         found) or the resolver could not be probed, or -1 if the
+     *         budget ran out or the probe was cancelled first
+     */
+    public static int measureSustainableQps(ResolverAddress address, String domain, int timeoutMs, long budgetMs,
+                                            ScanHandle handle) {
+        byte[] domainName;
         try {
-            latch.await(timeoutMs * 2L + 30000, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "DNS test interrupted");
+            domainName = DnsWireCodec.encodeName(domain);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Cannot burst probe " + address + ": " + e.getMessage());
+            return 0;
         }
+        if (handle == null) {
+            handle = new ScanHandle();
+        }
+        InetSocketAddress target = address.toSocketAddress();
+        DnsWireCodec.Response parsed = new DnsWireCodec.Response();
+        int[] answered = {0};
 
-        // Shutdown executor
-        executor.shutdownNow();
+        DnsProbeEngine.Handler handler = new DnsProbeEngine.Handler() {
+            @Override
+            public void writeQuery(DnsProbeEngine.Probe probe, int txid, ByteBuffer out) {
+                probe.nonce = ThreadLocalRandom.current().nextLong();
+                DnsWireCodec.writeNonceQuery(out, txid, probe.nonce, domainName, DnsWireCodec.TYPE_TXT, 0);
+            }
 
-        // Convert to sorted list
-        List<ResolverResult> sortedResults = new ArrayList<>(results);
+            @Override
+            public void onResponse(DnsProbeEngine.Probe probe, ByteBuffer response, long rttNanos) {
+                if (DnsWireCodec.parse(response, parsed) && parsed.isResponse()
+                        && DnsWireCodec.nonceQuestionEquals(response, parsed, probe.nonce, domainName, DnsWireCodec.TYPE_TXT)
+                        && (parsed.rcode() == DnsWireCodec.RCODE_NOERROR || parsed.rcode() == DnsWireCodec.RCODE_NXDOMAIN)) {
+                    answered[0]++;
+                }
+            }
+
+            @Override
+            public void onTimeout(DnsProbeEngine.Probe probe) {
+            }
+
+            @Override
+            public void onError(DnsProbeEngine.Probe probe, String error) {
+            }
+        };
+
+        int replyTimeoutMs = Math.min(timeoutMs, BURST_TIMEOUT_MS);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        // One engine for every step; each run opens and closes its own sockets
+        DnsProbeEngine engine = new DnsProbeEngine(BURST_RATES[BURST_RATES.length - 1], replyTimeoutMs, handler);
+        Runnable stopEngine = engine::stop;
+        handle.onCancel(stopEngine);
+        try {
+            int sustained = 0;
+            for (int rate : BURST_RATES) {
+                // A second of queries, then the wait for the last replies
+                long stepNanos = TimeUnit.MILLISECONDS.toNanos(1000 + replyTimeoutMs);
+                if (deadline - System.nanoTime() < stepNanos) {
+                    Log.d(TAG, "Burst probe " + address + " out of time after " + sustained + " qps");
+                    return -1;
+                }
+                answered[0] = 0;
+                engine.setPacing(rate, 0);
+                try {
+                    engine.run(new Iterator<DnsProbeEngine.Probe>() {
+                        private int sent = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return sent < rate;
+                        }
+
+                        @Override
+                        public DnsProbeEngine.Probe next() {
+                            sent++;
+                            return new DnsProbeEngine.Probe(target, null);
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.w(TAG, "Burst probe aborted: " + e.getMessage());
+                    return 0;
+                }
+                if (handle.isCancelled()) {
+                    return -1;
+                }
+                double loss = 1.0 - (double) answered[0] / rate;
+                Log.d(TAG, "Burst probe " + address + " at " + rate + " qps: " + answered[0] + "/" + rate + " answered");
+                if (loss > MAX_BURST_LOSS_RATE) {
+                    // Never drop below the lowest rate tried; a resolver that cannot
+                    // even manage that still carries a slow tunnel
+                    return sustained > 0 ? sustained : rate;
+                }
+                sustained = rate;
+            }
+            return 0;
+        } finally {
+            handle.removeOnCancel(stopEngine);
+        }
+    }
+
+    /**
+     * Rank DNS over HTTPS or DNS over TLS endpoints the way {@link #testResolvers}
+     * ranks UDP resolvers, for networks that filter UDP port 53. Each endpoint
+     * gets one connection, and all of its samples go out together over it:
+     * multiplexed HTTP/2 streams for DoH, pipelined queries for DoT. The
+     * connection setup is not counted, since a tunnel keeps its connection
+     * open. Results have the same shape as UDP ones and rank the same way.
+     *
+     * @param endpoints DoH URLs, or DoT host[:port] entries
+     * @param timeoutMs Timeout for the connection and for each endpoint's samples
+     * @param concurrency Number of endpoints probed at once
+     * @param options Samples and probe mode; the other settings only apply to UDP scans
+     * @param callback Progress callback, called from the probing threads
+     * @param handle Cancels the test from another thread, or null
+     * @return Results for every endpoint probed, best first
+     */
+    public static List<ResolverResult> testEncryptedResolvers(
+            List<String> endpoints,
+            EncryptedTransport transport,
+            String domain,
+            int timeoutMs,
+            int concurrency,
+            ScanOptions options,
+            Callback callback,
+            ScanHandle handle) {
+
+        if (endpoints == null || endpoints.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ScanHandle scan = handle != null ? handle : new ScanHandle();
+        Callback guarded = scan.guard(callback);
+        byte[] domainName;
+        try {
+            domainName = DnsWireCodec.encodeName(domain);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid domain: " + domain);
+            return Collections.emptyList();
+        }
+
+        int total = endpoints.size();
+        Log.d(TAG, "Testing " + total + " " + transport + " endpoints with " + concurrency + " at once, timeout="
+                + timeoutMs + "ms, samples=" + options.samples + ", mode=" + options.probeMode);
+
+        boolean tunnelMode = options.probeMode == ProbeMode.TUNNEL;
+        EncryptedDnsProber prober = new EncryptedDnsProber(transport, timeoutMs);
+        List<ResolverResult> results = Collections.synchronizedList(new ArrayList<>(total));
+        AtomicInteger tested = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, total)));
+        // Drops queued endpoints and interrupts the probing threads; their
+        // sockets and calls are closed through the prober
+        Runnable stopExecutor = executor::shutdownNow;
+        scan.onCancel(stopExecutor);
+        for (String endpoint : endpoints) {
+            try {
+                executor.execute(() -> {
+                    ResolverResult result = probeEncrypted(prober, endpoint, options.samples, timeoutMs,
+                            tunnelMode, domainName, scan);
+                    if (scan.isCancelled()) {
+                        return;
+                    }
+                    results.add(result);
+                    if (guarded != null) {
+                        guarded.onProgress(tested.incrementAndGet(), total, endpoint);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Cancelled while submitting
+                break;
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            scan.removeOnCancel(stopExecutor);
+        }
+
+        List<ResolverResult> sortedResults;
+        synchronized (results) {
+            sortedResults = new ArrayList<>(results);
+        }
         Collections.sort(sortedResults);
+        int passed = 0;
+        for (ResolverResult result : sortedResults) {
+            if (result.success) {
+                passed++;
+            }
+        }
 
-        Log.d(TAG, "DNS test complete: " + passed.get() + "/" + total + " passed");
+        Log.d(TAG, transport + " test " + (scan.isCancelled() ? "cancelled" : "complete") + ": "
+                + passed + "/" + total + " passed");
 
-        if (callback != null) {
-            callback.onPhaseComplete(passed.get(), total, sortedResults);
+        if (guarded != null) {
+            guarded.onPhaseComplete(passed, sortedResults.size(), sortedResults);
         }
 
         return sortedResults;
     }
 
     /**
-     * Test a single DNS resolver by sending a TXT query for the DNSTT domain.
+     * Probe one encrypted endpoint and judge its replies as a UDP scan would.
      */
-    private static ResolverResult testSingleResolver(String resolver, String domain, int timeoutMs) {
-        long startTime = System.currentTimeMillis();
+    private static ResolverResult probeEncrypted(EncryptedDnsProber prober, String endpoint, int samples,
+                                                 int timeoutMs, boolean tunnelMode, byte[] domainName,
+                                                 ScanHandle handle) {
+        EncryptedDnsProber.Reply[] replies = prober.probe(endpoint, samples, handle, (txid, out) -> {
+            long nonce = ThreadLocalRandom.current().nextLong();
+            if (tunnelMode) {
+                DnsWireCodec.writePollQuery(out, txid, nonce, pollPadding(nonce), domainName);
+            } else {
+                DnsWireCodec.writeNonceQuery(out, txid, nonce, domainName, DnsWireCodec.TYPE_TXT, 0);
+            }
+            return nonce;
+        });
 
-        try {
-            // Parse resolver address
-            String host;
-            int port = 53;
-            if (resolver.contains(":")) {
-                String[] parts = resolver.split(":");
-                host = parts[0];
-                port = Integer.parseInt(parts[1]);
+        DnsWireCodec.Response parsed = new DnsWireCodec.Response();
+        SampleSet set = new SampleSet(null, endpoint, samples);
+        for (EncryptedDnsProber.Reply reply : replies) {
+            if (reply.message == null) {
+                set.addFailure(reply.timedOut ? timeoutMs : 0, truncateError(reply.error),
+                        reply.timedOut ? ProbeOutcome.TIMEOUT : ProbeOutcome.ERROR);
+                continue;
+            }
+            long latency = TimeUnit.NANOSECONDS.toMillis(reply.rttNanos);
+            ProbeOutcome outcome = classifyReply(reply.message, parsed, tunnelMode, reply.nonce, domainName);
+            if (outcome == ProbeOutcome.REACHES_SERVER
+                    || (!tunnelMode && (outcome == ProbeOutcome.ANSWERED || outcome == ProbeOutcome.SERVFAIL))) {
+                set.addSuccess(latency, looksCached(parsed, latency), outcome);
             } else {
-                host = resolver;
+                set.addFailure(latency, describe(outcome, parsed), outcome);
             }
+        }
+        return set.toResult();
+    }
 
-            // Create a simple resolver pointing to this specific DNS server
-            SimpleResolver simpleResolver = new SimpleResolver(host);
-            simpleResolver.setPort(port);
-            simpleResolver.setTimeout(Duration.ofMillis(timeoutMs));
+    /**
+     * Outcomes of the probes sent to one resolver.
+     */
+    private static final class SampleSet {
+        // Null for DoH and DoT endpoints
+        final ResolverAddress address;
+        final String resolver;
+        // Earlier scan result being measured, or null while sampling
+        final ResolverResult base;
+        // Round trips of answered samples, in arrival order
+        final long[] rtts;
+        int taken;
+        int answered;
+        boolean cached;
+        ProbeOutcome successOutcome;
+        long lastFailureLatency;
+        String lastError;
+        ProbeOutcome lastFailureOutcome;
+        // Nonce query timing the path after a poll reached our server, or
+        // null; the poll's own round trip and cache verdict wait here
+        DnsProbeEngine.Probe timingProbe;
+        long pollLatencyMs;
+        boolean pollCached;
+        // Hijack control probe, or null if not checking
+        DnsProbeEngine.Probe control;
+        boolean controlDone;
+        boolean hijacked;
+        // Size probe in flight, or null; the search keeps the step known to
+        // come back intact (sizeLow) and the first step known not to (sizeHigh)
+        DnsProbeEngine.Probe sizeProbe;
+        int sizeLow;
+        int sizeHigh;
+        int maxResponseSize;
+        boolean sizeSearched;
+        // Name probe in flight, or null; the search for the current label
+        // length keeps the longest name known to pass (nameLow) and the
+        // shortest known not to (nameHigh), and is trying nameTry
+        DnsProbeEngine.Probe nameProbe;
+        int nameLabelLength;
+        int nameLow;
+        int nameHigh;
+        int nameTry;
+        boolean nameSearched;
+        int maxQueryNameLength;
+        int maxQueryLabelLength;
+        int maxQueryNameBytes;
+        boolean truncates;
+        // TCP probe in flight, or null
+        DnsProbeEngine.Probe tcpProbe;
+        boolean tcpChecked;
+        long tcpLatencyMs = -1;
 
-            // Build TXT query for DNSTT domain (this is what DNSTT uses)
-            // We query for a random subdomain to test the resolver can reach our server
-            String queryName = "test." + domain;
-            org.xbill.DNS.Record question = org.xbill.DNS.Record.newRecord(Name.fromString(queryName + "."), Type.TXT, DClass.IN);
-            Message query = Message.newQuery(question);
+        SampleSet(ResolverAddress address, String resolver, int samples) {
+            this.address = address;
+            this.resolver = resolver;
+            this.base = null;
+            this.rtts = new long[samples];
+        }
+
+        SampleSet(ResolverResult base) {
+            this.address = base.address;
+            this.resolver = base.resolver;
+            this.base = base;
+            this.rtts = new long[0];
+        }
 
-            // Send query and wait for response
-            Message response = simpleResolver.send(query);
+        void addSuccess(long latencyMs, boolean looksCached, ProbeOutcome outcome) {
+            taken++;
+            rtts[answered++] = latencyMs;
+            cached |= looksCached;
+            successOutcome = outcome;
+        }
 
-            long latency = System.currentTimeMillis() - startTime;
+        void addFailure(long latencyMs, String error, ProbeOutcome outcome) {
+            taken++;
+            lastFailureLatency = latencyMs;
+            lastError = error;
+            lastFailureOutcome = outcome;
+        }
 
-            // Check if we got a valid response (even NXDOMAIN is fine - means DNS works)
-            int rcode = response.getRcode();
-            if (rcode == Rcode.NOERROR || rcode == Rcode.NXDOMAIN || rcode == Rcode.SERVFAIL) {
-                // DNS resolver is working - it responded to our query
-                return new ResolverResult(resolver, latency, true, null);
-            } else {
-                return new ResolverResult(resolver, latency, false, "rcode=" + Rcode.string(rcode));
+        void startNameSearch(int labelLength, int knownGoodLength) {
+            nameLabelLength = labelLength;
+            nameLow = knownGoodLength;
+            nameHigh = DnsWireCodec.MAX_NAME_LENGTH + 1;
+            nameTry = DnsWireCodec.MAX_NAME_LENGTH;
+        }
+
+        /**
+         * Keep the name layout that leaves the most room for data: label
+         * bytes in front of the domain, less one length octet per label.
+         */
+        void recordNameLayout(int nameLength, int labelLength, int domainLength) {
+            int bytes = (nameLength - domainLength) * labelLength / (labelLength + 1);
+            if (bytes > maxQueryNameBytes) {
+                maxQueryNameBytes = bytes;
+                maxQueryNameLength = nameLength;
+                maxQueryLabelLength = labelLength;
+            }
+        }
+
+        /**
+         * Give up on the measurement in flight and those not yet started. A
+         * search cut short is reported as unmeasured, not as its partial bound.
+         */
+        void abandonMeasurements() {
+            if (sizeProbe != null) {
+                maxResponseSize = 0;
             }
+            if (nameProbe != null) {
+                maxQueryNameLength = 0;
+                maxQueryLabelLength = 0;
+                maxQueryNameBytes = 0;
+            }
+            sizeProbe = null;
+            nameProbe = null;
+            tcpProbe = null;
+            sizeSearched = true;
+            nameSearched = true;
+            tcpChecked = true;
+        }
+
+        int sizeMid() {
+            return (sizeLow + sizeHigh) >>> 1;
+        }
 
-        } catch (Exception e) {
-            long latency = System.currentTimeMillis() - startTime;
-            String error = e.getMessage();
-            if (error == null) error = e.getClass().getSimpleName();
+        int sizeProbePayload() {
+            return sizeMid() * SIZE_PROBE_STEP;
+        }
 
-            // Truncate long error messages
-            if (error.length() > 50) {
-                error = error.substring(0, 50) + "...";
+        ResolverResult toResult() {
+            if (base != null) {
+                return base.withMeasurements(maxResponseSize, maxQueryNameLength, maxQueryLabelLength,
+                        base.truncates || truncates, tcpLatencyMs);
+            }
+            if (hijacked) {
+                long latency = answered > 0 ? rtts[0] : lastFailureLatency;
+                return new ResolverResult(address, resolver, latency, false, "answers nonexistent names", false,
+                        taken, latency, 0, 1, ProbeOutcome.HIJACKED);
             }
+            if (answered == 0) {
+                return new ResolverResult(address, resolver, lastFailureLatency, false, lastError, false,
+                        taken, lastFailureLatency, 0, 1, lastFailureOutcome);
+            }
+            long jitter = 0;
+            for (int i = 1; i < answered; i++) {
+                jitter += Math.abs(rtts[i] - rtts[i - 1]);
+            }
+            if (answered > 1) {
+                jitter /= answered - 1;
+            }
+            long[] sorted = Arrays.copyOf(rtts, answered);
+            Arrays.sort(sorted);
+            double loss = (double) (taken - answered) / taken;
+            return new ResolverResult(address, resolver, percentile(sorted, 50), true, null, cached,
+                    taken, percentile(sorted, 90), jitter, loss, successOutcome, maxResponseSize,
+                    maxQueryNameLength, maxQueryLabelLength, 0, truncates, tcpLatencyMs);
+        }
 
-            return new ResolverResult(resolver, latency, false, error);
+        // Nearest-rank percentile of a sorted array
+        private static long percentile(long[] sorted, int p) {
+            int rank = (p * sorted.length + 99) / 100;
+            return sorted[Math.max(0, rank - 1)];
         }
     }
 
+    /**
+     * Classify the reply to a sample: a dnstt poll in tunnel mode, otherwise
+     * a TXT query for a nonce name.
+     */
+    private static ProbeOutcome classifyReply(ByteBuffer response, DnsWireCodec.Response parsed,
+                                              boolean tunnelMode, long nonce, byte[] domainName) {
+        if (!DnsWireCodec.parse(response, parsed) || !parsed.isResponse()) {
+            return ProbeOutcome.MALFORMED;
+        }
+        boolean echoed = tunnelMode
+                ? DnsWireCodec.pollQuestionEquals(response, parsed, nonce, pollPadding(nonce), domainName)
+                : DnsWireCodec.nonceQuestionEquals(response, parsed, nonce, domainName, DnsWireCodec.TYPE_TXT);
+        if (!echoed) {
+            return ProbeOutcome.MALFORMED;
+        }
+        switch (parsed.rcode()) {
+            case DnsWireCodec.RCODE_NOERROR:
+                if (!tunnelMode) return ProbeOutcome.ANSWERED;
+                if (parsed.isTruncated()) return ProbeOutcome.TRUNCATED;
+                return DnsWireCodec.isTunnelPayload(response, parsed)
+                        ? ProbeOutcome.REACHES_SERVER : ProbeOutcome.BAD_ANSWER;
+            case DnsWireCodec.RCODE_NXDOMAIN:
+                return tunnelMode ? ProbeOutcome.NXDOMAIN : ProbeOutcome.ANSWERED;
+            case DnsWireCodec.RCODE_SERVFAIL:
+                return ProbeOutcome.SERVFAIL;
+            case DnsWireCodec.RCODE_FORMERR:
+                return ProbeOutcome.FORMERR;
+            case DnsWireCodec.RCODE_REFUSED:
+                return ProbeOutcome.REFUSED;
+            default:
+                return ProbeOutcome.OTHER_RCODE;
+        }
+    }
+
+    private static String describe(ProbeOutcome outcome, DnsWireCodec.Response parsed) {
+        switch (outcome) {
+            case MALFORMED:
+                return "malformed response";
+            case BAD_ANSWER:
+                return "not a dnstt answer";
+            case TRUNCATED:
+                return "truncated";
+            default:
+                return "rcode=" + DnsWireCodec.rcodeName(parsed.rcode());
+        }
+    }
+
+    /**
+     * Whether a reply to a nonce query looks like it was answered from cache.
+     * A nonce name can never be in a cache, so a decremented TTL, a negative
+     * answer synthesised with someone else's SOA, or an impossibly fast reply
+     * all mean the resolver did not ask our server.
+     */
+    private static boolean looksCached(DnsWireCodec.Response parsed, long latencyMs) {
+        if (parsed.minAnswerTtl >= 0 && parsed.minAnswerTtl < AUTHORITATIVE_TTL) {
+            return true;
+        }
+        // dnstt-server never puts records in the authority section
+        if (parsed.rcode() == DnsWireCodec.RCODE_NXDOMAIN && parsed.authorityCount > 0) {
+            return true;
+        }
+        return latencyMs < CACHE_LATENCY_FLOOR_MS;
+    }
+
+    /**
+     * Padding bytes for a tunnel poll, derived from its ClientID so the
+     * question echo can be checked without storing a second value per probe.
+     */
+    private static long pollPadding(long clientId) {
+        return clientId * 0x9E3779B97F4A7C15L;
+    }
+
+    // Truncate long error messages
+    private static String truncateError(String error) {
+        if (error == null) return "error";
+        return error.length() > 50 ? error.substring(0, 50) + "..." : error;
+    }
+
     /**
      * Filter results to get the top N fastest successful resolvers.
      */
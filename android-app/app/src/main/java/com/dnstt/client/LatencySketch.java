@@ -0,0 +1,53 @@
+package com.dnstt.client;
+
+/**
+ * Fixed-size log-bucketed histogram of latencies for approximate quantiles.
+ *
+ * Buckets grow by 8% each, covering 1 ms to roughly 19 s in 128 counters, so
+ * a quantile is accurate to within one bucket (about 4%) and adding a sample
+ * is a log and an increment. Not thread-safe.
+ */
+final class LatencySketch {
+    private static final int BUCKETS = 128;
+    private static final double GROWTH = 1.08;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+
+    void add(long latencyMs) {
+        counts[bucketOf(latencyMs)]++;
+        total++;
+    }
+
+    long count() {
+        return total;
+    }
+
+    /**
+     * Approximate q-quantile (0..1) in milliseconds, or -1 if empty.
+     * Returns the upper bound of the bucket holding the quantile.
+     */
+    long quantile(double q) {
+        if (total == 0) return -1;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static int bucketOf(long latencyMs) {
+        if (latencyMs <= 1) return 0;
+        int bucket = (int) Math.ceil(Math.log(latencyMs) / LOG_GROWTH);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) Math.ceil(Math.pow(GROWTH, bucket));
+    }
+}
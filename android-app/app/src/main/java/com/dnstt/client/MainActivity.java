@@ -4,6 +4,9 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Color;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
 import android.net.Uri;
 import android.net.VpnService;
 import android.os.Bundle;
@@ -31,6 +34,7 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.dnstt.client.models.ResolverAddress;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import com.google.android.material.button.MaterialButton;
@@ -60,14 +64,18 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private boolean hasAutoConnected = false;
 
     // Performance settings
-    private int dnsDigConcurrency = 50;    // Phase 1: DNS dig scan concurrency (10-200)
+    private int dnsDigConcurrency = 500;   // Phase 1: DNS dig queries in flight (10-2000)
     private int dnsTunnelConcurrency = 10; // Phase 2: DNS tunnel scan concurrency (1-20)
     private int dnsTimeout = 3000;         // DNS test timeout in milliseconds (500-10000)
+    private int dnsSamples = 1;            // Phase 1: spaced probes per resolver (1-5)
     private String currentConnectedDns = null;  // Track current connected DNS for retry
+    private ResolverAddress currentConnectedAddress = null;  // Parsed currentConnectedDns; null for DoH/DoT
+    private String connectedNetwork = null;     // Network currentConnectedDns was found on
 
     private DnsServerManager dnsServerManager;
     private Thread searchThread = null;
     private ExecutorService dnsTestExecutor = null;  // Track parallel DNS testing executor
+    private volatile FastDnsTester.ScanHandle dnsScanHandle = null;  // Cancels the running resolver scan
 
     // DoH provider presets - name -> URL mapping
     private static final String[][] DOH_PROVIDERS = {
@@ -121,6 +129,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private TextInputEditText dnsDigConcurrencyInput;
     private TextInputEditText dnsTunnelConcurrencyInput;
     private TextInputEditText dnsTimeoutInput;
+    private TextInputEditText dnsSamplesInput;
     private View dnsDigConcurrencyLayout;
     private View dnsTunnelConcurrencyLayout;
     private View dnsTimeoutLayout;
@@ -134,6 +143,10 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
 
     // DNS config manager
     private DnsConfigManager dnsConfigManager;
+    private ResolverReputationStore resolverReputation;
+    private ScanResultCache scanCache;
+    // Keeps resolver history and cached rankings on the current network
+    private ConnectivityManager.NetworkCallback networkCallback;
 
     // Activity result launcher for configuration activity
     private ActivityResultLauncher<Intent> configActivityLauncher;
@@ -143,8 +156,20 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private long lastBytesOut = 0;
     private long lastUpdateTime = 0;
     private long currentLatencyMs = 0;
+    // Phase 1 result for the resolver found by the last search; its measured
+    // query name limits and rate shape the tunnel while it is in use
+    private String measuredResolver = null;
+    private FastDnsTester.ResolverResult measuredResult = null;
     private double smoothedSpeedKBps = 0;  // Smoothed speed to prevent flickering
     private static final double SPEED_SMOOTHING_FACTOR = 0.3;  // Lower = smoother, higher = more responsive
+    private static final double MIN_RECORDED_SPEED_KBPS = 5;  // Slower samples are idle time, not the resolver
+    // Each hour a tunnel holds counts as another success for its resolver
+    private static final long HELD_CREDIT_INTERVAL_MS = 60 * 60 * 1000;
+    // Time the found resolver's size, name and TCP checks may add before connecting
+    private static final long MEASURE_BUDGET_MS = 4000;
+    // Time its query rate bursts may add; enough for every step at a second each
+    private static final long QPS_BUDGET_MS = 8000;
+    private long heldCreditedAt = 0;
 
     // Auto-reconnect settings
     private boolean autoReconnectEnabled = true;
@@ -173,8 +198,12 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         dnsServerManager = new DnsServerManager(this);
         appendLog("Loaded " + dnsServerManager.getServerCount() + " DNS servers");
 
-        // Initialize DNS config manager
+        // Initialize DNS config manager and resolver history
         dnsConfigManager = new DnsConfigManager(this);
+        resolverReputation = ResolverReputationStore.get(this);
+        scanCache = new ScanResultCache(new java.io.File(getFilesDir(), SCAN_CACHE_DIR));
+        removeLegacyDnsCache();
+        registerNetworkCallback();
 
         // Register Configuration Activity launcher
         configActivityLauncher = registerForActivityResult(
@@ -281,6 +310,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         dnsDigConcurrencyInput = findViewById(R.id.dnsDigConcurrencyInput);
         dnsTunnelConcurrencyInput = findViewById(R.id.dnsTunnelConcurrencyInput);
         dnsTimeoutInput = findViewById(R.id.dnsTimeoutInput);
+        dnsSamplesInput = findViewById(R.id.dnsSamplesInput);
         dnsDigConcurrencyLayout = findViewById(R.id.dnsDigConcurrencyLayout);
         dnsTunnelConcurrencyLayout = findViewById(R.id.dnsTunnelConcurrencyLayout);
         dnsTimeoutLayout = findViewById(R.id.dnsTimeoutLayout);
@@ -339,11 +369,11 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                     try {
                         int value = Integer.parseInt(s.toString());
                         if (value < 10) value = 10;
-                        if (value > 200) value = 200;
+                        if (value > 2000) value = 2000;
                         dnsDigConcurrency = value;
                         saveSettings();
                     } catch (NumberFormatException e) {
-                        dnsDigConcurrency = 50; // default
+                        dnsDigConcurrency = 500; // default
                     }
                 }
             });
@@ -397,6 +427,30 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             });
         }
 
+        // Setup DNS samples input with validation (Phase 1)
+        if (dnsSamplesInput != null) {
+            dnsSamplesInput.addTextChangedListener(new android.text.TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+                @Override
+                public void afterTextChanged(android.text.Editable s) {
+                    try {
+                        int value = Integer.parseInt(s.toString());
+                        if (value < 1) value = 1;
+                        if (value > 5) value = 5;
+                        dnsSamples = value;
+                        saveSettings();
+                    } catch (NumberFormatException e) {
+                        dnsSamples = 1; // default
+                    }
+                }
+            });
+        }
+
         // Setup update button
         updateButton.setOnClickListener(v -> checkForUpdates());
 
@@ -756,8 +810,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         }
 
         // First check if the selected DNS source has any servers (without lastSuccessful fallback)
-        String sourceServers = dnsConfigManager.getDnsServersForAutoSearch();
-        if (sourceServers == null || sourceServers.trim().isEmpty()) {
+        if (dnsConfigManager.getResolversForAutoSearch().isEmpty()) {
             String sourceName = dnsConfigManager.getSelectedSourceDisplayName();
             appendLog("ERROR: DNS source '" + sourceName + "' is empty");
             appendLog("Please add DNS servers or switch to Global DNS");
@@ -770,17 +823,11 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             return;
         }
 
-        // Get resolvers with prioritization (last successful first, no exclusions)
-        String resolversStr = dnsConfigManager.getDnsServersForAutoSearchWithPriority(null);
+        // Rank and cache lookups below use this network's history
+        updateNetworkIdentity();
 
-        // Parse resolvers into list
-        java.util.List<String> resolverList = new java.util.ArrayList<>();
-        for (String line : resolversStr.split("\n")) {
-            line = line.trim();
-            if (!line.isEmpty() && !line.startsWith("#")) {
-                resolverList.add(line);
-            }
-        }
+        // Get resolvers with prioritization (best history first, no exclusions)
+        java.util.List<ResolverAddress> resolverList = dnsConfigManager.getResolversForAutoSearchWithPriority(null);
 
         int totalResolvers = resolverList.size();
         if (totalResolvers == 0) {
@@ -813,10 +860,29 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         final int phase1Concurrency = dnsDigConcurrency;     // DNS Dig Concurrency (Phase 1)
         final int phase2Concurrency = dnsTunnelConcurrency;  // DNS Tunnel Concurrency (Phase 2)
         final int phase1TimeoutMs = (int) dnsTimeout;
+        final FastDnsTester.ScanOptions phase1Options = new FastDnsTester.ScanOptions()
+            .setProbeMode(FastDnsTester.ProbeMode.TUNNEL)  // Only resolvers that reach dnstt-server pass
+            .setHijackCheck(true)                          // Drop resolvers that forge answers
+            .setSamples(dnsSamples)
+            .setAdaptiveTimeout(3.0, 50)   // Cut off at 3x p95 once 50 resolvers have answered
+            .setPacketsPerSecond(1000)     // Stay under socket buffer and carrier NAT limits
+            .setMaxInFlightPerPrefix(4);   // Don't hit one provider's /24 all at once
+        // Phase 1.5, on the resolver Phase 2 settles on only, so the scan
+        // hands good resolvers to Phase 2 without waiting for these
+        final FastDnsTester.ScanOptions measureOptions = new FastDnsTester.ScanOptions()
+            .setProbeMode(FastDnsTester.ProbeMode.TUNNEL)
+            .setMeasureResponseSize(true)  // Find the largest reply the path delivers
+            .setMeasureQueryNames(true)    // And the longest query name it forwards
+            .setTcpCheck(true);            // Note whether it answers on TCP/53
         final int phase2MaxToTest = 50;  // Test top 50 fastest resolvers in phase 2
         final long maxLatencyMs = 1000;  // Consider resolvers under 1000ms
 
-        appendLog("Dig=" + phase1Concurrency + ", Tunnel=" + phase2Concurrency + ", Timeout=" + dnsTimeout + "ms");
+        appendLog("Dig=" + phase1Concurrency + ", Tunnel=" + phase2Concurrency + ", Timeout=" + dnsTimeout + "ms"
+            + (dnsSamples > 1 ? ", Samples=" + dnsSamples : ""));
+
+        // Cancelling stops Phase 1 and the encrypted scan immediately
+        final FastDnsTester.ScanHandle scanHandle = new FastDnsTester.ScanHandle();
+        dnsScanHandle = scanHandle;
 
         // Run hybrid search in background thread
         searchThread = new Thread(() -> {
@@ -824,11 +890,15 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                 final long[] lastUIUpdate = {0};
                 final long UI_UPDATE_INTERVAL = 50; // ms
                 String workingResolver = null;
+                // Parsed address of workingResolver; null for DoH and DoT
+                ResolverAddress workingAddress = null;
 
                 // ================================================================
-                // ATTEMPT 1: Try cached resolvers first (if available)
+                // ATTEMPT 1: Try cached resolvers first (if available), after
+                // re-probing the stale and suspect ones
                 // ================================================================
-                java.util.List<FastDnsTester.ResolverResult> cachedResults = loadPhase1Cache(dom);
+                java.util.List<FastDnsTester.ResolverResult> cachedResults = refreshPhase1Cache(
+                    dom, phase1TimeoutMs, phase1Concurrency, phase1Options, scanHandle);
                 if (cachedResults != null && !cachedResults.isEmpty() && !cancelSearch) {
                     final int cachedCount = cachedResults.size();
                     handler.post(() -> {
@@ -837,22 +907,29 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                         statusSubtext.setText("Testing cached resolvers...");
                     });
 
+                    // Resolvers that have held tunnels before go first; untried ones
+                    // still get a turn now and then
+                    java.util.List<FastDnsTester.ResolverResult> ranked = new ResolverSelector(resolverReputation).rank(cachedResults);
                     java.util.List<FastDnsTester.ResolverResult> cachePhase2 = cachedCount > phase2MaxToTest
-                        ? cachedResults.subList(0, phase2MaxToTest)
-                        : cachedResults;
+                        ? ranked.subList(0, phase2MaxToTest)
+                        : ranked;
 
                     // Run phase 2 on cached resolvers
-                    workingResolver = runPhase2(cachePhase2, dom, pubkeyHex, phase2Concurrency, phase1TimeoutMs, lastUIUpdate, UI_UPDATE_INTERVAL);
+                    FastDnsTester.ResolverResult cachedWorking = runPhase2(cachePhase2, dom, pubkeyHex,
+                        phase2Concurrency, phase1TimeoutMs, lastUIUpdate, UI_UPDATE_INTERVAL);
 
-                    if (workingResolver != null) {
+                    if (cachedWorking != null) {
+                        workingResolver = cachedWorking.resolver;
+                        workingAddress = cachedWorking.address;
                         handler.post(() -> appendLog("Cached resolver worked!"));
+                        rememberMeasured(cachedWorking, dom, phase1TimeoutMs, measureOptions, scanHandle);
                     } else if (!cancelSearch) {
-                        // Cache failed - clear it and do full scan
+                        // Cache failed - re-probe these before they are tried again, and do full scan
                         handler.post(() -> {
-                            appendLog("Cached resolvers failed - clearing cache");
+                            appendLog("Cached resolvers failed - marking them for re-probe");
                             appendLog("Starting full scan...");
                         });
-                        clearPhase1Cache(dom);
+                        markPhase1CacheSuspect(dom, cachePhase2);
                     }
                 }
 
@@ -860,17 +937,57 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                 // ATTEMPT 2: Full scan (Phase 1 + Phase 2) if cache missed or failed
                 // ================================================================
                 if (workingResolver == null && !cancelSearch) {
-                    // PHASE 1: Fast native Java DNS testing
+                    // PHASE 1: Fast native Java DNS testing, with PHASE 2 (Go tunnel
+                    // verification) running on each good resolver as soon as it is found
                     handler.post(() -> {
                         appendLog("Phase 1: Testing " + totalResolvers + " DNS resolvers (Java native)...");
+                        appendLog("Phase 2: Verifying resolvers as Phase 1 finds them (Go tunnel)...");
                         statusSubtext.setText("Scanning DNS (first time only, please wait)...");
                     });
 
-                    java.util.List<FastDnsTester.ResolverResult> phase1Results = FastDnsTester.testResolvers(
+                    ExecutorService verifierExecutor = Executors.newFixedThreadPool(Math.max(1, phase2Concurrency));
+                    dnsTestExecutor = verifierExecutor;
+                    TunnelVerifier verifier = new TunnelVerifier(
+                        verifierExecutor, dom, pubkeyHex, phase1TimeoutMs, phase2MaxToTest, resolverReputation,
+                        new TunnelVerifier.Listener() {
+                            @Override
+                            public void onVerifying(int started, int submitted, String resolver) {
+                                if (cancelSearch) return;
+                                handler.post(() -> statusSubtext.setText("Tunnel Test: " + started + "/" + submitted));
+                            }
+
+                            @Override
+                            public void onFound(String resolver, long latencyMs) {
+                                if (cancelSearch) return;
+                                handler.post(() -> {
+                                    appendLog("FOUND: " + resolver + " (" + latencyMs + "ms)");
+                                    currentLatencyMs = latencyMs;
+                                    latencyText.setText(latencyMs + " ms");
+                                });
+                            }
+                        });
+
+                    // Every probe result, folded into the cache afterwards
+                    final java.util.List<FastDnsTester.ResolverResult> scanned = new ArrayList<>();
+
+                    // Stops as soon as a tunnel verifies, or once phase2MaxToTest
+                    // resolvers under maxLatencyMs have answered
+                    java.util.List<FastDnsTester.ResolverResult> phase1Results = FastDnsTester.scanResolvers(
                         resolverList,
                         dom,
                         phase1TimeoutMs,
                         phase1Concurrency,
+                        phase2MaxToTest,
+                        maxLatencyMs,
+                        phase1Options,
+                        result -> {
+                            recordProbeResult(result);
+                            scanned.add(result);
+                            if (result.isGood(maxLatencyMs)) {
+                                verifier.submit(result);
+                            }
+                            return !cancelSearch && !verifier.isFound();
+                        },
                         new FastDnsTester.Callback() {
                             @Override
                             public void onProgress(int tested, int total, String currentResolver) {
@@ -891,7 +1008,8 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                                     appendLog("Phase 1 complete: " + passedCount + "/" + totalTested + " passed DNS test");
                                 });
                             }
-                        }
+                        },
+                        scanHandle
                     );
 
                     if (cancelSearch) {
@@ -909,38 +1027,76 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                     }
 
                     // Save phase 1 results to cache for next time
-                    savePhase1Cache(dom, phase1Results);
-
-                    // Get top fastest resolvers for phase 2
-                    java.util.List<FastDnsTester.ResolverResult> phase2Candidates =
-                        FastDnsTester.getTopFastest(phase1Results, phase2MaxToTest, maxLatencyMs);
+                    savePhase1Cache(dom, scanned);
+
+                    if (!verifier.isFound() && verifier.getSubmittedCount() == 0) {
+                        // Fallback: nothing met the latency bar, verify the best of any successful resolvers
+                        java.util.List<FastDnsTester.ResolverResult> answered = new ResolverSelector(resolverReputation)
+                            .rank(FastDnsTester.getTopFastest(phase1Results, Integer.MAX_VALUE, -1));
+                        for (FastDnsTester.ResolverResult r : answered) {
+                            if (!verifier.submit(r)) break;
+                        }
+                    }
 
-                    if (phase2Candidates.isEmpty()) {
-                        // Fallback: take any successful resolvers
-                        phase2Candidates = FastDnsTester.getTopFastest(phase1Results, phase2MaxToTest, -1);
+                    if (verifier.getSubmittedCount() == 0) {
+                        handler.post(() -> appendLog("No resolvers passed DNS test over UDP"));
+                    } else {
+                        // Wait for the verifications still in flight
+                        try {
+                            workingResolver = verifier.awaitResult();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
                     }
+                    verifierExecutor.shutdownNow();
 
-                    if (phase2Candidates.isEmpty()) {
-                        handler.post(() -> {
-                            isSearching = false;
-                            long duration = System.currentTimeMillis() - searchStartTime;
-                            appendLog("ERROR: No resolvers passed DNS test after " + (duration / 1000) + " seconds");
-                            appendLog("Try switching to DoH or DoT transport");
-                            connectButton.setText(R.string.connect);
-                            statusText.setText(R.string.status_disconnected);
-                            statusText.setTextColor(getColor(R.color.disconnected));
-                            statusCircle.setBackgroundResource(R.drawable.status_circle_disconnected);
-                            setInputsEnabled(true);
-                        });
-                        return;
+                    FastDnsTester.ResolverResult foundResult = verifier.getFoundResult();
+                    if (foundResult != null) {
+                        workingAddress = foundResult.address;
+                    }
+                    if (workingResolver != null && foundResult != null && !cancelSearch) {
+                        rememberMeasured(foundResult, dom, phase1TimeoutMs, measureOptions, scanHandle);
                     }
+                }
 
-                    // PHASE 2: Go tunnel verification
-                    workingResolver = runPhase2(phase2Candidates, dom, pubkeyHex, phase2Concurrency, phase1TimeoutMs, lastUIUpdate, UI_UPDATE_INTERVAL);
+                // ================================================================
+                // ATTEMPT 3: DoH and DoT presets, for networks that filter UDP/53
+                // ================================================================
+                String encryptedType = null;
+                if (workingResolver == null && !cancelSearch) {
+                    handler.post(() -> {
+                        appendLog("Phase 3: Testing DoH and DoT resolvers...");
+                        statusSubtext.setText("Testing encrypted resolvers...");
+                    });
+                    FastDnsTester.ScanOptions encryptedOptions = new FastDnsTester.ScanOptions()
+                        .setProbeMode(FastDnsTester.ProbeMode.TUNNEL)
+                        .setSamples(Math.max(2, dnsSamples));
+                    for (FastDnsTester.EncryptedTransport transport : FastDnsTester.EncryptedTransport.values()) {
+                        if (cancelSearch) break;
+                        java.util.List<FastDnsTester.ResolverResult> ranked = FastDnsTester.testEncryptedResolvers(
+                            getEncryptedEndpoints(transport), transport, dom, phase1TimeoutMs,
+                            phase2Concurrency, encryptedOptions, null, scanHandle);
+                        if (!ranked.isEmpty() && ranked.get(0).success) {
+                            final FastDnsTester.ResolverResult best = ranked.get(0);
+                            workingResolver = best.resolver;
+                            encryptedType = transport == FastDnsTester.EncryptedTransport.DOH ? "DoH" : "DoT";
+                            final String typeName = encryptedType;
+                            handler.post(() -> {
+                                measuredResolver = best.resolver;
+                                measuredResult = best;
+                                appendLog("FOUND: " + best.resolver + " via " + typeName + " (" + best.latencyMs + "ms)");
+                                currentLatencyMs = best.latencyMs;
+                                latencyText.setText(best.latencyMs + " ms");
+                            });
+                            break;
+                        }
+                    }
                 }
 
                 final long searchDuration = System.currentTimeMillis() - searchStartTime;
                 final String finalResolver = workingResolver;
+                final ResolverAddress finalAddress = workingAddress;
+                final String finalEncryptedType = encryptedType;
 
                 handler.post(() -> {
                     isSearching = false;
@@ -958,7 +1114,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
 
                     if (finalResolver == null || finalResolver.isEmpty()) {
                         appendLog("ERROR: No working resolver found after " + (searchDuration / 1000) + " seconds");
-                        appendLog("Try switching to DoH or DoT transport");
+                        appendLog("No UDP, DoH or DoT resolver reached the server");
                         connectButton.setText(R.string.connect);
                         statusText.setText(R.string.status_disconnected);
                         statusText.setTextColor(getColor(R.color.disconnected));
@@ -969,7 +1125,15 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
 
                     // Save successful DNS for future prioritization
                     currentConnectedDns = finalResolver;
-                    dnsConfigManager.saveLastSuccessfulDns(finalResolver);
+                    currentConnectedAddress = finalAddress;
+                    connectedNetwork = resolverReputation.getNetwork();
+                    heldCreditedAt = System.currentTimeMillis();
+                    if (finalEncryptedType == null) {
+                        dnsConfigManager.recordSuccessfulDns(finalAddress);
+                    } else {
+                        // Only for this connection; loading settings with Auto DNS goes back to UDP
+                        transportType.setText(finalEncryptedType, false);
+                    }
 
                     appendLog("====================================");
                     appendLog("USING DNS: " + finalResolver);
@@ -1011,11 +1175,82 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         searchThread.start();
     }
 
+    /**
+     * Endpoints Phase 3 ranks: the DoH presets, or for DoT the same hosts on port 853.
+     */
+    private static java.util.List<String> getEncryptedEndpoints(FastDnsTester.EncryptedTransport transport) {
+        java.util.Set<String> endpoints = new java.util.LinkedHashSet<>();
+        for (String[] provider : DOH_PROVIDERS) {
+            if (provider[1].isEmpty()) continue;
+            if (transport == FastDnsTester.EncryptedTransport.DOH) {
+                endpoints.add(provider[1]);
+            } else {
+                endpoints.add(android.net.Uri.parse(provider[1]).getHost() + ":853");
+            }
+        }
+        return new java.util.ArrayList<>(endpoints);
+    }
+
+    /**
+     * Measure the resolver a search settled on, unless its cached result
+     * already carries measurements, and keep them to shape the tunnel
+     * through it. Called on the search thread, before connecting.
+     */
+    private void rememberMeasured(FastDnsTester.ResolverResult found, String domain, int timeoutMs,
+                                  FastDnsTester.ScanOptions options, FastDnsTester.ScanHandle handle) {
+        boolean measuredBefore = found.maxResponseSize > 0 || found.maxQueryNameLength > 0 || found.tcpLatencyMs >= 0;
+        if (found.address != null && !measuredBefore && !cancelSearch) {
+            handler.post(() -> statusSubtext.setText("Measuring resolver..."));
+            found = FastDnsTester.measureResolvers(java.util.Collections.singletonList(found), domain, timeoutMs, 1,
+                options, MEASURE_BUDGET_MS, handle).get(0);
+            if (!cancelSearch) {
+                scanCache.merge(getCacheKey(domain), java.util.Collections.singletonList(found));
+            }
+        }
+        // The query rate limit takes seconds of bursts to find, so it is
+        // reused from history until it goes stale. It is measured here, before
+        // the tunnel adds its own queries to the resolver's load
+        ResolverReputationStore.Reputation history =
+            found.address != null ? resolverReputation.get(found.address) : null;
+        int qps = history != null ? history.getMaxQps(System.currentTimeMillis()) : -1;
+        if (found.address != null && qps < 0 && !cancelSearch) {
+            handler.post(() -> statusSubtext.setText("Measuring query rate..."));
+            qps = FastDnsTester.measureSustainableQps(found.address, domain, timeoutMs, QPS_BUDGET_MS, handle);
+            if (qps >= 0) {
+                resolverReputation.recordMaxQps(found.address, qps);
+            }
+        }
+        final int knownQps = qps;
+        final FastDnsTester.ResolverResult measured = knownQps >= 0 ? found.withMaxQps(knownQps) : found;
+        final String resolver = found.resolver;
+        handler.post(() -> {
+            measuredResolver = resolver;
+            measuredResult = measured;
+            if (measured.maxResponseSize > 0) {
+                appendLog("Max response size via " + resolver + ": " + measured.maxResponseSize + " bytes");
+            }
+            if (!measured.passesFullSizeQueries()) {
+                appendLog("Query names limited to " + measured.maxQueryNameLength
+                    + " bytes, labels to " + measured.maxQueryLabelLength);
+            }
+            if (measured.truncates) {
+                appendLog(measured.prefersTcp()
+                    ? "Resolver truncates UDP replies, using TCP (" + measured.tcpLatencyMs + "ms)"
+                    : "WARNING: Resolver truncates UDP replies and has no TCP");
+            }
+            if (knownQps >= 0) {
+                appendLog(measured.maxQps > 0
+                    ? "Resolver throttles above " + measured.maxQps + " queries/s"
+                    : "No query rate limit found");
+            }
+        });
+    }
+
     /**
      * Run Phase 2 (Go tunnel verification) on a list of resolver candidates.
-     * Returns the first working resolver, or null if none work.
+     * Returns the candidate that worked first, or null if none work.
      */
-    private String runPhase2(
+    private FastDnsTester.ResolverResult runPhase2(
             java.util.List<FastDnsTester.ResolverResult> candidates,
             String domain,
             String pubkeyHex,
@@ -1094,7 +1329,17 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             }
         );
 
-        return workingResolver;
+        if (workingResolver == null || workingResolver.isEmpty()) {
+            return null;
+        }
+        // Go hands back the address with its port filled in; map it to its candidate
+        ResolverAddress found = ResolverAddress.parse(workingResolver);
+        for (FastDnsTester.ResolverResult r : candidates) {
+            if (found != null ? found.equals(r.address) : r.resolver.equals(workingResolver)) {
+                return r;
+            }
+        }
+        return null;
     }
 
     private void attemptAutoReconnect() {
@@ -1102,19 +1347,25 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             appendLog("Auto-reconnect: Max attempts (" + MAX_RECONNECT_ATTEMPTS + ") reached, giving up");
             Toast.makeText(this, "Connection lost. Max reconnect attempts reached.", Toast.LENGTH_LONG).show();
             currentConnectedDns = null;
+            currentConnectedAddress = null;
             reconnectAttempts = 0;
             return;
         }
 
         reconnectAttempts++;
         String failedDns = currentConnectedDns;
+        ResolverAddress failedAddress = currentConnectedAddress;
 
         appendLog("====================================");
         appendLog("AUTO-RECONNECT: Attempt " + reconnectAttempts + "/" + MAX_RECONNECT_ATTEMPTS);
-        if (failedDns != null) {
+        updateNetworkIdentity();
+        if (failedDns != null && !resolverReputation.getNetwork().equals(connectedNetwork)) {
+            // The network went away, not the DNS; the new network has its own ranking
+            appendLog("Network changed since connecting via " + failedDns);
+        } else if (failedDns != null) {
             appendLog("Previous DNS failed: " + failedDns);
-            // Deprioritize the failed DNS
-            dnsConfigManager.moveDnsToEnd(failedDns);
+            // Deprioritize the failed DNS until it recovers
+            dnsConfigManager.recordFailedDns(failedAddress);
         }
         appendLog("====================================");
 
@@ -1145,10 +1396,10 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             return;
         }
 
-        appendLog("Moving " + currentConnectedDns + " to end of list");
+        appendLog("Moving " + currentConnectedDns + " down the list");
 
-        // Move current DNS to the end of the list
-        dnsConfigManager.moveDnsToEnd(currentConnectedDns);
+        // Record the failure so auto search tries other DNS first
+        dnsConfigManager.recordFailedDns(currentConnectedAddress);
 
         appendLog("Retrying with different DNS from reordered list");
 
@@ -1163,10 +1414,10 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                 numTunnels = Integer.parseInt(getText(tunnels));
             } catch (NumberFormatException ignored) {}
 
-            // Get resolvers with new order (failed DNS now at the end)
-            String resolvers = dnsConfigManager.getDnsServersForAutoSearchWithPriority(null);
+            // Get resolvers with new order (failed DNS now tried later)
+            java.util.List<ResolverAddress> resolvers = dnsConfigManager.getResolversForAutoSearchWithPriority(null);
 
-            if (resolvers == null || resolvers.trim().isEmpty()) {
+            if (resolvers.isEmpty()) {
                 appendLog("ERROR: No DNS servers available");
                 Toast.makeText(this, "No DNS servers available", Toast.LENGTH_SHORT).show();
                 return;
@@ -1186,6 +1437,9 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         cancelSearch = true;
         isSearching = false;
 
+        // Stop the resolver scan: closes its sockets, no more callbacks
+        cancelDnsScan();
+
         // Shutdown parallel DNS test executor immediately
         if (dnsTestExecutor != null) {
             appendLog("Stopping parallel DNS tests...");
@@ -1210,6 +1464,19 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         });
     }
 
+    /**
+     * Cancel the resolver scan of the current search, if any. Returns once
+     * its sockets are closed, so a new search does not compete with it, and
+     * never waits on a running callback; those check cancelSearch.
+     */
+    private void cancelDnsScan() {
+        FastDnsTester.ScanHandle scan = dnsScanHandle;
+        dnsScanHandle = null;
+        if (scan != null) {
+            scan.cancel();
+        }
+    }
+
     private void startVpnService() {
         appendLog("Starting VPN service...");
 
@@ -1225,7 +1492,12 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
 
         Intent intent = new Intent(this, DnsttVpnService.class);
         intent.setAction(DnsttVpnService.ACTION_START);
-        intent.putExtra(DnsttVpnService.EXTRA_TRANSPORT_TYPE, transportType.getText().toString().toLowerCase());
+        FastDnsTester.ResolverResult measured = getMeasuredResult();
+        String type = transportType.getText().toString().toLowerCase();
+        if (measured != null && measured.prefersTcp()) {
+            type = "tcp"; // Same resolver over TCP/53; UDP replies get truncated
+        }
+        intent.putExtra(DnsttVpnService.EXTRA_TRANSPORT_TYPE, type);
         intent.putExtra(DnsttVpnService.EXTRA_TRANSPORT_ADDR, getText(transportAddr));
         intent.putExtra(DnsttVpnService.EXTRA_DOMAIN, getDomain());
         intent.putExtra(DnsttVpnService.EXTRA_PUBKEY, getText(pubkey));
@@ -1235,10 +1507,23 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         } catch (NumberFormatException e) {
             intent.putExtra(DnsttVpnService.EXTRA_TUNNELS, 8);
         }
+        if (measured != null) {
+            intent.putExtra(DnsttVpnService.EXTRA_MAX_NAME_LENGTH, measured.maxQueryNameLength);
+            intent.putExtra(DnsttVpnService.EXTRA_MAX_LABEL_LENGTH, measured.maxQueryLabelLength);
+            intent.putExtra(DnsttVpnService.EXTRA_MAX_QPS, measured.maxQps);
+        }
 
         startForegroundService(intent);
     }
 
+    /**
+     * Phase 1 result for the resolver currently in the transport field, or
+     * null if it was not found by a search.
+     */
+    private FastDnsTester.ResolverResult getMeasuredResult() {
+        return measuredResolver != null && measuredResolver.equals(getText(transportAddr)) ? measuredResult : null;
+    }
+
     private void connectSocksProxy() {
         // Stop any previous client first to avoid port conflicts
         if (client != null) {
@@ -1252,7 +1537,12 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
 
         Config config = mobile.Mobile.newConfig();
 
+        FastDnsTester.ResolverResult measured = getMeasuredResult();
         String type = transportType.getText().toString().toLowerCase();
+        if (measured != null && measured.prefersTcp()) {
+            type = "tcp"; // Same resolver over TCP/53; UDP replies get truncated
+            appendLog("Using TCP to " + getText(transportAddr));
+        }
         config.setTransportType(type);
         config.setTransportAddr(getText(transportAddr));
         config.setDomain(getDomain());
@@ -1265,7 +1555,15 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             config.setTunnels(8);
         }
 
-        config.setMTU(1232);
+        if (measured != null) {
+            // Zero values keep the client defaults
+            config.setMaxNameLength(measured.maxQueryNameLength);
+            config.setMaxLabelLength(measured.maxQueryLabelLength);
+            config.setMaxQPS(measured.maxQps);
+            if (measured.maxQps > 0) {
+                appendLog("Query pacing: " + measured.maxQps + "/s");
+            }
+        }
         config.setUTLSFingerprint("none"); // Use standard TLS - uTLS causes errors on Android
         config.setUseZstd(true); // Enable zstd compression (server has it on by default)
         appendLog("Zstd compression: enabled");
@@ -1520,6 +1818,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                             attemptAutoReconnect();
                         } else {
                             currentConnectedDns = null;
+                            currentConnectedAddress = null;
                         }
                         wasConnectedBeforeDisconnect = false;
 
@@ -1581,6 +1880,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                             attemptAutoReconnect();
                         } else {
                             currentConnectedDns = null;
+                            currentConnectedAddress = null;
                         }
                         wasConnectedBeforeDisconnect = false;
                         break;
@@ -1627,6 +1927,18 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                         // Calculate instantaneous speed in KB/s
                         double instantSpeedKBps = (totalBytesDelta / 1024.0) / (timeDelta / 1000.0);
 
+                        // Remember what the resolver carries while the tunnel is busy
+                        ResolverAddress connected = currentConnectedAddress;
+                        if (connected != null && instantSpeedKBps >= MIN_RECORDED_SPEED_KBPS) {
+                            resolverReputation.recordThroughput(connected, instantSpeedKBps);
+                        }
+                        // Reward resolvers that keep working over hours, not just at connect
+                        if (connected != null && isConnected
+                                && currentTime - heldCreditedAt >= HELD_CREDIT_INTERVAL_MS) {
+                            heldCreditedAt = currentTime;
+                            resolverReputation.recordTunnelSuccess(connected);
+                        }
+
                         // Apply exponential smoothing to prevent flickering
                         smoothedSpeedKBps = SPEED_SMOOTHING_FACTOR * instantSpeedKBps +
                                            (1 - SPEED_SMOOTHING_FACTOR) * smoothedSpeedKBps;
@@ -1730,6 +2042,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                 .putInt("dnsDigConcurrency", dnsDigConcurrency)
                 .putInt("dnsTunnelConcurrency", dnsTunnelConcurrency)
                 .putInt("dnsTimeout", dnsTimeout)
+                .putInt("dnsSamples", dnsSamples)
                 .apply();
     }
 
@@ -1759,9 +2072,10 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         updateAutoDnsLabel();
 
         // Load performance settings
-        dnsDigConcurrency = prefs.getInt("dnsDigConcurrency", 50);
+        dnsDigConcurrency = prefs.getInt("dnsDigConcurrency", 500);
         dnsTunnelConcurrency = prefs.getInt("dnsTunnelConcurrency", 10);
         dnsTimeout = prefs.getInt("dnsTimeout", 3000);
+        dnsSamples = prefs.getInt("dnsSamples", 1);
 
         // Set UI values for performance settings
         if (dnsDigConcurrencyInput != null) {
@@ -1773,6 +2087,9 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         if (dnsTimeoutInput != null) {
             dnsTimeoutInput.setText(String.valueOf(dnsTimeout));
         }
+        if (dnsSamplesInput != null) {
+            dnsSamplesInput.setText(String.valueOf(dnsSamples));
+        }
 
         // Auto DNS always requires UDP - enforce this on load
         if (useAutoDns) {
@@ -1788,11 +2105,14 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     }
 
     // ============================================================================
-    // Phase 1 DNS Cache - stores successful resolvers to skip phase 1 on reconnect
+    // Phase 1 DNS Cache - stores successful resolvers to skip phase 1 on reconnect,
+    // one mapped file per source, network and domain (see ScanResultCache)
     // ============================================================================
 
     private static final String CACHE_KEY_PREFIX = "dns_cache_";
-    private static final long CACHE_EXPIRY_MS = 24 * 60 * 60 * 1000; // 24 hours
+    private static final String SCAN_CACHE_DIR = "scan_cache";
+    private static final long CACHE_ENTRY_TTL_MS = 6 * 60 * 60 * 1000; // Re-probe entries older than 6 hours
+    private static final int CACHE_REFRESH_PROBES = 48;  // Stale entries re-probed per connect
 
     /**
      * Get cache key that includes DNS source to prevent cross-source cache usage.
@@ -1806,100 +2126,155 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                 sourceId = "custom_" + listId;
             }
         }
-        return CACHE_KEY_PREFIX + sourceId + "_" + domain.replace(".", "_");
+        // Each network keeps its own ranking
+        return CACHE_KEY_PREFIX + sourceId + "_" + resolverReputation.getNetwork().replace("-", "_")
+            + "_" + domain.replace(".", "_");
     }
 
     /**
-     * Save phase 1 results to cache for the given domain and current DNS source.
-     * Format: "resolver1:latency1,resolver2:latency2,..."
+     * Follow the default network so each network keeps its own resolver
+     * history and cached ranking. While our VPN is up the network under it
+     * is tracked, so the VPN coming up does not count as a change.
      */
-    private void savePhase1Cache(String domain, java.util.List<FastDnsTester.ResolverResult> results) {
-        if (results == null || results.isEmpty()) return;
+    private void registerNetworkCallback() {
+        ConnectivityManager cm = getSystemService(ConnectivityManager.class);
+        if (cm == null) {
+            return;
+        }
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                updateNetworkIdentity();
+            }
 
-        StringBuilder cache = new StringBuilder();
-        int count = 0;
-        for (FastDnsTester.ResolverResult r : results) {
-            if (r.success && count < 100) { // Cache top 100 successful resolvers
-                if (cache.length() > 0) cache.append(",");
-                cache.append(r.resolver).append(":").append(r.latencyMs);
-                count++;
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                updateNetworkIdentity();
             }
+        };
+        try {
+            cm.registerDefaultNetworkCallback(networkCallback);
+        } catch (RuntimeException e) {
+            // Too many callbacks registered; search start still checks the network
+            networkCallback = null;
         }
+    }
 
-        if (count > 0) {
-            SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-            String cacheKey = getCacheKey(domain);
-            prefs.edit()
-                .putString(cacheKey, cache.toString())
-                .putLong(cacheKey + "_time", System.currentTimeMillis())
-                .apply();
-            appendLog("Cached " + count + " resolvers for " + domain);
+    /**
+     * Point resolver history at the current network, logging a switch.
+     */
+    private void updateNetworkIdentity() {
+        String network = NetworkIdentity.current(this);
+        String previous = resolverReputation.getNetwork();
+        if (!network.equals(previous)) {
+            resolverReputation.setNetwork(network);
+            handler.post(() -> appendLog("Network: " + network));
         }
     }
 
     /**
-     * Load cached phase 1 results for the given domain and current DNS source.
-     * Returns null if cache is empty or expired.
+     * Fold phase 1 results into the cache for the given domain and current DNS
+     * source: resolvers that answered are stored as fresh, the rest removed.
      */
-    private java.util.List<FastDnsTester.ResolverResult> loadPhase1Cache(String domain) {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String cacheKey = getCacheKey(domain);
-
-        long cacheTime = prefs.getLong(cacheKey + "_time", 0);
-        if (System.currentTimeMillis() - cacheTime > CACHE_EXPIRY_MS) {
-            return null; // Cache expired
-        }
+    private void savePhase1Cache(String domain, java.util.List<FastDnsTester.ResolverResult> results) {
+        if (results == null || results.isEmpty()) return;
 
-        String cache = prefs.getString(cacheKey, null);
-        if (cache == null || cache.isEmpty()) {
-            return null;
+        int count = scanCache.merge(getCacheKey(domain), results);
+        if (count > 0) {
+            appendLog("Cached " + count + " resolvers for " + domain);
         }
+    }
 
-        java.util.List<FastDnsTester.ResolverResult> results = new ArrayList<>();
-        String[] entries = cache.split(",");
-        for (String entry : entries) {
-            String[] parts = entry.split(":");
-            if (parts.length == 2) {
-                try {
-                    String resolver = parts[0];
-                    long latency = Long.parseLong(parts[1]);
-                    results.add(new FastDnsTester.ResolverResult(resolver, latency, true, null));
-                } catch (NumberFormatException e) {
-                    // Skip invalid entries
+    /**
+     * Cached phase 1 results for the given domain and current DNS source that
+     * are fresh enough to use, after re-probing up to CACHE_REFRESH_PROBES of
+     * the stale and suspect ones, most promising first.
+     * Returns null if nothing usable is cached.
+     */
+    private java.util.List<FastDnsTester.ResolverResult> refreshPhase1Cache(
+            String domain,
+            int timeoutMs,
+            int concurrency,
+            FastDnsTester.ScanOptions options,
+            FastDnsTester.ScanHandle handle) {
+        String cacheKey = getCacheKey(domain);
+        java.util.List<FastDnsTester.ResolverResult> stale = scanCache.stale(cacheKey, CACHE_ENTRY_TTL_MS);
+        if (stale != null && !cancelSearch) {
+            java.util.List<FastDnsTester.ResolverResult> ranked = new ResolverSelector(resolverReputation).rank(stale);
+            java.util.List<ResolverAddress> refresh = new ArrayList<>();
+            for (FastDnsTester.ResolverResult r : ranked) {
+                if (r.address != null) {
+                    refresh.add(r.address);
+                    if (refresh.size() >= CACHE_REFRESH_PROBES) break;
                 }
             }
+            final int refreshCount = refresh.size();
+            final int staleCount = stale.size();
+            handler.post(() -> {
+                appendLog("Re-probing " + refreshCount + " of " + staleCount + " stale cached resolvers");
+                statusSubtext.setText("Refreshing cached resolvers...");
+            });
+
+            final java.util.List<FastDnsTester.ResolverResult> probed = new ArrayList<>();
+            FastDnsTester.scanResolvers(refresh, domain, timeoutMs, concurrency, refreshCount, -1, options,
+                result -> {
+                    recordProbeResult(result);
+                    probed.add(result);
+                    return !cancelSearch;
+                },
+                null, handle);
+            if (!cancelSearch) {
+                scanCache.merge(cacheKey, probed);
+            }
         }
+        return scanCache.load(cacheKey, CACHE_ENTRY_TTL_MS);
+    }
 
-        return results.isEmpty() ? null : results;
+    /**
+     * Mark cached resolvers that just failed phase 2 so they are re-probed
+     * before they are tried again.
+     */
+    private void markPhase1CacheSuspect(String domain, java.util.List<FastDnsTester.ResolverResult> failed) {
+        scanCache.markSuspect(getCacheKey(domain), failed);
     }
 
     /**
-     * Clear the phase 1 cache for a domain and current DNS source.
+     * Feed a phase 1 probe result into the resolver history.
      */
-    private void clearPhase1Cache(String domain) {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String cacheKey = getCacheKey(domain);
-        prefs.edit()
-            .remove(cacheKey)
-            .remove(cacheKey + "_time")
-            .apply();
-        appendLog("Cleared resolver cache for " + domain);
+    private void recordProbeResult(FastDnsTester.ResolverResult result) {
+        ResolverAddress address = result.address;
+        if (address != null) {
+            if (result.success) {
+                resolverReputation.recordProbe(address, result.latencyMs);
+            } else {
+                resolverReputation.recordProbeFailure(address);
+            }
+        }
     }
 
     /**
      * Clear all DNS cache entries (called from UI button).
      */
     private void clearAllDnsCache() {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
+        scanCache.clearAll();
+        removeLegacyDnsCache();
+    }
 
-        // Find and remove all cache keys
+    /**
+     * Remove the comma-separated caches older versions kept in preferences.
+     */
+    private void removeLegacyDnsCache() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        SharedPreferences.Editor editor = null;
         for (String key : prefs.getAll().keySet()) {
             if (key.startsWith(CACHE_KEY_PREFIX)) {
+                if (editor == null) editor = prefs.edit();
                 editor.remove(key);
             }
         }
-        editor.apply();
+        if (editor != null) {
+            editor.apply();
+        }
     }
 
     @Override
@@ -1911,12 +2286,23 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         // Cancel any ongoing search
         if (isSearching) {
             cancelSearch = true;
+            cancelDnsScan();
             if (searchThread != null && searchThread.isAlive()) {
                 searchThread.interrupt();
                 searchThread = null;
             }
         }
 
+        // Write out resolver history recorded in the last moments
+        resolverReputation.flush();
+        if (networkCallback != null) {
+            ConnectivityManager cm = getSystemService(ConnectivityManager.class);
+            if (cm != null) {
+                cm.unregisterNetworkCallback(networkCallback);
+            }
+            networkCallback = null;
+        }
+
         // Shutdown DNS test executor
         if (dnsTestExecutor != null) {
             appendLog("Shutting down DNS test executor...");
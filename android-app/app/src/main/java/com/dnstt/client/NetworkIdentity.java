@@ -0,0 +1,87 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.RouteInfo;
+import android.net.wifi.WifiInfo;
+import android.os.Build;
+import android.telephony.TelephonyManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Short, stable name for the network the device is on, used to keep
+ * resolver rankings and history apart per network. A resolver that works
+ * on home Wi-Fi says little about mobile data or the office.
+ *
+ * Mobile data is named by its operator (MCC+MNC). Wi-Fi and Ethernet are
+ * named by a hash of what stays the same between visits: the default
+ * gateways' addresses, plus the SSID where the app may read it. DNS servers,
+ * search domains and subnets are left out, since DHCP may hand out different
+ * ones next time. None of this needs a location permission. The app is
+ * excluded from its own VPN, so while that is up the network underneath it
+ * is the app's active network and is what gets named.
+ */
+final class NetworkIdentity {
+    static final String UNKNOWN = "unknown";
+    // What WifiInfo reports without location permission
+    private static final String UNKNOWN_SSID = "<unknown ssid>";
+
+    private NetworkIdentity() {
+    }
+
+    /**
+     * The current network's name, e.g. "wifi-1a2b3c4d" or "cell-43211",
+     * or {@link #UNKNOWN} when offline. Safe to use in preference keys and
+     * file names.
+     */
+    static String current(Context context) {
+        ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
+        if (cm == null) {
+            return UNKNOWN;
+        }
+        Network network = cm.getActiveNetwork();
+        NetworkCapabilities caps = network != null ? cm.getNetworkCapabilities(network) : null;
+        if (caps == null) {
+            return UNKNOWN;
+        }
+        if (caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+            String operator = tm != null ? tm.getNetworkOperator() : null;
+            return "cell-" + (operator != null && !operator.isEmpty() ? operator.replaceAll("[^0-9]", "") : "0");
+        }
+        String kind = caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) ? "wifi"
+                : caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET) ? "eth"
+                : caps.hasTransport(NetworkCapabilities.TRANSPORT_VPN) ? "vpn"
+                : "net";
+        return kind + "-" + Integer.toHexString(fingerprint(cm.getLinkProperties(network), caps).hashCode());
+    }
+
+    /**
+     * The network's default gateways and SSID, sorted so the order they were
+     * reported in does not matter.
+     */
+    private static String fingerprint(LinkProperties link, NetworkCapabilities caps) {
+        List<String> parts = new ArrayList<>();
+        if (link != null) {
+            for (RouteInfo route : link.getRoutes()) {
+                if (route.isDefaultRoute() && route.hasGateway()) {
+                    parts.add("gw " + route.getGateway().getHostAddress());
+                }
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && caps.getTransportInfo() instanceof WifiInfo) {
+            String ssid = ((WifiInfo) caps.getTransportInfo()).getSSID();
+            if (ssid != null && !ssid.equals(UNKNOWN_SSID)) {
+                parts.add("ssid " + ssid);
+            }
+        }
+        Collections.sort(parts);
+        return String.join("\n", parts);
+    }
+}
@@ -0,0 +1,355 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import com.dnstt.client.models.ResolverAddress;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+
+/**
+ * Process-wide catalog of the bundled resolver lists.
+ *
+ * The build compiles the text lists into assets/resolvers.bin (see the
+ * compileResolverIndex task), already sorted, deduplicated and laid out as
+ * the arrays below, so loading is a memory map and a few bulk copies. The
+ * catalog holds parallel primitive arrays, about seven bytes per IPv4
+ * entry, instead of a String or object per resolver.
+ * Consumers read entries by index or through {@link #view(int[])}, which
+ * only builds a {@link ResolverAddress} for the entries actually read.
+ */
+public final class ResolverCatalog {
+    private static final String TAG = "ResolverCatalog";
+    private static final String INDEX_FILE = "resolvers.bin";
+    private static final String DNS_SERVERS_FILE = "dns_servers.txt";
+    // "DRI1"
+    private static final int INDEX_MAGIC = 0x44524931;
+    private static final int INDEX_HEADER_SIZE = 12;
+
+    // Entry flags
+    private static final byte FLAG_IPV6 = 1;
+    // Listed in WELL_KNOWN, so first in the default order
+    private static final byte FLAG_WELL_KNOWN = 2;
+
+    // Reliable public resolvers that are most likely to work in various
+    // network conditions, tried first in this order
+    private static final String[] WELL_KNOWN = {
+        "8.8.8.8", "8.8.4.4",                 // Google
+        "1.1.1.1", "1.0.0.1",                 // Cloudflare
+        "9.9.9.9", "149.112.112.112",         // Quad9
+        "208.67.222.222", "208.67.220.220"    // OpenDNS
+    };
+
+    private static volatile ResolverCatalog instance;
+
+    // IPv4 address, or for IPv6 entries an index into v6High/v6Low
+    private final int[] addresses;
+    private final char[] ports;
+    private final byte[] flags;
+    private final long[] v6High;
+    private final long[] v6Low;
+    private final int size;
+    // Well-known resolvers first, then the rest shuffled once per process
+    private final int[] defaultOrder;
+
+    private ResolverCatalog(int[] addresses, char[] ports, byte[] flags, long[] v6High, long[] v6Low, int size) {
+        this.addresses = addresses;
+        this.ports = ports;
+        this.flags = flags;
+        this.v6High = v6High;
+        this.v6Low = v6Low;
+        this.size = size;
+        this.defaultOrder = buildDefaultOrder();
+    }
+
+    /**
+     * The catalog, loading it on first use.
+     */
+    public static ResolverCatalog get(Context context) {
+        ResolverCatalog catalog = instance;
+        if (catalog == null) {
+            synchronized (ResolverCatalog.class) {
+                catalog = instance;
+                if (catalog == null) {
+                    catalog = load(context.getApplicationContext());
+                    instance = catalog;
+                }
+            }
+        }
+        return catalog;
+    }
+
+    private static ResolverCatalog load(Context context) {
+        AssetManager assets = context.getAssets();
+        ResolverCatalog catalog;
+        try {
+            catalog = loadIndex(assets);
+        } catch (IOException | RuntimeException e) {
+            // Only a build without the index task gets here
+            Log.w(TAG, "No resolver index, parsing " + DNS_SERVERS_FILE + ": " + e.getMessage());
+            catalog = loadText(assets);
+        }
+        Log.d(TAG, "Loaded " + catalog.size + " DNS servers");
+        return catalog;
+    }
+
+    /**
+     * Map the compiled index and copy each column straight into its array.
+     */
+    private static ResolverCatalog loadIndex(AssetManager assets) throws IOException {
+        ByteBuffer index;
+        try (AssetFileDescriptor fd = assets.openFd(INDEX_FILE);
+             FileInputStream in = fd.createInputStream()) {
+            // The asset is stored uncompressed, so it can be mapped in place
+            index = in.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+        } catch (IOException e) {
+            // openFd refuses compressed assets; read the whole file in one go instead
+            try (InputStream in = assets.open(INDEX_FILE)) {
+                byte[] bytes = new byte[in.available()];
+                new DataInputStream(in).readFully(bytes);
+                index = ByteBuffer.wrap(bytes);
+            }
+        }
+
+        if (index.remaining() < INDEX_HEADER_SIZE || index.getInt() != INDEX_MAGIC) {
+            throw new IOException("bad resolver index header");
+        }
+        int size = index.getInt();
+        int v6Size = index.getInt();
+        if (size < 0 || v6Size < 0 || v6Size > size
+                || index.remaining() != 7L * size + 16L * v6Size) {
+            throw new IOException("bad resolver index length");
+        }
+        int[] addresses = new int[size];
+        char[] ports = new char[size];
+        byte[] flags = new byte[size];
+        long[] v6High = new long[v6Size];
+        long[] v6Low = new long[v6Size];
+        index.asIntBuffer().get(addresses);
+        index.position(index.position() + 4 * size);
+        index.asCharBuffer().get(ports);
+        index.position(index.position() + 2 * size);
+        index.get(flags);
+        index.asLongBuffer().get(v6High);
+        index.position(index.position() + 8 * v6Size);
+        index.asLongBuffer().get(v6Low);
+        return new ResolverCatalog(addresses, ports, flags, v6High, v6Low, size);
+    }
+
+    private static ResolverCatalog loadText(AssetManager assets) {
+        Builder builder = new Builder(4096);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(assets.open(DNS_SERVERS_FILE)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                ResolverAddress address = ResolverAddress.parse(line);
+                if (address != null) {
+                    builder.add(address);
+                } else {
+                    Log.w(TAG, "Skipping invalid DNS server: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load DNS servers: " + e.getMessage());
+            // Fall back to a few well-known servers
+            builder = new Builder(3);
+            builder.add(ResolverAddress.parse("1.1.1.1"));
+            builder.add(ResolverAddress.parse("8.8.8.8"));
+            builder.add(ResolverAddress.parse("9.9.9.9"));
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The entry at index, in catalog order.
+     */
+    public ResolverAddress get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        if ((flags[index] & FLAG_IPV6) != 0) {
+            int slot = addresses[index];
+            return ResolverAddress.fromBits(true, v6High[slot], v6Low[slot], ports[index]);
+        }
+        return ResolverAddress.fromBits(false, 0, addresses[index], ports[index]);
+    }
+
+    /**
+     * Index of address in catalog order, or -1. Compares the packed arrays
+     * without building any objects.
+     */
+    public int indexOf(ResolverAddress address) {
+        if (address == null) {
+            return -1;
+        }
+        for (int i = 0; i < size; i++) {
+            if (matches(i, address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read-only list of the entries at the given indices, in that order.
+     */
+    public List<ResolverAddress> view(int[] indices) {
+        return new View(this, indices);
+    }
+
+    /**
+     * Read-only list of every entry in the default scan order: well-known
+     * resolvers first, the rest in an order shuffled once per process.
+     */
+    public List<ResolverAddress> defaultView() {
+        return new View(this, defaultOrder);
+    }
+
+    private boolean matches(int index, ResolverAddress address) {
+        if (ports[index] != address.getPort()) {
+            return false;
+        }
+        if ((flags[index] & FLAG_IPV6) != 0) {
+            int slot = addresses[index];
+            return address.isIpv6() && v6High[slot] == address.getHighBits() && v6Low[slot] == address.getLowBits();
+        }
+        return !address.isIpv6() && (addresses[index] & 0xffffffffL) == address.getLowBits();
+    }
+
+    private int[] buildDefaultOrder() {
+        int[] order = new int[size];
+        int front = 0;
+        for (String server : WELL_KNOWN) {
+            int index = indexOf(ResolverAddress.parse(server));
+            if (index >= 0 && (flags[index] & FLAG_WELL_KNOWN) == 0) {
+                flags[index] |= FLAG_WELL_KNOWN;
+                order[front++] = index;
+            }
+        }
+        int next = front;
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & FLAG_WELL_KNOWN) == 0) {
+                order[next++] = i;
+            }
+        }
+        // Fisher-Yates over the rest, so each process spreads its load differently
+        Random random = new Random();
+        for (int i = size - 1; i > front; i--) {
+            int j = front + random.nextInt(i - front + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+
+    /**
+     * Index-based view over the catalog's arrays.
+     */
+    private static final class View extends AbstractList<ResolverAddress> implements RandomAccess {
+        private final ResolverCatalog catalog;
+        private final int[] indices;
+
+        View(ResolverCatalog catalog, int[] indices) {
+            this.catalog = catalog;
+            this.indices = indices;
+        }
+
+        @Override
+        public ResolverAddress get(int position) {
+            return catalog.get(indices[position]);
+        }
+
+        @Override
+        public int size() {
+            return indices.length;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            if (!(o instanceof ResolverAddress)) {
+                return -1;
+            }
+            for (int i = 0; i < indices.length; i++) {
+                if (catalog.matches(indices[i], (ResolverAddress) o)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+    }
+
+    /**
+     * Growable arrays for parsing; build() trims them.
+     */
+    private static final class Builder {
+        private int[] addresses;
+        private char[] ports;
+        private byte[] flags;
+        private long[] v6High = new long[0];
+        private long[] v6Low = new long[0];
+        private int size;
+        private int v6Size;
+
+        Builder(int capacity) {
+            addresses = new int[capacity];
+            ports = new char[capacity];
+            flags = new byte[capacity];
+        }
+
+        void add(ResolverAddress address) {
+            if (size == addresses.length) {
+                int capacity = Math.max(16, size * 2);
+                addresses = Arrays.copyOf(addresses, capacity);
+                ports = Arrays.copyOf(ports, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            if (address.isIpv6()) {
+                if (v6Size == v6High.length) {
+                    v6High = Arrays.copyOf(v6High, Math.max(16, v6Size * 2));
+                    v6Low = Arrays.copyOf(v6Low, v6High.length);
+                }
+                v6High[v6Size] = address.getHighBits();
+                v6Low[v6Size] = address.getLowBits();
+                addresses[size] = v6Size++;
+                flags[size] = FLAG_IPV6;
+            } else {
+                addresses[size] = (int) address.getLowBits();
+            }
+            ports[size] = (char) address.getPort();
+            size++;
+        }
+
+        ResolverCatalog build() {
+            return new ResolverCatalog(Arrays.copyOf(addresses, size), Arrays.copyOf(ports, size),
+                    Arrays.copyOf(flags, size), Arrays.copyOf(v6High, v6Size), Arrays.copyOf(v6Low, v6Size), size);
+        }
+    }
+}
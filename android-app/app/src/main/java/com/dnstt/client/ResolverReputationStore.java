@@ -0,0 +1,462 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.dnstt.client.models.ResolverAddress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide history of how each resolver has behaved, used to order
+ * auto search.
+ *
+ * History is kept per network ({@link NetworkIdentity}): records and
+ * ordering apply to the current network, set with {@link #setNetwork}, so
+ * moving between home Wi-Fi and mobile data does not mix the two.
+ *
+ * Each resolver keeps an EWMA of its probe latency and of the throughput
+ * its tunnels carried, plus success and failure counts that halve every
+ * {@link #HALF_LIFE_MS}, so a resolver that failed last week is not held
+ * back forever and one that worked once a month ago does not stay on top.
+ * The query rate a resolver was last measured to sustain is kept alongside,
+ * since finding it takes seconds of bursts. The history lives in memory and
+ * is written to a small binary file in the background a moment after it
+ * changes.
+ */
+public final class ResolverReputationStore {
+    private static final String TAG = "ResolverReputation";
+    private static final String FILE_NAME = "resolver_reputation.bin";
+    // "DRR" and format version 3, which added the query rate
+    private static final int FILE_MAGIC = 0x44525203;
+    // Version 2 files lack the query rate and are still read
+    private static final int FILE_MAGIC_V2 = 0x44525202;
+
+    // Success and failure counts halve over this long
+    static final long HALF_LIFE_MS = TimeUnit.DAYS.toMillis(3);
+    // Weight of the newest sample in the latency and throughput averages
+    private static final double LATENCY_ALPHA = 0.3;
+    private static final double THROUGHPUT_ALPHA = 0.2;
+    // A measured query rate is trusted for this long before re-measuring
+    static final long MAX_QPS_TTL_MS = TimeUnit.DAYS.toMillis(1);
+    // A resolver missing a Phase 1 probe is weak evidence; the network or
+    // the scan's pacing may be to blame
+    private static final double PROBE_FAILURE_WEIGHT = 0.25;
+    // Entries with less evidence than this that have not been seen for
+    // PRUNE_AFTER_MS are dropped when saving
+    private static final double MIN_EVIDENCE = 0.05;
+    private static final long PRUNE_AFTER_MS = TimeUnit.DAYS.toMillis(30);
+    private static final int MAX_ENTRIES = 8192;
+    private static final long SAVE_DELAY_MS = 2000;
+
+    private static volatile ResolverReputationStore instance;
+
+    private final AtomicFile file;
+    // Network name -> that network's history
+    private final Map<String, Map<ResolverAddress, Reputation>> networks = new HashMap<>();
+    private String network = NetworkIdentity.UNKNOWN;
+    // History of the current network
+    private Map<ResolverAddress, Reputation> entries = new HashMap<>();
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ReputationSaver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean saveScheduled;
+
+    /**
+     * What is known about one resolver. Counts are as of decayedAtMs; use
+     * {@link #successes(long)} and {@link #failures(long)} for current values.
+     */
+    public static final class Reputation {
+        public final String network;
+        public final ResolverAddress address;
+        // EWMA of answered probe latency, or -1 if never answered
+        double latencyMs = -1;
+        // EWMA of tunnel throughput in KB/s, or -1 if never measured
+        double throughputKBps = -1;
+        double successes;
+        double failures;
+        long decayedAtMs;
+        long lastSeenMs;
+        // Sustained query rate, 0 for no limit found, as of maxQpsAtMs
+        // (0 if never measured)
+        int maxQps;
+        long maxQpsAtMs;
+
+        Reputation(String network, ResolverAddress address, long nowMs) {
+            this.network = network;
+            this.address = address;
+            this.decayedAtMs = nowMs;
+        }
+
+        public double successes(long nowMs) {
+            return successes * decay(nowMs);
+        }
+
+        public double failures(long nowMs) {
+            return failures * decay(nowMs);
+        }
+
+        public double getLatencyMs() {
+            return latencyMs;
+        }
+
+        public double getThroughputKBps() {
+            return throughputKBps;
+        }
+
+        public long getLastSeenMs() {
+            return lastSeenMs;
+        }
+
+        /**
+         * Query rate the resolver sustained when last measured, 0 if no
+         * limit was found, or -1 if unmeasured or older than
+         * {@link #MAX_QPS_TTL_MS}.
+         */
+        public int getMaxQps(long nowMs) {
+            return maxQpsAtMs > 0 && nowMs - maxQpsAtMs < MAX_QPS_TTL_MS ? maxQps : -1;
+        }
+
+        /**
+         * Expected chance the resolver carries a tunnel, from its decayed
+         * counts with one imagined success and one failure as the prior.
+         * 0.5 when nothing is known.
+         */
+        public double successRate(long nowMs) {
+            double s = successes(nowMs);
+            double f = failures(nowMs);
+            return (s + 1) / (s + f + 2);
+        }
+
+        private double decay(long nowMs) {
+            long age = Math.max(0, nowMs - decayedAtMs);
+            return Math.pow(0.5, (double) age / HALF_LIFE_MS);
+        }
+
+        Reputation copy() {
+            Reputation copy = new Reputation(network, address, decayedAtMs);
+            copy.latencyMs = latencyMs;
+            copy.throughputKBps = throughputKBps;
+            copy.successes = successes;
+            copy.failures = failures;
+            copy.lastSeenMs = lastSeenMs;
+            copy.maxQps = maxQps;
+            copy.maxQpsAtMs = maxQpsAtMs;
+            return copy;
+        }
+
+        private void applyDecay(long nowMs) {
+            double factor = decay(nowMs);
+            successes *= factor;
+            failures *= factor;
+            decayedAtMs = Math.max(decayedAtMs, nowMs);
+        }
+    }
+
+    private ResolverReputationStore(File file) {
+        this.file = new AtomicFile(file);
+    }
+
+    /**
+     * The store, loading it on first use.
+     */
+    public static ResolverReputationStore get(Context context) {
+        ResolverReputationStore store = instance;
+        if (store == null) {
+            synchronized (ResolverReputationStore.class) {
+                store = instance;
+                if (store == null) {
+                    Context app = context.getApplicationContext();
+                    store = new ResolverReputationStore(new File(app.getFilesDir(), FILE_NAME));
+                    store.load();
+                    store.setNetwork(NetworkIdentity.current(app));
+                    instance = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Switch to the history of the named network, starting an empty one if
+     * it has not been seen before.
+     */
+    public synchronized void setNetwork(String network) {
+        this.network = network;
+        entries = networks.get(network);
+        if (entries == null) {
+            entries = new HashMap<>();
+            networks.put(network, entries);
+        }
+    }
+
+    public synchronized String getNetwork() {
+        return network;
+    }
+
+    /**
+     * A resolver answered a Phase 1 probe in latencyMs.
+     */
+    public synchronized void recordProbe(ResolverAddress address, long latencyMs) {
+        long now = System.currentTimeMillis();
+        Reputation reputation = touch(address, now);
+        reputation.latencyMs = reputation.latencyMs < 0
+                ? latencyMs
+                : LATENCY_ALPHA * latencyMs + (1 - LATENCY_ALPHA) * reputation.latencyMs;
+        scheduleSave();
+    }
+
+    /**
+     * A resolver failed a Phase 1 probe. Only counted for resolvers already
+     * in the store, so a scan of thousands does not fill it with strangers.
+     */
+    public synchronized void recordProbeFailure(ResolverAddress address) {
+        Reputation reputation = entries.get(address);
+        if (reputation == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        reputation.applyDecay(now);
+        reputation.failures += PROBE_FAILURE_WEIGHT;
+        scheduleSave();
+    }
+
+    /**
+     * A tunnel through the resolver came up.
+     */
+    public synchronized void recordTunnelSuccess(ResolverAddress address) {
+        long now = System.currentTimeMillis();
+        touch(address, now).successes += 1;
+        scheduleSave();
+    }
+
+    /**
+     * A tunnel through the resolver failed to come up, or dropped.
+     */
+    public synchronized void recordTunnelFailure(ResolverAddress address) {
+        long now = System.currentTimeMillis();
+        touch(address, now).failures += 1;
+        scheduleSave();
+    }
+
+    /**
+     * Throughput a connected tunnel carried while in use.
+     */
+    public synchronized void recordThroughput(ResolverAddress address, double kBps) {
+        long now = System.currentTimeMillis();
+        Reputation reputation = touch(address, now);
+        reputation.throughputKBps = reputation.throughputKBps < 0
+                ? kBps
+                : THROUGHPUT_ALPHA * kBps + (1 - THROUGHPUT_ALPHA) * reputation.throughputKBps;
+        scheduleSave();
+    }
+
+    /**
+     * Query rate the resolver sustained in a burst probe, or 0 if every
+     * rate held up.
+     */
+    public synchronized void recordMaxQps(ResolverAddress address, int maxQps) {
+        long now = System.currentTimeMillis();
+        Reputation reputation = touch(address, now);
+        reputation.maxQps = maxQps;
+        reputation.maxQpsAtMs = now;
+        scheduleSave();
+    }
+
+    /**
+     * A snapshot of what is known about address, or null.
+     */
+    public synchronized Reputation get(ResolverAddress address) {
+        Reputation reputation = entries.get(address);
+        return reputation != null ? reputation.copy() : null;
+    }
+
+    /**
+     * Copy of candidates ordered by history: resolvers that have carried
+     * tunnels more often than they failed first, best first, then the ones
+     * with no history or an even record in their given order, then the ones
+     * that mostly failed, least bad first.
+     */
+    public List<ResolverAddress> order(List<ResolverAddress> candidates) {
+        long now = System.currentTimeMillis();
+        double[] rates = new double[candidates.size()];
+        synchronized (this) {
+            for (int i = 0; i < rates.length; i++) {
+                Reputation reputation = entries.get(candidates.get(i));
+                rates[i] = reputation != null ? reputation.successRate(now) : 0.5;
+            }
+        }
+        Integer[] order = new Integer[rates.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // Stable, so ties keep the given order
+        Arrays.sort(order, (a, b) -> Double.compare(rates[b], rates[a]));
+        List<ResolverAddress> ordered = new ArrayList<>(order.length);
+        for (Integer index : order) {
+            ordered.add(candidates.get(index));
+        }
+        return ordered;
+    }
+
+    /**
+     * Forget all history, on every network.
+     */
+    public synchronized void clear() {
+        for (Map<ResolverAddress, Reputation> history : networks.values()) {
+            history.clear();
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Write pending changes now rather than after the usual delay.
+     */
+    public void flush() {
+        saver.execute(this::save);
+    }
+
+    private Reputation touch(ResolverAddress address, long now) {
+        Reputation reputation = entries.get(address);
+        if (reputation == null) {
+            reputation = new Reputation(network, address, now);
+            entries.put(address, reputation);
+        }
+        reputation.applyDecay(now);
+        reputation.lastSeenMs = now;
+        return reputation;
+    }
+
+    private void scheduleSave() {
+        if (!saveScheduled) {
+            saveScheduled = true;
+            saver.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(file.openRead()))) {
+            int magic = in.readInt();
+            if (magic != FILE_MAGIC && magic != FILE_MAGIC_V2) {
+                Log.w(TAG, "Ignoring reputation file with unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String network = in.readUTF();
+                boolean ipv6 = in.readBoolean();
+                long high = in.readLong();
+                long low = in.readLong();
+                int port = in.readUnsignedShort();
+                Reputation reputation = new Reputation(network, ResolverAddress.fromBits(ipv6, high, low, port), 0);
+                reputation.latencyMs = in.readFloat();
+                reputation.throughputKBps = in.readFloat();
+                reputation.successes = in.readFloat();
+                reputation.failures = in.readFloat();
+                reputation.decayedAtMs = in.readLong();
+                reputation.lastSeenMs = in.readLong();
+                if (magic == FILE_MAGIC) {
+                    reputation.maxQps = in.readInt();
+                    reputation.maxQpsAtMs = in.readLong();
+                }
+                Map<ResolverAddress, Reputation> history = networks.get(network);
+                if (history == null) {
+                    history = new HashMap<>();
+                    networks.put(network, history);
+                }
+                history.put(reputation.address, reputation);
+            }
+            Log.d(TAG, "Loaded reputation for " + count + " resolvers on " + networks.size() + " networks");
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load resolver reputation: " + e.getMessage());
+            networks.clear();
+        }
+    }
+
+    private void save() {
+        List<Reputation> snapshot;
+        synchronized (this) {
+            saveScheduled = false;
+            prune(System.currentTimeMillis());
+            snapshot = new ArrayList<>();
+            for (Map<ResolverAddress, Reputation> history : networks.values()) {
+                for (Reputation reputation : history.values()) {
+                    snapshot.add(reputation.copy());
+                }
+            }
+        }
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(snapshot.size());
+            for (Reputation reputation : snapshot) {
+                ResolverAddress address = reputation.address;
+                out.writeUTF(reputation.network);
+                out.writeBoolean(address.isIpv6());
+                out.writeLong(address.getHighBits());
+                out.writeLong(address.getLowBits());
+                out.writeShort(address.getPort());
+                out.writeFloat((float) reputation.latencyMs);
+                out.writeFloat((float) reputation.throughputKBps);
+                out.writeFloat((float) reputation.successes);
+                out.writeFloat((float) reputation.failures);
+                out.writeLong(reputation.decayedAtMs);
+                out.writeLong(reputation.lastSeenMs);
+                out.writeInt(reputation.maxQps);
+                out.writeLong(reputation.maxQpsAtMs);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save resolver reputation: " + e.getMessage());
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    /**
+     * Drop entries that have decayed to nothing, then the least recently
+     * seen ones beyond MAX_ENTRIES across all networks, then networks left
+     * with no history.
+     */
+    private void prune(long now) {
+        List<Reputation> all = new ArrayList<>();
+        for (Map<ResolverAddress, Reputation> history : networks.values()) {
+            history.values().removeIf(reputation -> now - reputation.lastSeenMs > PRUNE_AFTER_MS
+                    && reputation.successes(now) + reputation.failures(now) < MIN_EVIDENCE);
+            all.addAll(history.values());
+        }
+        if (all.size() > MAX_ENTRIES) {
+            Collections.sort(all, (a, b) -> Long.compare(a.lastSeenMs, b.lastSeenMs));
+            for (int i = 0; i < all.size() - MAX_ENTRIES; i++) {
+                networks.get(all.get(i).network).remove(all.get(i).address);
+            }
+        }
+        // The current network's map stays, since entries points at it
+        networks.values().removeIf(history -> history.isEmpty() && history != entries);
+    }
+}
@@ -0,0 +1,110 @@
+package com.dnstt.client;
+
+import com.dnstt.client.models.ResolverAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Thompson sampling over resolver history, deciding which Phase 1
+ * candidates get a Go tunnel test first.
+ *
+ * Each candidate's chance of carrying a tunnel is drawn from a Beta
+ * distribution over its decayed tunnel successes and failures in
+ * {@link ResolverReputationStore}, and the draw is weighted by how fast the
+ * resolver is: the throughput its tunnels carried before, and this scan's
+ * probe cost. A resolver with a long good record draws high almost every
+ * time; an untested one draws anywhere from 0 to 1, so it still gets tried
+ * now and then, more often the fewer proven resolvers there are. Ranking
+ * by one fresh draw per candidate is all the exploration policy needs.
+ */
+final class ResolverSelector {
+    // Throughput at which the speed weight is one half; unmeasured
+    // resolvers are assumed to carry this much
+    private static final double REFERENCE_KBPS = 16;
+    // Probe cost (FastDnsTester.ResolverResult.score) at which the latency
+    // weight is one half
+    private static final double REFERENCE_COST_MS = 300;
+
+    private final ResolverReputationStore reputation;
+
+    ResolverSelector(ResolverReputationStore reputation) {
+        this.reputation = reputation;
+    }
+
+    /**
+     * One sampled value for candidate; higher is better. Successive calls
+     * for the same candidate differ.
+     */
+    double sample(FastDnsTester.ResolverResult candidate) {
+        Random random = ThreadLocalRandom.current();
+        double successes = 0;
+        double failures = 0;
+        double throughput = -1;
+        ResolverAddress address = candidate.address;
+        ResolverReputationStore.Reputation history = address != null ? reputation.get(address) : null;
+        if (history != null) {
+            long now = System.currentTimeMillis();
+            successes = history.successes(now);
+            failures = history.failures(now);
+            throughput = history.getThroughputKBps();
+        }
+        double carries = sampleBeta(random, successes + 1, failures + 1);
+        double kBps = throughput >= 0 ? throughput : REFERENCE_KBPS;
+        double speed = kBps / (kBps + REFERENCE_KBPS);
+        double cost = candidate.success ? candidate.score : Double.MAX_VALUE;
+        double latency = REFERENCE_COST_MS / (REFERENCE_COST_MS + cost);
+        return carries * speed * latency;
+    }
+
+    /**
+     * Copy of candidates ordered by one draw each, best first.
+     */
+    List<FastDnsTester.ResolverResult> rank(List<FastDnsTester.ResolverResult> candidates) {
+        double[] draws = new double[candidates.size()];
+        Integer[] order = new Integer[draws.length];
+        for (int i = 0; i < draws.length; i++) {
+            draws[i] = sample(candidates.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(draws[b], draws[a]));
+        List<FastDnsTester.ResolverResult> ranked = new ArrayList<>(order.length);
+        for (Integer index : order) {
+            ranked.add(candidates.get(index));
+        }
+        return ranked;
+    }
+
+    /**
+     * Beta(a, b) as the ratio of two Gamma draws.
+     */
+    private static double sampleBeta(Random random, double a, double b) {
+        double x = sampleGamma(random, a);
+        double y = sampleGamma(random, b);
+        return x / (x + y);
+    }
+
+    /**
+     * Gamma(shape, 1) for shape >= 1, by Marsaglia and Tsang's method.
+     * Shapes here are decayed counts plus one, so never below 1.
+     */
+    private static double sampleGamma(Random random, double shape) {
+        double d = shape - 1.0 / 3;
+        double c = 1 / Math.sqrt(9 * d);
+        while (true) {
+            double x = random.nextGaussian();
+            double v = 1 + c * x;
+            if (v <= 0) {
+                continue;
+            }
+            v = v * v * v;
+            double u = random.nextDouble();
+            if (Math.log(u) < 0.5 * x * x + d - d * v + d * Math.log(v)) {
+                return d * v;
+            }
+        }
+    }
+}
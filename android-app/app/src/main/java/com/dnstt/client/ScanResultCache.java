@@ -0,0 +1,493 @@
+package com.dnstt.client;
+
+import android.util.Log;
+
+import com.dnstt.client.models.ResolverAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Phase 1 results kept between searches, so a reconnect can go straight to
+ * tunnel tests.
+ *
+ * Each cache key (DNS source, network and domain) has its own file of
+ * fixed-size records, memory-mapped read-write, so reading the cache at
+ * connect time touches no parser and a rescan rewrites the records in place.
+ * A file starts with room for {@link #INITIAL_CAPACITY} resolvers and doubles
+ * when a merge needs more, up to {@link #MAX_ENTRIES}. Only the last few keys
+ * used stay mapped; a network or domain that is no longer current costs
+ * nothing but its file.
+ *
+ * Each merge is forced to storage before it returns. Should the system go
+ * down mid-write anyway, each record ends with a CRC32 of the rest and the
+ * count grows only after a new record is complete, so the loss is that one
+ * record: records failing their check are dropped when the file is mapped.
+ *
+ * Freshness is per entry: each record carries when it was last probed and
+ * whether it has since failed a tunnel test (suspect). Callers use the
+ * fresh entries as they are, re-probe the stale and suspect ones a few at
+ * a time and {@link #merge} what they find; entries not probed for
+ * {@link #MAX_AGE_MS} are dropped.
+ *
+ * File layout, big-endian:
+ * <pre>
+ *   header  magic "DRC" + version (int), record size (int), count (int),
+ *           reserved (int), saved at ms (long), reserved (long)
+ *   record  address high bits (long), low bits (long), port (char),
+ *           flags (byte), outcome (byte), latency ms (int), p90 ms (int),
+ *           jitter ms (int), loss per mille (char), max response size (char),
+ *           scanned at ms (long), TCP latency ms or -1 (int),
+ *           max query name length (byte), max query label length (byte),
+ *           max qps (char), samples (byte), reserved (byte, char, int),
+ *           CRC32 of the preceding bytes (int)
+ * </pre>
+ */
+final class ScanResultCache {
+    private static final String TAG = "ScanResultCache";
+    // "DRC" and format version 3, which added the record checksum
+    private static final int FILE_MAGIC = 0x44524303;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 64;
+    private static final int CHECKSUM_OFFSET = RECORD_SIZE - 4;
+    static final int MAX_ENTRIES = 4096;
+    static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final int COUNT_OFFSET = 8;
+    private static final int SAVED_AT_OFFSET = 16;
+    private static final int INITIAL_CAPACITY = 64;
+    // Files kept mapped at once; only the current network and domain's key
+    // is in regular use
+    private static final int MAX_MAPPED = 2;
+
+    // Record flags
+    private static final byte FLAG_IPV6 = 1;
+    private static final byte FLAG_CACHED = 2;
+    private static final byte FLAG_TRUNCATES = 4;
+    // Failed a tunnel test since it was last probed
+    private static final byte FLAG_SUSPECT = 8;
+
+    private final File dir;
+    // Cache key -> its mapped file, least recently used first. A dropped
+    // mapping is unmapped when collected, as Java has no explicit unmap.
+    private final Map<String, MappedByteBuffer> mapped =
+            new LinkedHashMap<String, MappedByteBuffer>(MAX_MAPPED + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+                    return size() > MAX_MAPPED;
+                }
+            };
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[CHECKSUM_OFFSET];
+
+    ScanResultCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Fold probe results into the cache for key, in place: answered
+     * resolvers are stored or refreshed as fresh, and the rest are removed.
+     * New resolvers past MAX_ENTRIES are left out.
+     *
+     * @return how many answered resolvers were stored
+     */
+    synchronized int merge(String key, List<FastDnsTester.ResolverResult> results) {
+        boolean answered = false;
+        for (FastDnsTester.ResolverResult r : results) {
+            answered |= r.success;
+        }
+        MappedByteBuffer buffer = map(key, answered);
+        if (buffer == null) {
+            return 0;
+        }
+        Map<ResolverAddress, Integer> index = index(buffer);
+        int count = buffer.getInt(COUNT_OFFSET);
+        int added = 0;
+        for (FastDnsTester.ResolverResult r : results) {
+            if (r.success && r.address != null && !index.containsKey(r.address)) added++;
+        }
+        buffer = grow(key, buffer, Math.min(MAX_ENTRIES, count + added));
+        int capacity = capacityOf(buffer);
+        long now = System.currentTimeMillis();
+        int stored = 0;
+        for (FastDnsTester.ResolverResult r : results) {
+            ResolverAddress address = r.address;
+            if (address == null) {
+                continue;
+            }
+            Integer slot = index.get(address);
+            if (r.success) {
+                if (slot == null) {
+                    if (count >= capacity) continue;
+                    slot = count;
+                    index.put(address, slot);
+                }
+                writeRecord(buffer, offsetOf(slot), address, r, now);
+                seal(buffer, slot);
+                if (slot == count) {
+                    // Readers only see records below the count, so it grows
+                    // once the record is complete
+                    buffer.putInt(COUNT_OFFSET, ++count);
+                }
+                stored++;
+            } else if (slot != null) {
+                count = remove(buffer, index, slot, count);
+            }
+        }
+        buffer.putLong(SAVED_AT_OFFSET, now);
+        buffer.force();
+        return stored;
+    }
+
+    /**
+     * Cached results for key probed within ttlMs and not suspect, in
+     * stored order, or null if there are none. Drops entries older than
+     * MAX_AGE_MS on the way.
+     */
+    synchronized List<FastDnsTester.ResolverResult> load(String key, long ttlMs) {
+        return select(key, ttlMs, true);
+    }
+
+    /**
+     * Cached results for key that are older than ttlMs or suspect, and so
+     * need probing again before use, in stored order, or null if none.
+     */
+    synchronized List<FastDnsTester.ResolverResult> stale(String key, long ttlMs) {
+        return select(key, ttlMs, false);
+    }
+
+    /**
+     * Mark cached resolvers of key that just failed a tunnel test, so they
+     * are re-probed before they are used again.
+     */
+    synchronized void markSuspect(String key, List<FastDnsTester.ResolverResult> results) {
+        MappedByteBuffer buffer = map(key, false);
+        if (buffer == null) {
+            return;
+        }
+        Map<ResolverAddress, Integer> index = index(buffer);
+        for (FastDnsTester.ResolverResult r : results) {
+            Integer slot = r.address != null ? index.get(r.address) : null;
+            if (slot != null) {
+                int offset = offsetOf(slot) + 18;
+                buffer.put(offset, (byte) (buffer.get(offset) | FLAG_SUSPECT));
+                seal(buffer, slot);
+            }
+        }
+        buffer.force();
+    }
+
+    private List<FastDnsTester.ResolverResult> select(String key, long ttlMs, boolean fresh) {
+        MappedByteBuffer buffer = map(key, false);
+        if (buffer == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        // Drop entries not probed for too long; walking down, the record
+        // moved into a gap has already been checked
+        int count = buffer.getInt(COUNT_OFFSET);
+        for (int i = count - 1; i >= 0; i--) {
+            if (now - scannedAt(buffer, i) > MAX_AGE_MS) {
+                count = remove(buffer, null, i, count);
+            }
+        }
+
+        List<FastDnsTester.ResolverResult> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            boolean suspect = (buffer.get(offsetOf(i) + 18) & FLAG_SUSPECT) != 0;
+            boolean isFresh = !suspect && now - scannedAt(buffer, i) <= ttlMs;
+            if (isFresh == fresh) {
+                results.add(readRecord(buffer, offsetOf(i)));
+            }
+        }
+        return results.isEmpty() ? null : results;
+    }
+
+    /**
+     * Forget the cache for key.
+     */
+    synchronized void clear(String key) {
+        // Drop the mapping first, so nothing writes to the deleted file
+        mapped.remove(key);
+        delete(fileOf(key));
+    }
+
+    /**
+     * Forget every cache.
+     */
+    synchronized void clearAll() {
+        mapped.clear();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".bin")) {
+                delete(file);
+            }
+        }
+    }
+
+    private File fileOf(String key) {
+        return new File(dir, key + ".bin");
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Cannot delete " + file.getName());
+        }
+    }
+
+    /**
+     * The mapping for key's file, creating the file if create is set. Null
+     * if there is no usable file. Records are checked when a file is mapped.
+     */
+    private MappedByteBuffer map(String key, boolean create) {
+        MappedByteBuffer buffer = mapped.get(key);
+        if (buffer != null) {
+            return buffer;
+        }
+        File file = fileOf(key);
+        if (!create && !file.exists()) {
+            return null;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + dir);
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            long length = raf.length();
+            boolean fresh = length <= HEADER_SIZE || (length - HEADER_SIZE) % RECORD_SIZE != 0
+                    || (length - HEADER_SIZE) / RECORD_SIZE > MAX_ENTRIES;
+            if (!fresh) {
+                // Reject a file from another version rather than misread it
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                fresh = header.getInt(0) != FILE_MAGIC || header.getInt(4) != RECORD_SIZE;
+            }
+            if (fresh) {
+                if (length > 0) {
+                    Log.w(TAG, "Discarding " + file.getName() + " with unknown format");
+                }
+                if (!create) {
+                    return null;
+                }
+                length = sizeOf(INITIAL_CAPACITY);
+                raf.setLength(0);
+                raf.setLength(length);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (fresh) {
+                buffer.putInt(COUNT_OFFSET, 0);
+                buffer.putInt(4, RECORD_SIZE);
+                // The magic goes last, so a file cut off while being set up
+                // is discarded next time
+                buffer.putInt(0, FILE_MAGIC);
+            } else {
+                dropDamaged(buffer, file.getName());
+            }
+            mapped.put(key, buffer);
+            return buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The mapping for key's file with room for at least records records,
+     * growing the file if needed. At least doubles the file when it grows,
+     * so a file is remapped only a few times on its way to MAX_ENTRIES.
+     * Returns buffer unchanged if the file cannot grow.
+     */
+    private MappedByteBuffer grow(String key, MappedByteBuffer buffer, int records) {
+        int capacity = capacityOf(buffer);
+        if (records <= capacity) {
+            return buffer;
+        }
+        int wanted = Math.min(MAX_ENTRIES, Math.max(records, capacity * 2));
+        File file = fileOf(key);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // Extending the file leaves the header and existing records as they are
+            raf.setLength(sizeOf(wanted));
+            MappedByteBuffer grown = channel.map(FileChannel.MapMode.READ_WRITE, 0, sizeOf(wanted));
+            mapped.put(key, grown);
+            return grown;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to grow " + file.getName() + ": " + e.getMessage());
+            return buffer;
+        }
+    }
+
+    private static long sizeOf(int records) {
+        return HEADER_SIZE + (long) records * RECORD_SIZE;
+    }
+
+    private static int capacityOf(ByteBuffer buffer) {
+        return (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    /**
+     * Drop records that fail their checksum or repeat an address, as a
+     * write or removal cut short by a crash leaves, and reset a count that
+     * cannot be right.
+     */
+    private void dropDamaged(ByteBuffer buffer, String name) {
+        int count = buffer.getInt(COUNT_OFFSET);
+        if (count < 0 || count > capacityOf(buffer)) {
+            Log.w(TAG, "Discarding records of " + name + " with count " + count);
+            buffer.putInt(COUNT_OFFSET, 0);
+            return;
+        }
+        int dropped = 0;
+        Set<ResolverAddress> seen = new HashSet<>(count * 2);
+        // Walking down, the record moved into a gap has already been checked
+        for (int i = count - 1; i >= 0; i--) {
+            if (buffer.getInt(offsetOf(i) + CHECKSUM_OFFSET) != checksum(buffer, i)
+                    || !seen.add(addressAt(buffer, offsetOf(i)))) {
+                count = remove(buffer, null, i, count);
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " damaged records from " + name);
+        }
+    }
+
+    /**
+     * Store the checksum of the record at slot after changing it.
+     */
+    private void seal(ByteBuffer buffer, int slot) {
+        buffer.putInt(offsetOf(slot) + CHECKSUM_OFFSET, checksum(buffer, slot));
+    }
+
+    private int checksum(ByteBuffer buffer, int slot) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offsetOf(slot));
+        record.get(scratch);
+        crc.reset();
+        crc.update(scratch, 0, scratch.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Remove the record at slot by moving the last record into it, keeping
+     * index (if given) in step.
+     *
+     * @return the new count
+     */
+    private static int remove(ByteBuffer buffer, Map<ResolverAddress, Integer> index, int slot, int count) {
+        int last = count - 1;
+        if (index != null) {
+            index.remove(addressAt(buffer, offsetOf(slot)));
+        }
+        if (slot != last) {
+            copyRecord(buffer, last, slot);
+            if (index != null) {
+                index.put(addressAt(buffer, offsetOf(slot)), slot);
+            }
+        }
+        // Only after the copy: a crash in between leaves the last record
+        // twice, which the next mapping drops
+        buffer.putInt(COUNT_OFFSET, last);
+        return last;
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static long scannedAt(ByteBuffer buffer, int slot) {
+        return buffer.getLong(offsetOf(slot) + 36);
+    }
+
+    private static Map<ResolverAddress, Integer> index(ByteBuffer buffer) {
+        int count = buffer.getInt(COUNT_OFFSET);
+        Map<ResolverAddress, Integer> index = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            index.put(addressAt(buffer, offsetOf(i)), i);
+        }
+        return index;
+    }
+
+    private static void copyRecord(ByteBuffer buffer, int from, int to) {
+        for (int i = 0; i < RECORD_SIZE; i += 8) {
+            buffer.putLong(offsetOf(to) + i, buffer.getLong(offsetOf(from) + i));
+        }
+    }
+
+    private static ResolverAddress addressAt(ByteBuffer buffer, int offset) {
+        byte flags = buffer.get(offset + 18);
+        return ResolverAddress.fromBits((flags & FLAG_IPV6) != 0,
+                buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getChar(offset + 16));
+    }
+
+    private static void writeRecord(ByteBuffer buffer, int offset, ResolverAddress address,
+                                    FastDnsTester.ResolverResult result, long scannedAtMs) {
+        byte flags = 0;
+        if (address.isIpv6()) flags |= FLAG_IPV6;
+        if (result.cached) flags |= FLAG_CACHED;
+        if (result.truncates) flags |= FLAG_TRUNCATES;
+        buffer.putLong(offset, address.getHighBits());
+        buffer.putLong(offset + 8, address.getLowBits());
+        buffer.putChar(offset + 16, toChar(address.getPort()));
+        buffer.put(offset + 18, flags);
+        buffer.put(offset + 19, toByte(result.outcome.ordinal()));
+        buffer.putInt(offset + 20, toInt(result.latencyMs));
+        buffer.putInt(offset + 24, toInt(result.p90LatencyMs));
+        buffer.putInt(offset + 28, toInt(result.jitterMs));
+        buffer.putChar(offset + 32, toChar(Math.round(result.lossRate * 1000)));
+        buffer.putChar(offset + 34, toChar(result.maxResponseSize));
+        buffer.putLong(offset + 36, scannedAtMs);
+        buffer.putInt(offset + 44, toInt(result.tcpLatencyMs));
+        buffer.put(offset + 48, toByte(result.maxQueryNameLength));
+        buffer.put(offset + 49, toByte(result.maxQueryLabelLength));
+        buffer.putChar(offset + 50, toChar(result.maxQps));
+        buffer.put(offset + 52, toByte(result.samples));
+        buffer.put(offset + 53, (byte) 0);
+        buffer.putChar(offset + 54, '\0');
+        buffer.putInt(offset + 56, 0);
+    }
+
+    // Clamp into the field's range rather than wrap; byte fields are unsigned
+
+    private static byte toByte(int value) {
+        return (byte) Math.max(0, Math.min(255, value));
+    }
+
+    private static char toChar(long value) {
+        return (char) Math.max(0, Math.min(Character.MAX_VALUE, value));
+    }
+
+    private static int toInt(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    private static FastDnsTester.ResolverResult readRecord(ByteBuffer buffer, int offset) {
+        byte flags = buffer.get(offset + 18);
+        ResolverAddress address = addressAt(buffer, offset);
+        FastDnsTester.ProbeOutcome[] outcomes = FastDnsTester.ProbeOutcome.values();
+        int outcome = buffer.get(offset + 19) & 0xff;
+        return new FastDnsTester.ResolverResult(address, address.toString(), buffer.getInt(offset + 20), true, null,
+                (flags & FLAG_CACHED) != 0, Math.max(1, buffer.get(offset + 52) & 0xff),
+                buffer.getInt(offset + 24), buffer.getInt(offset + 28), buffer.getChar(offset + 32) / 1000.0,
+                outcome < outcomes.length ? outcomes[outcome] : FastDnsTester.ProbeOutcome.ANSWERED,
+                buffer.getChar(offset + 34), buffer.get(offset + 48) & 0xff, buffer.get(offset + 49) & 0xff,
+                buffer.getChar(offset + 50), (flags & FLAG_TRUNCATES) != 0, buffer.getInt(offset + 44));
+    }
+}
@@ -0,0 +1,202 @@
+package com.dnstt.client;
+
+import android.util.Log;
+
+import com.dnstt.client.models.ResolverAddress;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import mobile.Mobile;
+
+/**
+ * Phase 2 verification queue that runs alongside the Phase 1 scan.
+ *
+ * Resolvers are submitted as soon as Phase 1 finds them and are verified
+ * with a full Go tunnel handshake on the given executor, whose thread count
+ * is the Phase 2 concurrency. The first resolver that verifies wins; later
+ * submissions are refused.
+ *
+ * Submitted resolvers wait in a queue ordered by {@link ResolverSelector},
+ * and each free worker takes the best one waiting, so a resolver with a good
+ * tunnel record found late in the scan is still tried early.
+ */
+class TunnelVerifier {
+    private static final String TAG = "TunnelVerifier";
+
+    interface Listener {
+        void onVerifying(int started, int submitted, String resolver);
+        void onFound(String resolver, long latencyMs);
+    }
+
+    private final ExecutorService executor;
+    private final String domain;
+    private final String pubkeyHex;
+    private final int timeoutMs;
+    private final int maxToVerify;
+    private final ResolverReputationStore reputation;
+    private final ResolverSelector selector;
+    private final Listener listener;
+
+    private final Object lock = new Object();
+    // Submitted and not yet started, best draw first
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>();
+    private int submitted = 0;
+    private int started = 0;
+    private int finished = 0;
+    private String found = null;
+    private FastDnsTester.ResolverResult foundResult = null;
+
+    private static final class Pending implements Comparable<Pending> {
+        final FastDnsTester.ResolverResult candidate;
+        final double draw;
+        // Submission order, which breaks ties and is the whole order without a selector
+        final int sequence;
+
+        Pending(FastDnsTester.ResolverResult candidate, double draw, int sequence) {
+            this.candidate = candidate;
+            this.draw = draw;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            int byDraw = Double.compare(other.draw, draw);
+            return byDraw != 0 ? byDraw : Integer.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * @param reputation Orders the queue and records each failed
+     *                   verification, or null to verify in submission order
+     */
+    TunnelVerifier(ExecutorService executor, String domain, String pubkeyHex,
+                   int timeoutMs, int maxToVerify, ResolverReputationStore reputation, Listener listener) {
+        this.executor = executor;
+        this.domain = domain;
+        this.pubkeyHex = pubkeyHex;
+        this.timeoutMs = timeoutMs;
+        this.maxToVerify = maxToVerify;
+        this.reputation = reputation;
+        this.selector = reputation != null ? new ResolverSelector(reputation) : null;
+        this.listener = listener;
+    }
+
+    /**
+     * Queue a Phase 1 result for tunnel verification.
+     *
+     * @return false if a resolver was already found, the limit was reached or
+     *         the executor has been shut down
+     */
+    boolean submit(FastDnsTester.ResolverResult candidate) {
+        double draw = selector != null ? selector.sample(candidate) : 0;
+        Pending entry;
+        synchronized (lock) {
+            if (found != null || submitted >= maxToVerify) {
+                return false;
+            }
+            entry = new Pending(candidate, draw, submitted++);
+            pending.add(entry);
+        }
+        try {
+            // Each task verifies whichever candidate is best when it starts
+            executor.execute(this::verifyNext);
+            return true;
+        } catch (RejectedExecutionException e) {
+            synchronized (lock) {
+                pending.remove(entry);
+                submitted--;
+                lock.notifyAll();
+            }
+            return false;
+        }
+    }
+
+    boolean isFound() {
+        synchronized (lock) {
+            return found != null;
+        }
+    }
+
+    int getSubmittedCount() {
+        synchronized (lock) {
+            return submitted;
+        }
+    }
+
+    /**
+     * The Phase 1 result of the resolver that verified, or null.
+     */
+    FastDnsTester.ResolverResult getFoundResult() {
+        synchronized (lock) {
+            return foundResult;
+        }
+    }
+
+    /**
+     * Block until a resolver verifies or every submitted candidate has failed.
+     *
+     * @return the working resolver (with port), or null if none worked
+     */
+    String awaitResult() throws InterruptedException {
+        synchronized (lock) {
+            while (found == null && finished < submitted && !executor.isShutdown()) {
+                lock.wait(100);
+            }
+            return found;
+        }
+    }
+
+    private void verifyNext() {
+        FastDnsTester.ResolverResult candidate;
+        int startedCount;
+        int submittedCount;
+        synchronized (lock) {
+            Pending next = pending.poll();
+            if (next == null || found != null) {
+                finished++;
+                lock.notifyAll();
+                return;
+            }
+            candidate = next.candidate;
+            startedCount = ++started;
+            submittedCount = submitted;
+        }
+        ResolverAddress address = candidate.address;
+        String resolver = address != null ? address.toString() : candidate.resolver;
+        if (listener != null) {
+            listener.onVerifying(startedCount, submittedCount, candidate.resolver);
+        }
+
+        boolean ok;
+        try {
+            Mobile.verifyResolverTunnel(resolver, domain, pubkeyHex, timeoutMs);
+            ok = true;
+        } catch (Exception e) {
+            Log.d(TAG, "tunnel test failed for " + candidate.resolver + ": " + e.getMessage());
+            ok = false;
+            // A shut-down executor means the search was cancelled, not that the resolver failed
+            if (reputation != null && address != null && !executor.isShutdown()) {
+                reputation.recordTunnelFailure(address);
+            }
+        }
+
+        boolean first = false;
+        synchronized (lock) {
+            finished++;
+            if (ok && found == null) {
+                found = resolver;
+                foundResult = candidate;
+                first = true;
+            }
+            lock.notifyAll();
+        }
+        if (first) {
+            Log.d(TAG, "FOUND working resolver: " + resolver + " (latency: " + candidate.latencyMs + "ms)");
+            if (listener != null) {
+                listener.onFound(resolver, candidate.latencyMs);
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@ import com.dnstt.client.R;
 import com.dnstt.client.adapters.DnsConfigAdapter;
 import com.dnstt.client.models.CustomDnsList;
 import com.dnstt.client.models.DnsConfig;
+import com.dnstt.client.models.ResolverAddress;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.io.BufferedReader;
@@ -134,7 +135,7 @@ public class CustomDnsFragment extends Fragment implements DnsConfigAdapter.DnsC
         layout.addView(nameInput);
 
         final EditText addressInput = new EditText(requireContext());
-        addressInput.setHint("Address (e.g., 1.1.1.1 or 1.1.1.1:53)");
+        addressInput.setHint("Address (e.g., 1.1.1.1, 1.1.1.1:53 or [2606:4700::1111]:53)");
         addressInput.setInputType(android.text.InputType.TYPE_CLASS_TEXT);
         layout.addView(addressInput);
 
@@ -155,10 +156,14 @@ public class CustomDnsFragment extends Fragment implements DnsConfigAdapter.DnsC
                 return;
             }
 
-            // Ensure address has port
-            if (!address.contains(":")) {
-                address += ":53";
+            // Store the canonical host:port form
+            ResolverAddress parsed = ResolverAddress.parse(address);
+            if (parsed == null) {
+                Toast.makeText(requireContext(), "Invalid address: use an IPv4 or IPv6 address with optional port",
+                        Toast.LENGTH_SHORT).show();
+                return;
             }
+            address = parsed.toString();
 
             DnsConfig config = new DnsConfig(
                     UUID.randomUUID().toString(),
@@ -217,10 +222,14 @@ public class CustomDnsFragment extends Fragment implements DnsConfigAdapter.DnsC
                 return;
             }
 
-            // Ensure address has port
-            if (!address.contains(":")) {
-                address += ":53";
+            // Store the canonical host:port form
+            ResolverAddress parsed = ResolverAddress.parse(address);
+            if (parsed == null) {
+                Toast.makeText(requireContext(), "Invalid address: use an IPv4 or IPv6 address with optional port",
+                        Toast.LENGTH_SHORT).show();
+                return;
             }
+            address = parsed.toString();
 
             config.setName(name);
             config.setAddress(address);
@@ -260,12 +269,7 @@ public class CustomDnsFragment extends Fragment implements DnsConfigAdapter.DnsC
                     return;
                 }
 
-                String address = config.getAddress();
-                if (address.contains(":")) {
-                    address = address.substring(0, address.indexOf(":"));
-                }
-
-                final String testAddress = address;
+                final String testAddress = config.getFormattedAddress();
                 final long[] result = {-1};
 
                 ResolverCallback callback = new ResolverCallback() {
@@ -402,16 +406,17 @@ public class CustomDnsFragment extends Fragment implements DnsConfigAdapter.DnsC
                     }
 
                     // Validate format
-                    if (!isValidDnsAddress(line)) {
+                    ResolverAddress parsed = ResolverAddress.parse(line);
+                    if (parsed == null) {
                         errors.add("Line " + lineNumber + ": Invalid format '" + line + "'");
                         continue;
                     }
 
                     // Get IP address (without port)
-                    String ipAddress = line.contains(":") ? line.substring(0, line.indexOf(":")) : line;
+                    String ipAddress = parsed.getHost();
 
                     // Ensure address has port for storage
-                    String fullAddress = line.contains(":") ? line : line + ":53";
+                    String fullAddress = parsed.toString();
 
                     // Create DnsConfig using IP as name
                     DnsConfig config = new DnsConfig(
@@ -456,45 +461,6 @@ public class CustomDnsFragment extends Fragment implements DnsConfigAdapter.DnsC
         }).start();
     }
 
-    private boolean isValidDnsAddress(String address) {
-        // Remove port if present for validation
-        String ipOnly = address.contains(":") ? address.substring(0, address.indexOf(":")) : address;
-
-        // Regex pattern for IPv4 format
-        String ipPattern = "^(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})$";
-
-        if (!ipOnly.matches(ipPattern)) {
-            return false;
-        }
-
-        // Validate IP octets (0-255)
-        String[] ipParts = ipOnly.split("\\.");
-        for (String octet : ipParts) {
-            int value = Integer.parseInt(octet);
-            if (value < 0 || value > 255) {
-                return false;
-            }
-        }
-
-        // If port is present, validate it
-        if (address.contains(":")) {
-            String[] parts = address.split(":");
-            if (parts.length != 2) {
-                return false;
-            }
-            try {
-                int port = Integer.parseInt(parts[1]);
-                if (port < 1 || port > 65535) {
-                    return false;
-                }
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-
-        return true;
-    }
-
     private void replaceCurrentListWithImported(List<DnsConfig> importedConfigs) {
         // Clear current list
         currentList.getDnsConfigs().clear();
@@ -92,13 +92,7 @@ public class GlobalDnsFragment extends Fragment implements DnsConfigAdapter.DnsC
                     return;
                 }
 
-                // Extract IP from address
-                String address = config.getAddress();
-                if (address.contains(":")) {
-                    address = address.substring(0, address.indexOf(":"));
-                }
-
-                final String testAddress = address;
+                final String testAddress = config.getFormattedAddress();
                 final long[] result = {-1};
 
                 ResolverCallback callback = new ResolverCallback() {
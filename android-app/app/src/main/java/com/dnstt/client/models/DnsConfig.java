@@ -121,9 +121,7 @@ public class DnsConfig implements Serializable {
     }
 
     public String getFormattedAddress() {
-        if (address.contains(":")) {
-            return address;
-        }
-        return address + ":53";
+        ResolverAddress parsed = ResolverAddress.parse(address);
+        return parsed != null ? parsed.toString() : address;
     }
 }
@@ -0,0 +1,314 @@
+package com.dnstt.client.models;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A resolver's IP address and port, parsed once from text such as
+ * "1.2.3.4", "1.2.3.4:5353", "2001:db8::1" or "[2001:db8::1]:5353".
+ *
+ * The address is packed into two longs (IPv4 in the low 32 bits), so
+ * parsed lists stay small and compare without touching strings.
+ * {@link #toString()} gives the canonical form with the port always
+ * present, which both the Java scanner and the Go client accept.
+ */
+public final class ResolverAddress {
+    public static final int DEFAULT_PORT = 53;
+
+    private final long high;
+    private final long low;
+    private final int port;
+    private final boolean ipv6;
+
+    private ResolverAddress(long high, long low, int port, boolean ipv6) {
+        this.high = high;
+        this.low = low;
+        this.port = port;
+        this.ipv6 = ipv6;
+    }
+
+    /**
+     * Parse an address with port 53 as the default.
+     *
+     * @return The address, or null if text is not an IP address with an optional port
+     */
+    public static ResolverAddress parse(String text) {
+        return parse(text, DEFAULT_PORT);
+    }
+
+    /**
+     * Parse an address, using defaultPort when text has none.
+     *
+     * @return The address, or null if text is not an IP address with an optional port
+     */
+    public static ResolverAddress parse(String text, int defaultPort) {
+        if (text == null) {
+            return null;
+        }
+        text = text.trim();
+        String host = text;
+        int port = defaultPort;
+        if (text.startsWith("[")) {
+            int close = text.indexOf(']');
+            if (close < 0) {
+                return null;
+            }
+            host = text.substring(1, close);
+            if (close + 1 < text.length()) {
+                if (text.charAt(close + 1) != ':') {
+                    return null;
+                }
+                port = parsePort(text.substring(close + 2));
+            }
+            return port < 0 ? null : parseIpv6(host, port);
+        }
+        int colon = text.indexOf(':');
+        if (colon >= 0 && colon == text.lastIndexOf(':')) {
+            // One colon can only be an IPv4 address and port
+            host = text.substring(0, colon);
+            port = parsePort(text.substring(colon + 1));
+            if (port < 0) {
+                return null;
+            }
+        } else if (colon >= 0) {
+            return parseIpv6(host, port);
+        }
+        long ipv4 = parseIpv4(host);
+        return ipv4 < 0 ? null : new ResolverAddress(0, ipv4, port, false);
+    }
+
+    /**
+     * Rebuild an address from {@link #getHighBits()}, {@link #getLowBits()}
+     * and its port, for callers that store addresses in primitive arrays.
+     */
+    public static ResolverAddress fromBits(boolean ipv6, long high, long low, int port) {
+        return new ResolverAddress(ipv6 ? high : 0, ipv6 ? low : low & 0xffffffffL, port, ipv6);
+    }
+
+    /** Upper 64 bits of an IPv6 address; 0 for IPv4. */
+    public long getHighBits() {
+        return high;
+    }
+
+    /** Lower 64 bits of an IPv6 address, or the IPv4 address in the low 32 bits. */
+    public long getLowBits() {
+        return low;
+    }
+
+    public boolean isIpv6() {
+        return ipv6;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * The address without port or brackets, IPv6 in RFC 5952 form.
+     */
+    public String getHost() {
+        if (!ipv6) {
+            return (low >>> 24 & 0xff) + "." + (low >>> 16 & 0xff) + "." + (low >>> 8 & 0xff) + "." + (low & 0xff);
+        }
+        int[] groups = new int[8];
+        for (int i = 0; i < 4; i++) {
+            groups[i] = (int) (high >>> (48 - 16 * i)) & 0xffff;
+            groups[i + 4] = (int) (low >>> (48 - 16 * i)) & 0xffff;
+        }
+        // Compress the longest run of two or more zero groups, the first if tied
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int i = 0; i < 8; ) {
+            int j = i;
+            while (j < 8 && groups[j] == 0) {
+                j++;
+            }
+            if (j - i > bestLength) {
+                bestStart = i;
+                bestLength = j - i;
+            }
+            i = j == i ? i + 1 : j;
+        }
+        StringBuilder sb = new StringBuilder(39);
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                sb.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':') {
+                sb.append(':');
+            }
+            sb.append(Integer.toHexString(groups[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The socket address to send to, built from the packed bytes without a
+     * name lookup.
+     */
+    public InetSocketAddress toSocketAddress() {
+        byte[] bytes = new byte[ipv6 ? 16 : 4];
+        if (ipv6) {
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (high >>> (56 - 8 * i));
+                bytes[i + 8] = (byte) (low >>> (56 - 8 * i));
+            }
+        } else {
+            for (int i = 0; i < 4; i++) {
+                bytes[i] = (byte) (low >>> (24 - 8 * i));
+            }
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+        } catch (UnknownHostException e) {
+            // Only thrown for a byte array of the wrong length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Canonical "host:port", with IPv6 hosts in brackets.
+     */
+    @Override
+    public String toString() {
+        return ipv6 ? "[" + getHost() + "]:" + port : getHost() + ":" + port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ResolverAddress)) return false;
+        ResolverAddress other = (ResolverAddress) o;
+        return high == other.high && low == other.low && port == other.port && ipv6 == other.ipv6;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(high);
+        result = 31 * result + Long.hashCode(low);
+        result = 31 * result + port;
+        return ipv6 ? ~result : result;
+    }
+
+    private static int parsePort(String text) {
+        if (text.isEmpty() || text.length() > 5) {
+            return -1;
+        }
+        int port = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            port = port * 10 + (c - '0');
+        }
+        return port >= 1 && port <= 65535 ? port : -1;
+    }
+
+    /**
+     * Dotted-quad IPv4 as an unsigned 32-bit value, or -1 if malformed.
+     */
+    private static long parseIpv4(String text) {
+        long value = 0;
+        int octets = 0;
+        int i = 0;
+        int length = text.length();
+        while (octets < 4) {
+            int start = i;
+            int octet = 0;
+            while (i < length && i - start < 3 && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                octet = octet * 10 + (text.charAt(i) - '0');
+                i++;
+            }
+            if (i == start || octet > 255) {
+                return -1;
+            }
+            value = value << 8 | octet;
+            octets++;
+            if (octets < 4) {
+                if (i >= length || text.charAt(i) != '.') {
+                    return -1;
+                }
+                i++;
+            }
+        }
+        return i == length ? value : -1;
+    }
+
+    private static ResolverAddress parseIpv6(String text, int port) {
+        int[] groups = new int[8];
+        int count = 0;
+        int gap = -1;
+        int i = 0;
+        int length = text.length();
+        if (text.startsWith("::")) {
+            gap = 0;
+            i = 2;
+        }
+        while (i < length) {
+            if (count == 8) {
+                return null;
+            }
+            int start = i;
+            int group = 0;
+            while (i < length && i - start < 4 && Character.digit(text.charAt(i), 16) >= 0) {
+                group = group << 4 | Character.digit(text.charAt(i), 16);
+                i++;
+            }
+            if (i < length && text.charAt(i) == '.') {
+                // Embedded IPv4 in the last 32 bits, e.g. ::ffff:1.2.3.4
+                String tail = text.substring(start);
+                long ipv4 = parseIpv4(tail);
+                if (ipv4 < 0 || count > 6) {
+                    return null;
+                }
+                groups[count++] = (int) (ipv4 >>> 16);
+                groups[count++] = (int) (ipv4 & 0xffff);
+                i = length;
+                break;
+            }
+            if (i == start) {
+                return null;
+            }
+            groups[count++] = group;
+            if (i == length) {
+                break;
+            }
+            if (text.charAt(i) != ':') {
+                return null;
+            }
+            i++;
+            if (i < length && text.charAt(i) == ':') {
+                if (gap >= 0) {
+                    return null;
+                }
+                gap = count;
+                i++;
+            } else if (i == length) {
+                return null;
+            }
+        }
+        if (gap >= 0) {
+            if (count == 8) {
+                return null;
+            }
+            int move = count - gap;
+            System.arraycopy(groups, gap, groups, 8 - move, move);
+            for (int j = gap; j < 8 - move; j++) {
+                groups[j] = 0;
+            }
+        } else if (count != 8) {
+            return null;
+        }
+        long high = 0;
+        long low = 0;
+        for (int j = 0; j < 4; j++) {
+            high = high << 16 | groups[j];
+            low = low << 16 | groups[j + 4];
+        }
+        return new ResolverAddress(high, low, port, true);
+    }
+}
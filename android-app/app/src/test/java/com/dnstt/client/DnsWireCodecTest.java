@@ -0,0 +1,221 @@
+package com.dnstt.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class DnsWireCodecTest {
+    private static final byte[] DOMAIN = DnsWireCodec.encodeName("t.example.com");
+
+    @Test
+    public void encodesNames() {
+        assertArrayEquals(new byte[]{1, 't', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0}, DOMAIN);
+        assertArrayEquals(DOMAIN, DnsWireCodec.encodeName("t.example.com."));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyLabel() {
+        DnsWireCodec.encodeName("t..example.com");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLongLabel() {
+        DnsWireCodec.encodeName(repeat('a', 64) + ".com");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLongName() {
+        String label = repeat('a', 63);
+        DnsWireCodec.encodeName(label + "." + label + "." + label + "." + label);
+    }
+
+    @Test
+    public void writesQueryWithEdns() {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DnsWireCodec.writeQuery(out, 0x1234, DOMAIN, DnsWireCodec.TYPE_A, 1232);
+        assertEquals(0, out.position());
+        assertEquals(DnsWireCodec.HEADER_LENGTH + DOMAIN.length + 4 + 11, out.remaining());
+        assertEquals(0x1234, out.getShort(0) & 0xffff);
+        assertEquals(0x0100, out.getShort(2) & 0xffff);
+        assertEquals(1, out.getShort(4));
+        assertEquals(1, out.getShort(10));
+        int opt = DnsWireCodec.HEADER_LENGTH + DOMAIN.length + 4;
+        assertEquals(DnsWireCodec.TYPE_OPT, out.getShort(opt + 1));
+        assertEquals(1232, out.getShort(opt + 3));
+    }
+
+    @Test
+    public void writesQueryWithoutEdns() {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DnsWireCodec.writeQuery(out, 1, DOMAIN, DnsWireCodec.TYPE_TXT, 0);
+        assertEquals(DnsWireCodec.HEADER_LENGTH + DOMAIN.length + 4, out.remaining());
+        assertEquals(0, out.getShort(10));
+    }
+
+    @Test
+    public void parsesReplyAndMatchesQuestion() {
+        ByteBuffer buf = reply(query(DOMAIN), 0x8180, 300, new byte[]{10, 0, 0, 1});
+        DnsWireCodec.Response response = new DnsWireCodec.Response();
+        assertTrue(DnsWireCodec.parse(buf, response));
+        assertEquals(7, response.id);
+        assertTrue(response.isResponse());
+        assertFalse(response.isTruncated());
+        assertEquals(DnsWireCodec.RCODE_NOERROR, response.rcode());
+        assertEquals(1, response.answerCount);
+        assertEquals(DnsWireCodec.TYPE_A, response.firstAnswerType);
+        assertEquals(4, response.firstAnswerDataLength);
+        assertEquals(10, buf.get(response.firstAnswerDataOffset));
+        assertEquals(300, response.minAnswerTtl);
+        assertTrue(DnsWireCodec.questionEquals(buf, response, DOMAIN, DnsWireCodec.TYPE_A));
+        assertFalse(DnsWireCodec.questionEquals(buf, response, DOMAIN, DnsWireCodec.TYPE_TXT));
+        assertFalse(DnsWireCodec.questionEquals(buf, response, DnsWireCodec.encodeName("u.example.com"),
+                DnsWireCodec.TYPE_A));
+    }
+
+    @Test
+    public void rejectsTruncatedMessages() {
+        ByteBuffer buf = reply(query(DOMAIN), 0x8180, 60, new byte[4]);
+        DnsWireCodec.Response response = new DnsWireCodec.Response();
+        // Every cut through the question or answer leaves a structurally invalid message
+        for (int limit = 0; limit < buf.limit(); limit++) {
+            ByteBuffer cut = buf.duplicate();
+            cut.limit(limit);
+            assertFalse("limit " + limit, DnsWireCodec.parse(cut, response));
+        }
+    }
+
+    @Test
+    public void matchesNonceQuestion() {
+        ByteBuffer buf = reply(nonceQuery(0x0123456789abcdefL), 0x8180, 300, new byte[4]);
+        DnsWireCodec.Response response = new DnsWireCodec.Response();
+        assertTrue(DnsWireCodec.parse(buf, response));
+        assertTrue(DnsWireCodec.nonceQuestionEquals(buf, response, 0x0123456789abcdefL, DOMAIN, DnsWireCodec.TYPE_A));
+        assertFalse(DnsWireCodec.nonceQuestionEquals(buf, response, 0x0123456789abcdeeL, DOMAIN, DnsWireCodec.TYPE_A));
+        assertFalse(DnsWireCodec.nonceQuestionEquals(buf, response, 0x0123456789abcdefL, DOMAIN, DnsWireCodec.TYPE_TXT));
+    }
+
+    @Test
+    public void matchesNonceQuestionIgnoringCase() {
+        ByteBuffer query = nonceQuery(0xabcdefL);
+        int label = DnsWireCodec.HEADER_LENGTH + 2;
+        for (int i = label; i < label + 16; i++) {
+            query.put(i, (byte) Character.toUpperCase((char) query.get(i)));
+        }
+        ByteBuffer buf = reply(query, 0x8180, 60, new byte[4]);
+        DnsWireCodec.Response response = new DnsWireCodec.Response();
+        assertTrue(DnsWireCodec.parse(buf, response));
+        assertTrue(DnsWireCodec.nonceQuestionEquals(buf, response, 0xabcdefL, DOMAIN, DnsWireCodec.TYPE_A));
+    }
+
+    @Test
+    public void sizeProbeEchoesPayloadSize() {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DnsWireCodec.writeSizeProbeQuery(out, 3, 42, 1100, DOMAIN);
+        assertEquals(DnsWireCodec.SIZE_PROBE_LABEL_LENGTH, out.get(DnsWireCodec.HEADER_LENGTH));
+        ByteBuffer buf = reply(out, 0x8180, 0, new byte[0]);
+        DnsWireCodec.Response response = new DnsWireCodec.Response();
+        assertTrue(DnsWireCodec.parse(buf, response));
+        assertTrue(DnsWireCodec.sizeProbeQuestionEquals(buf, response, 42, 1100, DOMAIN));
+        assertFalse(DnsWireCodec.sizeProbeQuestionEquals(buf, response, 42, 1101, DOMAIN));
+        assertFalse(DnsWireCodec.sizeProbeQuestionEquals(buf, response, 43, 1100, DOMAIN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizeProbeBeyondFourDigits() {
+        DnsWireCodec.writeSizeProbeQuery(ByteBuffer.allocate(512), 3, 42,
+                DnsWireCodec.MAX_SIZE_PROBE_PAYLOAD + 1, DOMAIN);
+    }
+
+    @Test
+    public void nameProbePrefixFillsToTheLimit() {
+        byte[] prefix = new byte[DnsWireCodec.MAX_NAME_LENGTH];
+        for (int labelLength : new int[]{DnsWireCodec.MAX_LABEL_LENGTH, 32, 5}) {
+            int length = DnsWireCodec.nameProbePrefix(prefix, 99, 200, labelLength, DOMAIN.length);
+            // A gap of one octet cannot hold another label
+            assertTrue(length + DOMAIN.length <= 200);
+            assertTrue(length + DOMAIN.length >= 199);
+            int pos = 1 + DnsWireCodec.NAME_PROBE_LABEL_LENGTH;
+            while (pos < length) {
+                assertTrue(prefix[pos] >= 1 && prefix[pos] <= labelLength);
+                pos += 1 + prefix[pos];
+            }
+            assertEquals(length, pos);
+        }
+        // Room for the nonce label alone
+        assertEquals(1 + DnsWireCodec.NAME_PROBE_LABEL_LENGTH,
+                DnsWireCodec.nameProbePrefix(prefix, 99, 0, 63, DOMAIN.length));
+    }
+
+    @Test
+    public void readsTruncationBitFromHeader() {
+        ByteBuffer buf = reply(query(DOMAIN), 0x8380, 60, new byte[4]);
+        assertTrue(DnsWireCodec.isTruncated(buf));
+        buf.limit(DnsWireCodec.HEADER_LENGTH);
+        assertTrue(DnsWireCodec.isTruncated(buf));
+        buf.limit(DnsWireCodec.HEADER_LENGTH - 1);
+        assertFalse(DnsWireCodec.isTruncated(buf));
+    }
+
+    @Test
+    public void sizeProbeReplyLengthCountsTxtStrings() {
+        int fixed = DnsWireCodec.HEADER_LENGTH + 1 + DnsWireCodec.SIZE_PROBE_LABEL_LENGTH + DOMAIN.length + 4
+                + 2 + 10 + 11;
+        assertEquals(fixed + 1, DnsWireCodec.sizeProbeReplyLength(0, DOMAIN.length));
+        assertEquals(fixed + 254 + 1, DnsWireCodec.sizeProbeReplyLength(254, DOMAIN.length));
+        // A full 255-byte string is followed by an empty one
+        assertEquals(fixed + 255 + 2, DnsWireCodec.sizeProbeReplyLength(255, DOMAIN.length));
+        assertEquals(fixed + 256 + 2, DnsWireCodec.sizeProbeReplyLength(256, DOMAIN.length));
+    }
+
+    private static ByteBuffer query(byte[] qname) {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DnsWireCodec.writeQuery(out, 7, qname, DnsWireCodec.TYPE_A, 0);
+        return out;
+    }
+
+    private static ByteBuffer nonceQuery(long nonce) {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DnsWireCodec.writeNonceQuery(out, 7, nonce, DOMAIN, DnsWireCodec.TYPE_A, 0);
+        return out;
+    }
+
+    /**
+     * The query in out turned into a reply with the given flags and, unless
+     * rdata is empty, one A answer pointing back at the question name.
+     */
+    private static ByteBuffer reply(ByteBuffer query, int flags, int ttl, byte[] rdata) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        ByteBuffer question = query.duplicate();
+        if (question.getShort(10) > 0) {
+            // Drop the OPT RR, which is the last 11 bytes
+            question.limit(question.limit() - 11);
+        }
+        buf.put(question);
+        buf.putShort(2, (short) flags);
+        buf.putShort(10, (short) 0);
+        if (rdata.length > 0) {
+            buf.putShort(6, (short) 1);
+            buf.putShort((short) (0xc000 | DnsWireCodec.HEADER_LENGTH));
+            buf.putShort((short) DnsWireCodec.TYPE_A);
+            buf.putShort((short) DnsWireCodec.CLASS_IN);
+            buf.putInt(ttl);
+            buf.putShort((short) rdata.length);
+            buf.put(rdata);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
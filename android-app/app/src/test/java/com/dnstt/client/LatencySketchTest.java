@@ -0,0 +1,65 @@
+package com.dnstt.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencySketchTest {
+
+    @Test
+    public void emptySketchHasNoQuantiles() {
+        LatencySketch sketch = new LatencySketch();
+        assertEquals(0, sketch.count());
+        assertEquals(-1, sketch.quantile(0.5));
+    }
+
+    @Test
+    public void quantilesAreWithinOneBucket() {
+        LatencySketch sketch = new LatencySketch();
+        for (int ms = 1; ms <= 1000; ms++) {
+            sketch.add(ms);
+        }
+        assertEquals(1000, sketch.count());
+        for (double q : new double[]{0.1, 0.5, 0.9, 0.99}) {
+            long exact = (long) Math.ceil(q * 1000);
+            long estimate = sketch.quantile(q);
+            // The upper bound of the bucket holding the sample: never below
+            // it, and at most one 8% bucket above
+            assertTrue(q + ": " + estimate, estimate >= exact);
+            assertTrue(q + ": " + estimate, estimate <= Math.ceil(exact * 1.08));
+        }
+    }
+
+    @Test
+    public void quantilesFollowTheDistribution() {
+        LatencySketch sketch = new LatencySketch();
+        for (int i = 0; i < 90; i++) {
+            sketch.add(20);
+        }
+        for (int i = 0; i < 10; i++) {
+            sketch.add(2000);
+        }
+        long median = sketch.quantile(0.5);
+        long p90 = sketch.quantile(0.9);
+        long p95 = sketch.quantile(0.95);
+        assertTrue(median >= 20 && median <= 22);
+        assertEquals(median, p90);
+        assertTrue(p95 >= 2000 && p95 <= 2160);
+    }
+
+    @Test
+    public void clampsAtBothEnds() {
+        LatencySketch sketch = new LatencySketch();
+        sketch.add(0);
+        sketch.add(-5);
+        assertEquals(1, sketch.quantile(1));
+
+        sketch = new LatencySketch();
+        sketch.add(Long.MAX_VALUE);
+        long top = sketch.quantile(0.5);
+        sketch.add(1_000_000);
+        // Both land in the last bucket
+        assertEquals(top, sketch.quantile(0));
+    }
+}
@@ -0,0 +1,285 @@
+package com.dnstt.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.dnstt.client.models.ResolverAddress;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScanResultCacheTest {
+    private static final long TTL_MS = 60_000;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(folder.getRoot(), "cache");
+    }
+
+    @Test
+    public void roundTripsEveryField() {
+        ResolverAddress address = ResolverAddress.parse("[2001:db8::1]:5353");
+        FastDnsTester.ResolverResult result = new Result(address)
+                .latencyMs(42).cached().samples(3).p90LatencyMs(60).jitterMs(7).lossRate(0.25)
+                .outcome(FastDnsTester.ProbeOutcome.REACHES_SERVER).maxResponseSize(1180)
+                .maxQueryName(201, 32).maxQps(150).truncates().tcpLatencyMs(88)
+                .build();
+        assertEquals(1, new ScanResultCache(dir).merge("k", List.of(result)));
+
+        List<FastDnsTester.ResolverResult> loaded = new ScanResultCache(dir).load("k", TTL_MS);
+        assertEquals(1, loaded.size());
+        FastDnsTester.ResolverResult r = loaded.get(0);
+        assertEquals(address, r.address);
+        assertTrue(r.success);
+        assertTrue(r.cached);
+        assertEquals(42, r.latencyMs);
+        assertEquals(3, r.samples);
+        assertEquals(60, r.p90LatencyMs);
+        assertEquals(7, r.jitterMs);
+        assertEquals(0.25, r.lossRate, 0.001);
+        assertEquals(FastDnsTester.ProbeOutcome.REACHES_SERVER, r.outcome);
+        assertEquals(1180, r.maxResponseSize);
+        assertEquals(201, r.maxQueryNameLength);
+        assertEquals(32, r.maxQueryLabelLength);
+        assertEquals(150, r.maxQps);
+        assertTrue(r.truncates);
+        assertEquals(88, r.tcpLatencyMs);
+    }
+
+    @Test
+    public void mergeUpdatesAndRemoves() {
+        ScanResultCache cache = new ScanResultCache(dir);
+        cache.merge("k", List.of(answered("1.1.1.1", 10), answered("8.8.8.8", 20), answered("9.9.9.9", 30)));
+        cache.merge("k", List.of(answered("8.8.8.8", 25),
+                new FastDnsTester.ResolverResult("1.1.1.1", 0, false, "timeout")));
+
+        List<FastDnsTester.ResolverResult> loaded = new ScanResultCache(dir).load("k", TTL_MS);
+        assertEquals(2, loaded.size());
+        for (FastDnsTester.ResolverResult r : loaded) {
+            assertFalse(r.resolver.startsWith("1.1.1.1"));
+            if (r.resolver.startsWith("8.8.8.8")) {
+                assertEquals(25, r.latencyMs);
+            }
+        }
+    }
+
+    @Test
+    public void suspectResultsMoveToStale() {
+        ScanResultCache cache = new ScanResultCache(dir);
+        cache.merge("k", List.of(answered("1.1.1.1", 10), answered("8.8.8.8", 20)));
+        cache.markSuspect("k", List.of(answered("8.8.8.8", 20)));
+
+        assertEquals(1, cache.load("k", TTL_MS).size());
+        List<FastDnsTester.ResolverResult> stale = new ScanResultCache(dir).stale("k", TTL_MS);
+        assertEquals(1, stale.size());
+        assertEquals(ResolverAddress.parse("8.8.8.8"), stale.get(0).address);
+    }
+
+    @Test
+    public void missingOrClearedKeyLoadsNothing() {
+        ScanResultCache cache = new ScanResultCache(dir);
+        assertNull(cache.load("k", TTL_MS));
+        cache.merge("k", List.of(answered("1.1.1.1", 10)));
+        cache.clear("k");
+        assertNull(cache.load("k", TTL_MS));
+        assertNull(new ScanResultCache(dir).load("k", TTL_MS));
+    }
+
+    @Test
+    public void growsFileAsResolversAreAdded() {
+        ScanResultCache cache = new ScanResultCache(dir);
+        cache.merge("k", List.of(answered("1.1.1.1", 10)));
+        File file = new File(dir, "k.bin");
+        long initial = file.length();
+        assertTrue(initial < HEADER_SIZE + ScanResultCache.MAX_ENTRIES * RECORD_SIZE);
+
+        List<FastDnsTester.ResolverResult> results = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            results.add(answered("10.0." + (i / 256) + "." + (i % 256), 10));
+        }
+        assertEquals(300, cache.merge("k", results));
+        assertTrue(file.length() > initial);
+        assertEquals(0, (file.length() - HEADER_SIZE) % RECORD_SIZE);
+        assertEquals(301, new ScanResultCache(dir).load("k", TTL_MS).size());
+    }
+
+    @Test
+    public void keysStayReadableAfterTheirMappingIsDropped() {
+        ScanResultCache cache = new ScanResultCache(dir);
+        for (int i = 1; i <= 4; i++) {
+            cache.merge("k" + i, List.of(answered("10.0.0." + i, i)));
+        }
+        for (int i = 1; i <= 4; i++) {
+            List<FastDnsTester.ResolverResult> loaded = cache.load("k" + i, TTL_MS);
+            assertEquals(1, loaded.size());
+            assertEquals(i, loaded.get(0).latencyMs);
+        }
+    }
+
+    @Test
+    public void clearDeletesTheFile() {
+        ScanResultCache cache = new ScanResultCache(dir);
+        cache.merge("a", List.of(answered("1.1.1.1", 10)));
+        cache.merge("b", List.of(answered("1.1.1.1", 10)));
+        cache.clear("a");
+        assertFalse(new File(dir, "a.bin").exists());
+        assertTrue(new File(dir, "b.bin").exists());
+        cache.clearAll();
+        assertFalse(new File(dir, "b.bin").exists());
+        assertNull(cache.load("b", TTL_MS));
+    }
+
+    @Test
+    public void dropsRecordsTornByACrash() throws Exception {
+        List<FastDnsTester.ResolverResult> results = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            results.add(answered("10.0.0." + i, 10 * i));
+        }
+        new ScanResultCache(dir).merge("k", results);
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "k.bin"), "rw")) {
+            // Half-written latency in the second record
+            file.seek(HEADER_SIZE + RECORD_SIZE + 20);
+            file.writeInt(12345);
+            // Removal of the third record cut short: the last record copied
+            // into its slot, but the count not yet lowered
+            byte[] record = new byte[RECORD_SIZE];
+            file.seek(HEADER_SIZE + 4 * RECORD_SIZE);
+            file.readFully(record);
+            file.seek(HEADER_SIZE + 2 * RECORD_SIZE);
+            file.write(record);
+        }
+
+        List<FastDnsTester.ResolverResult> loaded = new ScanResultCache(dir).load("k", TTL_MS);
+        assertEquals(3, loaded.size());
+        for (FastDnsTester.ResolverResult r : loaded) {
+            assertFalse(r.address.equals(ResolverAddress.parse("10.0.0.2")));
+            assertFalse(r.address.equals(ResolverAddress.parse("10.0.0.3")));
+            assertEquals(10 * (r.address.getLowBits() & 0xff), r.latencyMs);
+        }
+    }
+
+    @Test
+    public void discardsFileOfAnotherFormat() throws Exception {
+        new ScanResultCache(dir).merge("k", List.of(answered("1.1.1.1", 10)));
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "k.bin"), "rw")) {
+            file.writeInt(0x44524301);
+        }
+        ScanResultCache cache = new ScanResultCache(dir);
+        assertNull(cache.load("k", TTL_MS));
+        assertEquals(1, cache.merge("k", List.of(answered("8.8.8.8", 20))));
+        assertEquals(1, new ScanResultCache(dir).load("k", TTL_MS).size());
+    }
+
+    private static FastDnsTester.ResolverResult answered(String resolver, long latencyMs) {
+        return new FastDnsTester.ResolverResult(resolver, latencyMs, true, null);
+    }
+
+    /**
+     * An answered result with every field named, so tests need not follow
+     * the positional order of the full ResolverResult constructor.
+     */
+    private static final class Result {
+        private final ResolverAddress address;
+        private long latencyMs;
+        private boolean cached;
+        private int samples = 1;
+        private long p90LatencyMs;
+        private long jitterMs;
+        private double lossRate;
+        private FastDnsTester.ProbeOutcome outcome = FastDnsTester.ProbeOutcome.ANSWERED;
+        private int maxResponseSize;
+        private int maxQueryNameLength;
+        private int maxQueryLabelLength;
+        private int maxQps;
+        private boolean truncates;
+        private long tcpLatencyMs = -1;
+
+        Result(ResolverAddress address) {
+            this.address = address;
+        }
+
+        Result latencyMs(long value) {
+            latencyMs = value;
+            return this;
+        }
+
+        Result cached() {
+            cached = true;
+            return this;
+        }
+
+        Result samples(int value) {
+            samples = value;
+            return this;
+        }
+
+        Result p90LatencyMs(long value) {
+            p90LatencyMs = value;
+            return this;
+        }
+
+        Result jitterMs(long value) {
+            jitterMs = value;
+            return this;
+        }
+
+        Result lossRate(double value) {
+            lossRate = value;
+            return this;
+        }
+
+        Result outcome(FastDnsTester.ProbeOutcome value) {
+            outcome = value;
+            return this;
+        }
+
+        Result maxResponseSize(int value) {
+            maxResponseSize = value;
+            return this;
+        }
+
+        Result maxQueryName(int nameLength, int labelLength) {
+            maxQueryNameLength = nameLength;
+            maxQueryLabelLength = labelLength;
+            return this;
+        }
+
+        Result maxQps(int value) {
+            maxQps = value;
+            return this;
+        }
+
+        Result truncates() {
+            truncates = true;
+            return this;
+        }
+
+        Result tcpLatencyMs(long value) {
+            tcpLatencyMs = value;
+            return this;
+        }
+
+        FastDnsTester.ResolverResult build() {
+            return new FastDnsTester.ResolverResult(address, address.toString(), latencyMs, true, null, cached,
+                    samples, p90LatencyMs, jitterMs, lossRate, outcome, maxResponseSize, maxQueryNameLength,
+                    maxQueryLabelLength, maxQps, truncates, tcpLatencyMs);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.dnstt.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheelTest {
+    private static final long TICK = 10;
+
+    private final List<DnsProbeEngine.Probe> expired = new ArrayList<>();
+
+    @Test
+    public void neverExpiresBeforeTheDeadline() {
+        DnsProbeEngine.TimerWheel wheel = new DnsProbeEngine.TimerWheel(TICK, 8, 0);
+        // Mid-tick deadline: rounding down would visit its slot at 20, too early
+        DnsProbeEngine.Probe probe = probe(25);
+        wheel.schedule(probe);
+        wheel.advance(20, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(29, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(30, expired::add);
+        assertEquals(List.of(probe), expired);
+    }
+
+    @Test
+    public void expiresOnTheTickOfAnExactDeadline() {
+        DnsProbeEngine.TimerWheel wheel = new DnsProbeEngine.TimerWheel(TICK, 8, 0);
+        DnsProbeEngine.Probe probe = probe(30);
+        wheel.schedule(probe);
+        wheel.advance(29, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(30, expired::add);
+        assertEquals(List.of(probe), expired);
+    }
+
+    @Test
+    public void pastDeadlineExpiresOnTheNextTick() {
+        DnsProbeEngine.TimerWheel wheel = new DnsProbeEngine.TimerWheel(TICK, 8, 55);
+        DnsProbeEngine.Probe probe = probe(40);
+        wheel.schedule(probe);
+        wheel.advance(59, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(60, expired::add);
+        assertEquals(List.of(probe), expired);
+    }
+
+    @Test
+    public void deadlineBeyondOneTurnWaitsForItsTurn() {
+        // 8 slots of 10 cover 80; this deadline shares a slot with 25
+        DnsProbeEngine.TimerWheel wheel = new DnsProbeEngine.TimerWheel(TICK, 8, 0);
+        DnsProbeEngine.Probe probe = probe(105);
+        wheel.schedule(probe);
+        wheel.advance(30, expired::add);
+        wheel.advance(100, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(110, expired::add);
+        assertEquals(List.of(probe), expired);
+    }
+
+    @Test
+    public void catchesUpAfterALongStall() {
+        DnsProbeEngine.TimerWheel wheel = new DnsProbeEngine.TimerWheel(TICK, 8, 0);
+        DnsProbeEngine.Probe early = probe(15);
+        DnsProbeEngine.Probe late = probe(75);
+        wheel.schedule(early);
+        wheel.schedule(late);
+        wheel.advance(1000, expired::add);
+        assertEquals(2, expired.size());
+    }
+
+    @Test
+    public void skipsFinishedProbes() {
+        DnsProbeEngine.TimerWheel wheel = new DnsProbeEngine.TimerWheel(TICK, 8, 0);
+        DnsProbeEngine.Probe probe = probe(25);
+        wheel.schedule(probe);
+        probe.done = true;
+        wheel.advance(30, expired::add);
+        assertTrue(expired.isEmpty());
+    }
+
+    private static DnsProbeEngine.Probe probe(long deadline) {
+        DnsProbeEngine.Probe probe = new DnsProbeEngine.Probe(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 53), null);
+        probe.deadlineNanos = deadline;
+        return probe;
+    }
+}
@@ -0,0 +1,146 @@
+package com.dnstt.client.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+public class ResolverAddressTest {
+
+    @Test
+    public void parsesIpv4WithDefaultPort() {
+        ResolverAddress address = ResolverAddress.parse("8.8.4.4");
+        assertFalse(address.isIpv6());
+        assertEquals("8.8.4.4", address.getHost());
+        assertEquals(53, address.getPort());
+        assertEquals(0x08080404L, address.getLowBits());
+        assertEquals(0, address.getHighBits());
+        assertEquals("8.8.4.4:53", address.toString());
+    }
+
+    @Test
+    public void parsesIpv4WithPort() {
+        ResolverAddress address = ResolverAddress.parse(" 1.2.3.4:5353 ");
+        assertEquals("1.2.3.4", address.getHost());
+        assertEquals(5353, address.getPort());
+        assertEquals(7000, ResolverAddress.parse("1.2.3.4", 7000).getPort());
+        assertEquals("255.255.255.255:65535", ResolverAddress.parse("255.255.255.255:65535").toString());
+    }
+
+    @Test
+    public void rejectsMalformedIpv4() {
+        assertNull(ResolverAddress.parse(null));
+        assertNull(ResolverAddress.parse(""));
+        assertNull(ResolverAddress.parse("1.2.3"));
+        assertNull(ResolverAddress.parse("1.2.3.4.5"));
+        assertNull(ResolverAddress.parse("1.2.3.256"));
+        assertNull(ResolverAddress.parse("1.2.3.1234"));
+        assertNull(ResolverAddress.parse("1..3.4"));
+        assertNull(ResolverAddress.parse("1.2.3.4."));
+        assertNull(ResolverAddress.parse("dns.google"));
+    }
+
+    @Test
+    public void rejectsBadPorts() {
+        assertNull(ResolverAddress.parse("1.2.3.4:"));
+        assertNull(ResolverAddress.parse("1.2.3.4:0"));
+        assertNull(ResolverAddress.parse("1.2.3.4:65536"));
+        assertNull(ResolverAddress.parse("1.2.3.4:123456"));
+        assertNull(ResolverAddress.parse("1.2.3.4:-1"));
+        assertNull(ResolverAddress.parse("1.2.3.4:5x"));
+        assertNull(ResolverAddress.parse("[2001:db8::1]:"));
+        assertNull(ResolverAddress.parse("[2001:db8::1]:0"));
+        assertNull(ResolverAddress.parse("[2001:db8::1]53"));
+        assertNull(ResolverAddress.parse("[2001:db8::1"));
+    }
+
+    @Test
+    public void parsesBareIpv6() {
+        ResolverAddress address = ResolverAddress.parse("2001:DB8:0:0:0:0:0:1");
+        assertTrue(address.isIpv6());
+        assertEquals(53, address.getPort());
+        assertEquals(0x20010db800000000L, address.getHighBits());
+        assertEquals(1, address.getLowBits());
+        assertEquals("2001:db8::1", address.getHost());
+        assertEquals("[2001:db8::1]:53", address.toString());
+    }
+
+    @Test
+    public void parsesBracketedIpv6() {
+        ResolverAddress address = ResolverAddress.parse("[2001:db8::53]:5353");
+        assertEquals("2001:db8::53", address.getHost());
+        assertEquals(5353, address.getPort());
+        assertEquals(address, ResolverAddress.parse("[2001:db8::53]", 5353));
+    }
+
+    @Test
+    public void parsesEmbeddedIpv4() {
+        ResolverAddress address = ResolverAddress.parse("::ffff:1.2.3.4");
+        assertTrue(address.isIpv6());
+        assertEquals(0, address.getHighBits());
+        assertEquals(0x0000ffff01020304L, address.getLowBits());
+        assertEquals("::ffff:102:304", address.getHost());
+        assertNull(ResolverAddress.parse("::ffff:1.2.3"));
+        assertNull(ResolverAddress.parse("1:2:3:4:5:6:7:1.2.3.4"));
+    }
+
+    @Test
+    public void handlesZeroCompressionEdges() {
+        assertEquals("::", ResolverAddress.parse("::").getHost());
+        assertEquals("::1", ResolverAddress.parse("::1").getHost());
+        assertEquals("1::", ResolverAddress.parse("1::").getHost());
+        assertEquals("[::]:53", ResolverAddress.parse("[::]").toString());
+        assertNull(ResolverAddress.parse(":::"));
+        assertNull(ResolverAddress.parse("1::2::3"));
+        assertNull(ResolverAddress.parse("1:2:3:4:5:6:7:8::"));
+        assertNull(ResolverAddress.parse("1:2:3:4:5:6:7"));
+        assertNull(ResolverAddress.parse("1:2:3:4:5:6:7:8:9"));
+        assertNull(ResolverAddress.parse("1:"));
+        assertNull(ResolverAddress.parse("12345::1"));
+        assertNull(ResolverAddress.parse("g::1"));
+    }
+
+    @Test
+    public void formatsInRfc5952Form() {
+        // A lone zero group is not compressed
+        assertEquals("1:0:2:3:4:5:6:7", ResolverAddress.parse("1:0:2:3:4:5:6:7").getHost());
+        // The longest run wins, the first when tied
+        assertEquals("1:0:0:2::3", ResolverAddress.parse("1:0:0:2:0:0:0:3").getHost());
+        assertEquals("1::2:0:0:3:4", ResolverAddress.parse("1:0:0:2:0:0:3:4").getHost());
+    }
+
+    @Test
+    public void roundTripsThroughBits() {
+        for (String text : new String[]{"9.9.9.9:53", "[2001:db8::1]:853", "[::ffff:102:304]:53"}) {
+            ResolverAddress address = ResolverAddress.parse(text);
+            ResolverAddress rebuilt = ResolverAddress.fromBits(address.isIpv6(),
+                    address.getHighBits(), address.getLowBits(), address.getPort());
+            assertEquals(address, rebuilt);
+            assertEquals(address.hashCode(), rebuilt.hashCode());
+            assertEquals(text, rebuilt.toString());
+        }
+    }
+
+    @Test
+    public void equalityCoversFamilyAndPort() {
+        assertEquals(ResolverAddress.parse("1.2.3.4"), ResolverAddress.parse("1.2.3.4:53"));
+        assertNotEquals(ResolverAddress.parse("1.2.3.4"), ResolverAddress.parse("1.2.3.4:54"));
+        // Same low bits, but one is IPv4 and the other ::102:304
+        assertNotEquals(ResolverAddress.parse("1.2.3.4"), ResolverAddress.parse("::102:304"));
+    }
+
+    @Test
+    public void buildsSocketAddressWithoutLookup() {
+        InetSocketAddress v4 = ResolverAddress.parse("1.2.3.4:5353").toSocketAddress();
+        assertEquals("1.2.3.4", v4.getAddress().getHostAddress());
+        assertEquals(5353, v4.getPort());
+        InetSocketAddress v6 = ResolverAddress.parse("[2001:db8::1]").toSocketAddress();
+        assertEquals(16, v6.getAddress().getAddress().length);
+        assertEquals(53, v6.getPort());
+    }
+}
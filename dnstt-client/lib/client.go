@@ -42,6 +42,67 @@ var UseCompression = false
 // Default is 1 (sequential queries). Recommended: 2-4 for most cases.
 var NumDNSSenders = 1
 
+// ednsPayloadSize is the UDP payload size advertised in every query. It must
+// not be below MinEDNSPayloadSize: dnstt-server answers FORMERR to queries
+// that advertise less than the size of its own replies.
+var ednsPayloadSize int32 = 4096
+
+// MinEDNSPayloadSize is dnstt-server's default maximum response size, the
+// smallest EDNS payload size it will answer.
+const MinEDNSPayloadSize = 1232
+
+// queryNameLimits bounds the query names that carry upstream data, as a
+// nameLimits; nil means the protocol limits. Lower them for resolvers
+// measured to rewrite or reject names that long.
+var queryNameLimits atomic.Value
+
+type nameLimits struct {
+	nameLength  int
+	labelLength int
+}
+
+// maxQueriesPerSecond caps the rate of queries sent by all tunnels and
+// senders together, or 0 for no cap. Set it just under the rate at which the
+// resolver starts dropping queries; going past it only causes retransmissions.
+var maxQueriesPerSecond int32
+
+// The settings above are read by tunnels that may already be running, so
+// they are only accessed atomically.
+
+// SetEDNSPayloadSize sets the UDP payload size advertised in queries.
+func SetEDNSPayloadSize(size int) {
+	atomic.StoreInt32(&ednsPayloadSize, int32(size))
+}
+
+// EDNSPayloadSize returns the UDP payload size advertised in queries.
+func EDNSPayloadSize() int {
+	return int(atomic.LoadInt32(&ednsPayloadSize))
+}
+
+// SetQueryNameLimits sets the longest query name and label to send, at most
+// 255 and 63 octets.
+func SetQueryNameLimits(nameLength, labelLength int) {
+	queryNameLimits.Store(nameLimits{nameLength, labelLength})
+}
+
+// QueryNameLimits returns the longest query name and label to send.
+func QueryNameLimits() (nameLength, labelLength int) {
+	if limits, ok := queryNameLimits.Load().(nameLimits); ok {
+		return limits.nameLength, limits.labelLength
+	}
+	return 255, 63
+}
+
+// SetMaxQueriesPerSecond sets the query rate cap, or 0 for none.
+func SetMaxQueriesPerSecond(qps int) {
+	atomic.StoreInt32(&maxQueriesPerSecond, int32(qps))
+}
+
+// MaxQueriesPerSecond returns the query rate cap, or 0 for none.
+func MaxQueriesPerSecond() int {
+	return int(atomic.LoadInt32(&maxQueriesPerSecond))
+}
+
 // Tunnel represents a single DNS tunnel with its own KCP, Noise, and smux session.
 type Tunnel struct {
 	pconn   net.PacketConn
@@ -119,16 +180,17 @@ func (p *TunnelPool) Close() {
 func dnsNameCapacity(domain dns.Name) int {
 	// Names must be 255 octets or shorter in total length.
 	// https://tools.ietf.org/html/rfc1035#section-2.3.4
-	capacity := 255
+	maxNameLength, maxLabelLength := QueryNameLimits()
+	capacity := maxNameLength
 	// Subtract the length of the null terminator.
 	capacity -= 1
 	for _, label := range domain {
 		// Subtract the length of the label and the length octet.
 		capacity -= len(label) + 1
 	}
-	// Each label may be up to 63 bytes long and requires 64 bytes to
-	// encode.
-	capacity = capacity * 63 / 64
+	// Each label may be up to maxLabelLength (at most 63) bytes long and
+	// requires one more byte to encode.
+	capacity = capacity * maxLabelLength / (maxLabelLength + 1)
 	// Base32 expands every 5 bytes to 8.
 	capacity = capacity * 5 / 8
 	return capacity
@@ -165,7 +227,7 @@ func createTunnel(
 	pubkey []byte,
 	domain dns.Name,
 	mtu int,
-	transportType string, // "doh", "dot", or "udp"
+	transportType string, // "doh", "dot", "tcp", or "udp"
 	transportArg string,
 ) (*Tunnel, error) {
 	var remoteAddr net.Addr
@@ -198,6 +260,11 @@ func createTunnel(
 		}
 		pconn, err = NewTLSPacketConn(transportArg, dialTLSContext)
 
+	case "tcp":
+		// Plain DNS over TCP is DoT without the TLS layer
+		remoteAddr = turbotunnel.DummyAddr{}
+		pconn, err = NewTLSPacketConn(transportArg, (&net.Dialer{}).DialContext)
+
 	case "udp":
 		remoteAddr, err = net.ResolveUDPAddr("udp", transportArg)
 		if err == nil {
@@ -797,10 +864,7 @@ func StartWithResolverFallback(config ResolverConfig) error {
 			return nil, fmt.Errorf("no more resolvers to try")
 		}
 
-		resolver := config.Resolvers[resolverIdx]
-		if !strings.Contains(resolver, ":") {
-			resolver = resolver + ":53"
-		}
+		resolver := ResolverAddr(config.Resolvers[resolverIdx])
 
 		log.Printf("connecting via resolver %s (%d/%d)", resolver, resolverIdx+1, len(config.Resolvers))
 
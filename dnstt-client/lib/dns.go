@@ -9,6 +9,7 @@ import (
 	"io"
 	"log"
 	"net"
+	"sync"
 	"time"
 
 	"www.bamsoftware.com/git/dnstt.git/dns"
@@ -318,7 +319,7 @@ func chunks(p []byte, n int) [][]byte {
 //     CLIENTID\xe3\xd9\xa3\x15\x22supercalifragilisticexpialidocious
 // 3. Base32-encode, without padding and in lower case.
 //     ingesrkokreujy6zumkse43vobsxey3bnruwm4tbm5uwy2ltoruwgzlyobuwc3djmrxwg2lpovzq
-// 4. Break into labels of at most 63 octets.
+// 4. Break into labels of at most the query label limit (63) octets.
 //     ingesrkokreujy6zumkse43vobsxey3bnruwm4tbm5uwy2ltoruwgzlyobuwc3d.jmrxwg2lpovzq
 // 5. Append the domain.
 //     ingesrkokreujy6zumkse43vobsxey3bnruwm4tbm5uwy2ltoruwgzlyobuwc3d.jmrxwg2lpovzq.t.example.com
@@ -349,7 +350,8 @@ func (c *DNSPacketConn) send(transport net.PacketConn, p []byte, addr net.Addr)
 	encoded := make([]byte, base32Encoding.EncodedLen(len(decoded)))
 	base32Encoding.Encode(encoded, decoded)
 	encoded = bytes.ToLower(encoded)
-	labels := chunks(encoded, 63)
+	_, maxLabelLength := QueryNameLimits()
+	labels := chunks(encoded, maxLabelLength)
 	labels = append(labels, c.domain...)
 	name, err := dns.NewName(labels)
 	if err != nil {
@@ -373,8 +375,8 @@ func (c *DNSPacketConn) send(transport net.PacketConn, p []byte, addr net.Addr)
 			{
 				Name:  dns.Name{},
 				Type:  dns.RRTypeOPT,
-				Class: 4096, // requester's UDP payload size
-				TTL:   0,    // extended RCODE and flags
+				Class: uint16(EDNSPayloadSize()), // requester's UDP payload size
+				TTL:   0,                         // extended RCODE and flags
 				Data:  []byte{},
 			},
 		},
@@ -388,6 +390,34 @@ func (c *DNSPacketConn) send(transport net.PacketConn, p []byte, addr net.Addr)
 	return err
 }
 
+// queryPacer spaces queries evenly at MaxQueriesPerSecond() across every tunnel
+// and sender, since they all share one resolver.
+var queryPacer struct {
+	mu   sync.Mutex
+	next time.Time
+}
+
+// waitQuerySlot blocks until the next query may be sent under
+// MaxQueriesPerSecond(). Idle time earns no burst allowance.
+func waitQuerySlot() {
+	qps := MaxQueriesPerSecond()
+	if qps <= 0 {
+		return
+	}
+	interval := time.Second / time.Duration(qps)
+	queryPacer.mu.Lock()
+	now := time.Now()
+	if queryPacer.next.Before(now) {
+		queryPacer.next = now
+	}
+	wait := queryPacer.next.Sub(now)
+	queryPacer.next = queryPacer.next.Add(interval)
+	queryPacer.mu.Unlock()
+	if wait > 0 {
+		time.Sleep(wait)
+	}
+}
+
 // sendLoop takes packets that have been written using c.WriteTo, and sends them
 // on the network using send. It also does polling with empty packets when
 // requested by pollChan or after a timeout.
@@ -493,6 +523,7 @@ func (c *DNSPacketConn) sendLoop(transport net.PacketConn, addr net.Addr, sender
 		// Unlike in the server, in the client we assume that because
 		// the data capacity of queries is so limited, it's not worth
 		// trying to send more than one packet per query.
+		waitQuerySlot()
 		err := c.send(transport, p, addr)
 		if err != nil {
 			log.Printf("send[%d]: %v", senderID, err)
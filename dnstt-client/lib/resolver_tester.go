@@ -32,6 +32,16 @@ type ResolverTestResult struct {
 	ResponseLen int
 }
 
+// ResolverAddr returns resolver as a host:port address for net.Dial,
+// adding port 53 when it has none. It accepts IPv4 addresses, bare or
+// bracketed IPv6 addresses, and either of them with a port.
+func ResolverAddr(resolver string) string {
+	if _, _, err := net.SplitHostPort(resolver); err == nil {
+		return resolver
+	}
+	return net.JoinHostPort(strings.TrimSuffix(strings.TrimPrefix(resolver, "["), "]"), "53")
+}
+
 // generateRandomSubdomain creates a random subdomain to avoid cache hits.
 func generateRandomSubdomain() string {
 	b := make([]byte, 8)
@@ -52,9 +62,7 @@ func TestDNSResolver(resolver string, domain dns.Name, timeout time.Duration) Re
 	}
 
 	// Ensure resolver has port
-	if !strings.Contains(resolver, ":") {
-		resolver = resolver + ":53"
-	}
+	resolver = ResolverAddr(resolver)
 
 	// Create UDP connection with timeout
 	ctx, cancel := context.WithTimeout(context.Background(), timeout)
@@ -306,9 +314,7 @@ func TestTunnelConnection(
 	}
 
 	// Ensure resolver has port
-	if !strings.Contains(resolver, ":") {
-		resolver = resolver + ":53"
-	}
+	resolver = ResolverAddr(resolver)
 
 	// Create tunnel with timeout context
 	done := make(chan error, 1)
@@ -48,6 +48,9 @@ type Config struct {
 	utlsFingerprint string
 	useZstd         bool // Enable zstd compression (server must also have -zstd flag)
 	numParallel     int  // Number of parallel DNS query senders (1-16, higher = more throughput)
+	maxNameLength   int  // Longest query name the resolver forwards intact (0 = 255)
+	maxLabelLength  int  // Longest query label the resolver forwards intact (0 = 63)
+	maxQPS          int  // Query rate to stay under across all tunnels (0 = unpaced)
 }
 
 // NewConfig creates a default configuration.
@@ -57,7 +60,7 @@ func NewConfig() *Config {
 		transportAddr:   "https://dns.google/dns-query",
 		listenAddr:      "127.0.0.1:1080",
 		tunnels:         8,
-		mtu:             1232,
+		mtu:             0,      // EDNS payload size to advertise, at least 1232 (0 = library default)
 		utlsFingerprint: "none", // Use standard TLS - uTLS causes errors on Android
 		useZstd:         true,   // Default to enabled (server has it on by default)
 		numParallel:     8,      // Default parallel DNS senders for better throughput
@@ -75,6 +78,9 @@ func (c *Config) SetMTU(v int)                { c.mtu = v }
 func (c *Config) SetUTLSFingerprint(v string) { c.utlsFingerprint = v }
 func (c *Config) SetUseZstd(v bool)           { c.useZstd = v }
 func (c *Config) SetNumParallel(v int)        { c.numParallel = v }
+func (c *Config) SetMaxNameLength(v int)      { c.maxNameLength = v }
+func (c *Config) SetMaxLabelLength(v int)     { c.maxLabelLength = v }
+func (c *Config) SetMaxQPS(v int)             { c.maxQPS = v }
 
 // Client represents a dnstt tunnel client for mobile.
 type Client struct {
@@ -181,10 +187,29 @@ func (c *Client) Start(cfg *Config) error {
 		numTunnels = 8
 	}
 
+	// Shape query names to what this resolver was measured to forward
+	nameLength, labelLength := 255, 63
+	if cfg.maxNameLength > 0 && cfg.maxNameLength < 255 {
+		nameLength = cfg.maxNameLength
+	}
+	if cfg.maxLabelLength > 0 && cfg.maxLabelLength < 63 {
+		labelLength = cfg.maxLabelLength
+	}
+	dnstt.SetQueryNameLimits(nameLength, labelLength)
+
 	// Calculate the proper MTU based on domain name capacity
 	// DNS encoding has strict limits - the MTU must fit in DNS query names
 	// The formula subtracts: 8 (ClientID) + 1 (padding length) + 3 (numPadding) + 1 (packet length)
 	mtu := dnstt.DNSNameCapacity(domain) - 8 - 1 - 3 - 1
+	if mtu < 80 && (nameLength < 255 || labelLength < 63) {
+		// Too small to carry KCP segments; the limits are better ignored
+		log.Printf("measured name limits %d/%d leave only %d bytes, using full-size names",
+			nameLength, labelLength, mtu)
+		dnstt.SetQueryNameLimits(255, 63)
+		mtu = dnstt.DNSNameCapacity(domain) - 8 - 1 - 3 - 1
+	} else if nameLength < 255 || labelLength < 63 {
+		log.Printf("query names limited to %d octets, labels to %d", nameLength, labelLength)
+	}
 	if mtu < 80 {
 		c.setState(StateError, fmt.Sprintf("Domain too long, MTU only %d bytes", mtu))
 		return fmt.Errorf("domain %s leaves only %d bytes for payload", cfg.domain, mtu)
@@ -206,6 +231,27 @@ func (c *Client) Start(cfg *Config) error {
 		log.Printf("parallel DNS senders: %d", cfg.numParallel)
 	}
 
+	// dnstt-server answers FORMERR to anything advertising less than its
+	// default -mtu, so never go below that
+	if cfg.mtu > 0 {
+		if cfg.mtu < dnstt.MinEDNSPayloadSize {
+			cfg.mtu = dnstt.MinEDNSPayloadSize
+		}
+		if cfg.mtu > 4096 {
+			cfg.mtu = 4096
+		}
+		dnstt.SetEDNSPayloadSize(cfg.mtu)
+		log.Printf("EDNS payload size: %d", cfg.mtu)
+	} else {
+		dnstt.SetEDNSPayloadSize(4096)
+	}
+
+	// Pace queries under the rate this resolver was measured to sustain
+	if cfg.maxQPS > 0 {
+		log.Printf("pacing queries at %d/s", cfg.maxQPS)
+	}
+	dnstt.SetMaxQueriesPerSecond(cfg.maxQPS)
+
 	// Create tunnels
 	successCount := 0
 	log.Printf("creating %d tunnels with transport=%s addr=%s domain=%s", numTunnels, cfg.transportType, cfg.transportAddr, cfg.domain)
@@ -708,6 +754,27 @@ func TestResolversWithTunnel(resolvers string, domain string, pubkeyHex string,
 	return ""
 }
 
+// VerifyResolverTunnel checks that a tunnel can be established through a
+// single resolver (DNS path, server reachable, Noise handshake). Apps that run
+// their own DNS scan call this for each candidate as soon as it is found.
+// Returns nil on success.
+func VerifyResolverTunnel(resolver string, domain string, pubkeyHex string, timeoutMs int64) error {
+	pubkey, err := noise.DecodeKey(pubkeyHex)
+	if err != nil {
+		return fmt.Errorf("invalid pubkey: %v", err)
+	}
+
+	timeout := time.Duration(timeoutMs) * time.Millisecond
+	if timeout < 2*time.Second {
+		timeout = 5 * time.Second
+	}
+
+	// Ensure resolver has port
+	resolver = dnstt.ResolverAddr(resolver)
+
+	return dnstt.TestTunnelConnection(resolver, domain, pubkey, nil, timeout)
+}
+
 // StartWithBestResolver tests resolvers and starts the tunnel with the best one.
 // This is a convenience function that combines TestResolversWithTunnel and Start.
 func (c *Client) StartWithBestResolver(cfg *Config, resolvers string, callback ResolverCallback) error {
@@ -982,10 +1049,7 @@ func FindWorkingResolverTwoPhase(resolvers string, domain string, pubkeyHex stri
 					}
 
 					// Ensure resolver has port
-					resolverWithPort := work.resolver
-					if !strings.Contains(work.resolver, ":") {
-						resolverWithPort = work.resolver + ":53"
-					}
+					resolverWithPort := dnstt.ResolverAddr(work.resolver)
 
 					done := atomic.AddInt64(&phase2Tested, 1)
 					if callback != nil {
@@ -1111,10 +1175,7 @@ func FindFirstWorkingResolver(resolvers string, domain string, pubkeyHex string,
 		}
 
 		// Ensure resolver has port
-		resolverWithPort := resolver
-		if !strings.Contains(resolver, ":") {
-			resolverWithPort = resolver + ":53"
-		}
+		resolverWithPort := dnstt.ResolverAddr(resolver)
 
 		log.Printf("[%d/%d] testing %s...", i+1, total, resolver)
 
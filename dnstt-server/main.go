@@ -48,6 +48,7 @@ import (
 	"net"
 	"os"
 	"os/signal"
+	"strconv"
 	"sync"
 	"syscall"
 	"time"
@@ -99,6 +100,20 @@ var (
 	maxUDPPayload = 1280 - 40 - 8
 )
 
+// Probes let clients measure what a resolver path carries intact. A size
+// probe is a TXT query for a single label under the domain made of '1', four
+// decimal digits giving the TXT payload length wanted, and an arbitrary nonce.
+// A name probe is a TXT query whose first label starts with '8'; the answer
+// echoes every label before the domain, so the client can see whether a long
+// name arrived unchanged. '1' and '8' are outside the base32 alphabet, so
+// these names never collide with tunnel queries. Probe replies are held to
+// the same maxUDPPayload as tunnel replies, so probes cannot be used for
+// amplification.
+const (
+	sizeProbeMarker = '1'
+	nameProbeMarker = '8'
+)
+
 // base32Encoding is a base32 encoding without padding.
 var base32Encoding = base32.StdEncoding.WithPadding(base32.NoPadding)
 
@@ -502,6 +517,103 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 	return resp, payload
 }
 
+// probeResponse returns the wire-format response to a size or name probe, or
+// nil if query is not a probe. A size probe gets a TXT answer carrying exactly
+// the requested number of filler bytes; a name probe gets a TXT answer holding
+// the wire format of the labels before the domain. A reply larger than
+// maxUDPPayload or the requester's UDP payload size is not sent; the answer is
+// dropped and TC = 1 set instead, so the response is no bigger than the query.
+func probeResponse(query *dns.Message, domain dns.Name) []byte {
+	if query.Flags&0x8000 != 0 || len(query.Question) != 1 {
+		return nil
+	}
+	question := query.Question[0]
+	if question.Type != dns.RRTypeTXT {
+		return nil
+	}
+	prefix, ok := question.Name.TrimSuffix(domain)
+	if !ok || len(prefix) == 0 || len(prefix[0]) < 5 {
+		return nil
+	}
+
+	var data []byte
+	switch prefix[0][0] {
+	case sizeProbeMarker:
+		if len(prefix) != 1 {
+			return nil
+		}
+		size, err := strconv.Atoi(string(prefix[0][1:5]))
+		if err != nil || size < 0 {
+			return nil
+		}
+		if size > maxUDPPayload {
+			// Could never fit; skip building it
+			size = maxUDPPayload
+		}
+		data = make([]byte, size)
+	case nameProbeMarker:
+		for _, label := range prefix {
+			data = append(data, byte(len(label)))
+			data = append(data, label...)
+		}
+	default:
+		return nil
+	}
+
+	resp := &dns.Message{
+		ID:       query.ID,
+		Flags:    0x8400, // QR = 1, AA = 1, RCODE = no error
+		Question: query.Question,
+		Answer: []dns.RR{
+			{
+				Name:  question.Name,
+				Type:  question.Type,
+				Class: question.Class,
+				TTL:   0,
+				Data:  dns.EncodeRDataTXT(data),
+			},
+		},
+	}
+	payloadSize := 512
+	for _, rr := range query.Additional {
+		if rr.Type == dns.RRTypeOPT {
+			resp.Additional = []dns.RR{
+				{
+					Name:  dns.Name{},
+					Type:  dns.RRTypeOPT,
+					Class: 4096, // responder's UDP payload size
+					TTL:   0,
+					Data:  []byte{},
+				},
+			}
+			if int(rr.Class) > payloadSize {
+				payloadSize = int(rr.Class)
+			}
+			break
+		}
+	}
+
+	if payloadSize > maxUDPPayload {
+		payloadSize = maxUDPPayload
+	}
+
+	buf, err := resp.WireFormat()
+	if err != nil {
+		log.Printf("probe WireFormat: %v", err)
+		return nil
+	}
+	if len(buf) > payloadSize {
+		resp.Flags |= 0x0200 // TC = 1
+		resp.Answer = nil
+		buf, err = resp.WireFormat()
+		if err != nil {
+			log.Printf("probe WireFormat: %v", err)
+			return nil
+		}
+	}
+	return buf
+}
+
 // record represents a DNS message appropriate for a response to a previously
 // received query, along with metadata necessary for sending the response.
 // recvLoop sends instances of record to sendLoop via a channel. sendLoop
@@ -537,6 +649,15 @@ func recvLoop(domain dns.Name, dnsConn net.PacketConn, ttConn *turbotunnel.Queue
 			continue
 		}
 
+		// Probes carry no tunnel data; answer them right away.
+		if probe := probeResponse(&query, domain); probe != nil {
+			_, err := dnsConn.WriteTo(probe, addr)
+			if err != nil {
+				log.Printf("probe WriteTo: %v", err)
+			}
+			continue
+		}
+
 		resp, payload := responseFor(&query, domain)
 		// Extract the ClientID from the payload.
 		var clientID turbotunnel.ClientID